@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -17,6 +18,13 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
+ * <p>
+ * This is a B-link tree: every page links to its right sibling and has a high
+ * key, above which its keys have moved to the right when it split. Internal
+ * pages are never locked; they are read and changed under their latches only
+ * (see Page#getLatch), one page at a time, and a thread that reaches a page
+ * after it split follows its right link. Leaf pages are READ_WRITE locked by
+ * the transactions that change them, and read without locks by iterators.
  * @author Becca Taft
  */
 public class BLinkTreeFile extends BTreeFile {
@@ -34,6 +42,15 @@ public class BLinkTreeFile extends BTreeFile {
 		super(f,key,td);
 	}
 
+	/**
+	 * Constructs a B+ tree file with its own page size.
+	 * 
+	 * @see BTreeFile#BTreeFile(File, int, TupleDesc, int)
+	 */
+	public BLinkTreeFile(File f, int key, TupleDesc td, int pageSize) {
+		super(f,key,td,pageSize);
+	}
+
 	/**
 	 * Returns the File backing this BTreeFile on disk.
 	 */
@@ -67,19 +84,19 @@ public class BLinkTreeFile extends BTreeFile {
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
+				byte pageBuf[] = new byte[getPageSize()];
+				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * getPageSize()) != 
+						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * getPageSize()) {
 					throw new IllegalArgumentException(
 							"Unable to seek to correct place in BTreeFile");
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = bis.read(pageBuf, 0, getPageSize());
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
+				if (retval < getPageSize()) {
 					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+							+ getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
@@ -112,9 +129,9 @@ public class BLinkTreeFile extends BTreeFile {
 
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * the left-most page possibly containing the key field f. It read latches the internal
+	 * nodes along the path to the leaf node one at a time, without locking them, and locks
+	 * the leaf node with permission perm.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -133,37 +150,23 @@ public class BLinkTreeFile extends BTreeFile {
             switch (pid.pgcateg()) {
                 case BTreePageId.LEAF:
                 	BLinkTreeLeafPage cur = (BLinkTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
-                	BLinkTreeLeafPage new_cur;
-                	while (cur.getRightSiblingId() != null && !f.compare(Op.LESS_THAN, cur.getHighKey())) {             		
-                		new_cur = (BLinkTreeLeafPage) this.getPage(tid, dirtypages, cur.getRightSiblingId(), perm);
+                	BTreePageId right;
+                	while ((right = rightOf(cur, f)) != null) {
+                		BLinkTreeLeafPage new_cur = (BLinkTreeLeafPage) this.getPage(tid, dirtypages, right, perm);
                 		Database.getBufferPool().releasePage(tid, cur.getId());
                 		cur = new_cur;
                 	}
                     return cur;
                 case BTreePageId.INTERNAL:
-                    BLinkTreeInternalPage pg = (BLinkTreeInternalPage)(this.getPage(tid, dirtypages, pid, Permissions.NO_LOCK));
-                    Iterator<BTreeEntry> es = pg.iterator();
-                    if (es == null || !es.hasNext())
-                        throw new DbException("Illegal entry iterator.");
-                    if (f == null) {
-                    	stack.push(pg.getId());
-                        return findLeafPage(tid, dirtypages, es.next().getLeftChild(), perm, f, stack);
-                    }
-                    while (pg.getRightSiblingId() != null && !f.compare(Op.LESS_THAN, pg.getHighKey())){
-                    	pg = (BLinkTreeInternalPage)(this.getPage(tid, dirtypages, pg.getRightSiblingId(), Permissions.NO_LOCK));
+                    BTreePageId child;
+                    BLinkTreeInternalPage pg = latchInternalPage(tid, dirtypages, pid, f, false);
+                    try {
+                        stack.push(pg.getId());
+                        child = childFor(pg, f);
+                    } finally {
+                        pg.getLatch().readLock().unlock();
                     }
-                    stack.push(pg.getId());
-                    BTreeEntry e = es.next();
-                    while (true) {
-                        if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                        	
-                        	return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f,stack);
-                        }
-                            
-                        if (es.hasNext()) e = es.next();
-                        else break;
-                    }
-                    return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f,stack);
+                    return findLeafPage(tid, dirtypages, child, perm, f, stack);
                 case BTreePageId.HEADER:
                 case BTreePageId.ROOT_PTR:
                 default:
@@ -171,6 +174,78 @@ public class BLinkTreeFile extends BTreeFile {
             }
 	}
 	
+	/**
+	 * @return the right sibling of a leaf page, if the key field f is not below the page's
+	 * high key, so that the tuples with key f have moved there; otherwise null. Read under
+	 * the page's latch.
+	 */
+	private BTreePageId rightOf(BLinkTreeLeafPage page, Field f) {
+		page.getLatch().readLock().lock();
+		try {
+			if (f == null || page.getRightSiblingId() == null || f.compare(Op.LESS_THAN, page.getHighKey()))
+				return null;
+			return page.getRightSiblingId();
+		} finally {
+			page.getLatch().readLock().unlock();
+		}
+	}
+
+	/**
+	 * Latch the internal page whose range covers the key field f, starting at page pid
+	 * and following right links past the pages whose high key is not above f. Only one
+	 * page is latched at a time, and none while the next one is fetched from the buffer
+	 * pool.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the page to start at
+	 * @param f - the field to search for, or null to latch page pid
+	 * @param write - true to write latch the page and mark it dirty (see
+	 * BufferPool#latchPage), false to read latch it
+	 * @return the latched page; the caller releases the latch
+	 */
+	private BLinkTreeInternalPage latchInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId pid, Field f, boolean write) throws DbException, TransactionAbortedException {
+		while (true) {
+			BLinkTreeInternalPage pg;
+			Lock latch;
+			if (write && !dirtypages.containsKey(pid)) {
+				pg = (BLinkTreeInternalPage) Database.getBufferPool().latchPage(tid, pid);
+				latch = pg.getLatch().writeLock();
+			} else {
+				pg = (BLinkTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.NO_LOCK);
+				latch = write ? pg.getLatch().writeLock() : pg.getLatch().readLock();
+				latch.lock();
+			}
+			if (f == null || pg.getRightSiblingId() == null || f.compare(Op.LESS_THAN, pg.getHighKey()))
+				return pg;
+			if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() +" internal move.right");
+			pid = pg.getRightSiblingId();
+			latch.unlock();
+		}
+	}
+
+	/**
+	 * Copy the tuples of a leaf page read without a lock, and get its right sibling,
+	 * under the page's latch: a page that splits meanwhile would otherwise have some of
+	 * its tuples read both on it and on its new sibling, or on neither.
+	 * 
+	 * @param page - the leaf page
+	 * @param tuples - the list to add the page's tuples to
+	 * @return the id of the page's right sibling, or null if it has none
+	 */
+	static BTreePageId readLeaf(BTreeLeafPage page, List<Tuple> tuples) {
+		page.getLatch().readLock().lock();
+		try {
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext())
+				tuples.add(it.next());
+			return page.getRightSiblingId();
+		} finally {
+			page.getLatch().readLock().unlock();
+		}
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
@@ -222,29 +297,35 @@ public class BLinkTreeFile extends BTreeFile {
 		// tuple with the given key field should be inserted.
 		 BLinkTreeLeafPage npage = (BLinkTreeLeafPage)getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
 		 if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() +" split leaf "+ page.getId() +" <--> "+npage.getId());
-		 Iterator<Tuple> ts = page.iterator();
-		 if (ts == null || !ts.hasNext()) throw new DbException("Illegal tuple iterator.");
-		 // Move (left half) tuples to the new leaf page
-		 int numTs = page.getNumTuples();
-		 ArrayList<Tuple> arrt = new ArrayList<Tuple>();
+		 // iterators that do not lock the page see it before or after the split, not halfway
+		 page.getLatch().writeLock().lock();
+		 try {
+			 Iterator<Tuple> ts = page.iterator();
+			 if (ts == null || !ts.hasNext()) throw new DbException("Illegal tuple iterator.");
+			 // Move (left half) tuples to the new leaf page
+			 int numTs = page.getNumTuples();
+			 ArrayList<Tuple> arrt = new ArrayList<Tuple>();
 		
-		 for (int j = 0; j < numTs / 2; j ++) {
-			 ts.next();
+			 for (int j = 0; j < numTs / 2; j ++) {
+				 ts.next();
+			 }
+			 while(ts.hasNext()) {
+				 arrt.add(ts.next());
+			 }
+			 for (Tuple t: arrt) {
+			     page.deleteTuple(t);
+			     npage.insertTuple(t);
+			 }
+			 // Set sibling poiters
+		     npage.setRightSiblingId(page.getRightSiblingId());      
+			 page.setRightSiblingId(npage.getId());
+			 // Set the entry (and field) that should be inserted to their parent
+			 Field f = arrt.get(0).getField(keyField);
+			 npage.setHighKey(page.getHighKey());
+			 page.setHighKey(f);
+		 } finally {
+			 page.getLatch().writeLock().unlock();
 		 }
-		 while(ts.hasNext()) {
-			 arrt.add(ts.next());
-		 }
-		 for (Tuple t: arrt) {
-		     page.deleteTuple(t);
-		     npage.insertTuple(t);
-		 }
-		 // Set sibling poiters
-	     npage.setRightSiblingId(page.getRightSiblingId());      
-		 page.setRightSiblingId(npage.getId());
-		 // Set the entry (and field) that should be inserted to their parent
-		 Field f = arrt.get(0).getField(keyField);
-		 npage.setHighKey(page.getHighKey());
-		 page.setHighKey(f);
          
          // Link the (probably new) parent and the leaf nodes
          /*parent.insertEntry(e);
@@ -266,19 +347,19 @@ public class BLinkTreeFile extends BTreeFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param page - the internal page to split
-	 * @param field - the key field of the entry to be inserted after the split is complete. Necessary to know
-	 * which of the two pages to return.
+	 * @param page - the internal page to split, write latched by the caller
+	 * @param npage - the new empty page to move half of the entries to, taken before page
+	 * was latched, since no latch may be held while the buffer pool is waited for
 	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
 	 * @see #updateParentPointers(TransactionId, HashMap, BTreeInternalPage)
 	 * 
-	 * @return the internal page into which the new entry should be inserted
+	 * @return the new page
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
 	protected BLinkTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
-			BLinkTreeInternalPage page, Field field) 
+			BLinkTreeInternalPage page, BLinkTreeInternalPage npage) 
 					throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
         //
@@ -289,7 +370,6 @@ public class BLinkTreeFile extends BTreeFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		BLinkTreeInternalPage npage = (BLinkTreeInternalPage)getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 		System.out.println("Tx "+tid.getId() +" split internal "+ page.getId() +" <--> "+npage.getId());
         Iterator<BTreeEntry> es = page.iterator();
         if (es == null || !es.hasNext()) throw new DbException("Illegal entry iterator.");
@@ -367,59 +447,48 @@ public class BLinkTreeFile extends BTreeFile {
 			System.out.println("Should not happen");
 			return null;
 		case BTreePageId.INTERNAL:
-			BLinkTreeInternalPage pg = (BLinkTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.NO_LOCK);
-			while (pg.getRightSiblingId() != null && !t.getField(keyField).compare(Op.LESS_THAN, pg.getHighKey())){
-				if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() +" internal 1 move.right");
-				pg = (BLinkTreeInternalPage) this.getPage(tid, dirtypages, pg.getRightSiblingId(), Permissions.NO_LOCK);
-			}
-			
-			Iterator<BTreeEntry> es = pg.iterator();
-            if (es == null || !es.hasNext())
-                throw new DbException("Illegal entry iterator.");           
             Field f = t.getField(keyField);
             BTreePageId child;
-            while (true) {
-            	BTreeEntry e = es.next();
-                if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                	child = e.getLeftChild();
-                	break;
-                }                   
-                if (!es.hasNext()) {
-                	child = e.getRightChild();
-                	break;
-                }
-            }
+			BLinkTreeInternalPage pg = latchInternalPage(tid, dirtypages, pid, f, false);
+			try {
+				child = childFor(pg, f);
+			} finally {
+				pg.getLatch().readLock().unlock();
+			}
 			
 			BTreeEntry ret = insert(tid,t,child,dirtypages);
 			// 
 			if (ret !=null) {
-				
-				pg = (BLinkTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_WRITE); // pop(stack)
-				while (pg.getRightSiblingId() != null && !t.getField(keyField).compare(Op.LESS_THAN, pg.getHighKey())){
-					BLinkTreeInternalPage old = pg;
-					if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() +" internal 2 move.right");
-					pg = (BLinkTreeInternalPage) this.getPage(tid, dirtypages, pg.getRightSiblingId(), Permissions.READ_WRITE);
-					Database.getBufferPool().releasePage(tid, old.getId());
-				}
 				Database.getBufferPool().releasePage(tid, ret.getLeftChild());
 				Database.getBufferPool().releasePage(tid, ret.getRightChild());
 			
-				if (pg.getNumEmptySlots() >0){
-					pg.insertEntry(ret);
-					Database.getBufferPool().releasePage(tid, pg.getId());
-				} else {
-					BLinkTreeInternalPage npage = splitInternalPage(tid, dirtypages, pg, t.getField(keyField));
-					Field mid = pg.getHighKey();
-					if (ret.getKey().compare(Op.GREATER_THAN_OR_EQ, mid)){
-						npage.insertEntry(ret);
-					} else {
-						pg.insertEntry(ret);
+				// the page may split, or be split by others, while the new page is taken
+				BLinkTreeInternalPage npage = null;
+				while (true) {
+					pg = latchInternalPage(tid, dirtypages, pid, f, true); // pop(stack)
+					try {
+						if (pg.getNumEmptySlots() > 0) {
+							pg.insertEntry(ret);
+							break;
+						}
+						if (npage != null) {
+							splitInternalPage(tid, dirtypages, pg, npage);
+							Field mid = pg.getHighKey();
+							if (ret.getKey().compare(Op.GREATER_THAN_OR_EQ, mid)){
+								npage.insertEntry(ret);
+							} else {
+								pg.insertEntry(ret);
+							}
+							//System.out.println("Has to split internal");
+							return new BTreeEntry(mid, pg.getId(), npage.getId());
+						}
+					} finally {
+						pg.getLatch().writeLock().unlock();
 					}
-					BTreeEntry e = new BTreeEntry(mid, pg.getId(), npage.getId());
-					//System.out.println("Has to split internal");
-			        return e;
-					
+					npage = (BLinkTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 				}
+				if (npage != null)
+					setEmptyPage(tid, dirtypages, npage.getId().pageNumber());
 			}
 			return null;
 		case BTreePageId.LEAF:
@@ -497,8 +566,17 @@ public class BLinkTreeFile extends BTreeFile {
 			rootPtr.setRootId(parent.getId());
 
 			// update the previous root to now point to this new root.
-			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
-			prevRootPage.setParentId(parent.getId());
+			if (prevRootId.pgcateg() == BTreePageId.INTERNAL) {
+				BLinkTreeInternalPage prevRootPage = latchInternalPage(tid, dirtypages, prevRootId, null, true);
+				try {
+					prevRootPage.setParentId(parent.getId());
+				} finally {
+					prevRootPage.getLatch().writeLock().unlock();
+				}
+			} else {
+				BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
+				prevRootPage.setParentId(parent.getId());
+			}
 			parent.insertEntry(be);
 			Database.getBufferPool().releasePage(tid, be.getRightChild());
 			Database.getBufferPool().releasePage(tid, be.getLeftChild());
@@ -624,7 +702,7 @@ public class BLinkTreeFile extends BTreeFile {
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData(getPageSize());
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
@@ -670,7 +748,7 @@ public class BLinkTreeFile extends BTreeFile {
 class BLinkTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
 
 	TransactionId tid;
 	BLinkTreeFile f;
@@ -692,8 +770,16 @@ class BLinkTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.NO_LOCK);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.NO_LOCK, null);
-		it = curp.iterator();
+		read(f.findLeafPage(tid, root, Permissions.NO_LOCK, null));
+	}
+
+	/**
+	 * Make the tuples of a leaf page the ones to return next
+	 */
+	private void read(BTreeLeafPage page) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		nextp = BLinkTreeFile.readLeaf(page, tuples);
+		it = tuples.iterator();
 	}
 
 	/**
@@ -707,18 +793,11 @@ class BLinkTreeFileIterator extends AbstractDbFileIterator {
 		if (it != null && !it.hasNext())
 			it = null;
 
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.NO_LOCK);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
+		while (it == null && nextp != null) {
+			read((BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					nextp, Permissions.NO_LOCK));
+			if (!it.hasNext())
+				it = null;
 		}
 
 		if (it == null)
@@ -740,7 +819,7 @@ class BLinkTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
-		curp = null;
+		nextp = null;
 	}
 }
 
@@ -751,7 +830,7 @@ class BLinkTreeFileIterator extends AbstractDbFileIterator {
 class BLinkTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
 
 	TransactionId tid;
 	BLinkTreeFile f;
@@ -779,12 +858,20 @@ class BLinkTreeSearchIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.NO_LOCK, ipred.getField());
+			read(f.findLeafPage(tid, root, Permissions.NO_LOCK, ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.NO_LOCK, null);
+			read(f.findLeafPage(tid, root, Permissions.NO_LOCK, null));
 		}
-		it = curp.iterator();
+	}
+
+	/**
+	 * Make the tuples of a leaf page the ones to filter next
+	 */
+	private void read(BTreeLeafPage page) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		nextp = BLinkTreeFile.readLeaf(page, tuples);
+		it = tuples.iterator();
 	}
 
 	/**
@@ -816,15 +903,13 @@ class BLinkTreeSearchIterator extends AbstractDbFileIterator {
 				}
 			}
 
-			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.NO_LOCK);
-				it = curp.iterator();
+				read((BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.NO_LOCK));
 			}
 		}
 
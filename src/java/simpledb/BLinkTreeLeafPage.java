@@ -40,9 +40,10 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and the
+	 * page's LSN (see {@link Page#getLSN}), which is in the last 8 bytes.
 	 *  Specifically, the number of tuples is equal to: <p>
-	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 *          floor((page size*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
 	 * database table, which can be determined via {@link Catalog#getTupleDesc}.
 	 * The number of 8-bit header words is equal to:
@@ -59,6 +60,7 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 */
 	public BLinkTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.pageSize = data.length;
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -105,6 +107,7 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 			e.printStackTrace();
 		}
 		dis.close();
+		lsn = readLSN(data);
 
 		setBeforeImage();
 	}
@@ -115,9 +118,9 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	public int getMaxTuples() {        
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer + highKey
-		int extraBits = 3 * INDEX_SIZE * 8 + keySize * 8; 
-		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer + highKey + LSN
+		int extraBits = 3 * INDEX_SIZE * 8 + keySize * 8 + LSN_SIZE * 8; 
+		int tuplesPerPage = (pageSize*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
 
@@ -203,91 +206,98 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent and sibling pointers
+		latch.readLock().lock();
 		try {
-			dos.writeInt(parent);
+			int len = pageSize;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
+			// write out the parent and sibling pointers
+			try {
+				dos.writeInt(parent);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				dos.writeInt(leftSibling);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		// highKey
-		try {
-			highKey.serialize(dos);
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				dos.writeInt(rightSibling);
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			// highKey
 			try {
-				dos.writeByte(header[i]);
+				highKey.serialize(dos);
+			
 			} catch (IOException e) {
-				// this really shouldn't happen
 				e.printStackTrace();
 			}
-		}
 
-		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
+			// create the header of the page
+			for (int i=0; i<header.length; i++) {
+				try {
+					dos.writeByte(header[i]);
+				} catch (IOException e) {
+					// this really shouldn't happen
+					e.printStackTrace();
+				}
+			}
+
+			// create the tuples
+			for (int i=0; i<tuples.length; i++) {
+
+				// empty slot
+				if (!isSlotUsed(i)) {
+					for (int j=0; j<td.getSize(); j++) {
+						try {
+							dos.writeByte(0);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+
+					}
+					continue;
+				}
 
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
+				// non-empty slot
+				for (int j=0; j<td.numFields(); j++) {
+					Field f = tuples[i].getField(j);
 					try {
-						dos.writeByte(0);
+						f.serialize(dos);
+
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
-
 				}
-				continue;
 			}
 
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+			// padding
+			int zerolen = pageSize - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE
+					+ td.getFieldType(keyField).getLen() + LSN_SIZE);
+			byte[] zeroes = new byte[zerolen];
+			try {
+				dos.write(zeroes, 0, zerolen);
+				dos.writeLong(lsn);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-		}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -298,15 +308,20 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
-		RecordId rid = t.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete tuple with null rid");
-		if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete tuple on invalid page or table");
-		if (!isSlotUsed(rid.tupleno()))
-			throw new DbException("tried to delete null tuple.");
-		markSlotUsed(rid.tupleno(), false);
-		t.setRecordId(null);
+		latch.writeLock().lock();
+		try {
+			RecordId rid = t.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete tuple with null rid");
+			if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete tuple on invalid page or table");
+			if (!isSlotUsed(rid.tupleno()))
+				throw new DbException("tried to delete null tuple.");
+			markSlotUsed(rid.tupleno(), false);
+			t.setRecordId(null);
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -318,67 +333,72 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
-		if (!t.getTupleDesc().equals(td))
-			throw new DbException("type mismatch, in addTuple");
-
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+		latch.writeLock().lock();
+		try {
+			if (!t.getTupleDesc().equals(td))
+				throw new DbException("type mismatch, in addTuple");
+
+			// find the first empty slot 
+			int emptySlot = -1;
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
+				}
 			}
-		}
 		
-		if ( getRightSiblingId() != null && t.getField(keyField).compare(Predicate.Op.GREATER_THAN_OR_EQ, highKey) ){
-			// insert tuple on right sibling and return
-			System.out.println("Should not happen with single Tx");
-		} else {
-			if (getRightSiblingId() == null && t.getField(keyField).compare(Predicate.Op.GREATER_THAN_OR_EQ, highKey)){
-				highKey = t.getField(keyField);
+			if ( getRightSiblingId() != null && t.getField(keyField).compare(Predicate.Op.GREATER_THAN_OR_EQ, highKey) ){
+				// insert tuple on right sibling and return
+				System.out.println("Should not happen with single Tx");
+			} else {
+				if (getRightSiblingId() == null && t.getField(keyField).compare(Predicate.Op.GREATER_THAN_OR_EQ, highKey)){
+					highKey = t.getField(keyField);
+				}
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called addTuple on page with no empty slots.");
-
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
+			if (emptySlot == -1)
+				throw new DbException("called addTuple on page with no empty slots.");
+
+			// find the last key less than or equal to the key being inserted
+			int lessOrEqKey = -1;
+			Field key = t.getField(keyField);
+			for (int i=0; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+						lessOrEqKey = i;
+					else
+						break;	
+				}
 			}
-		}
 		
-		// If the link pointer does not exist, update the high key
-
-		// shift records back or forward to fill empty slot and make room for new record
-		// while keeping records in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
+			// If the link pointer does not exist, update the high key
+
+			// shift records back or forward to fill empty slot and make room for new record
+			// while keeping records in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveRecord(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
 			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
+			else {
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveRecord(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new record into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
-		RecordId rid = new RecordId(pid, goodSlot);
-		t.setRecordId(rid);
-		tuples[goodSlot] = t;
+			// insert new record into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
+			RecordId rid = new RecordId(pid, goodSlot);
+			t.setRecordId(rid);
+			tuples[goodSlot] = t;
 		
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -423,17 +443,22 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			leftSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setLeftSiblingId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				leftSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("leftSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setLeftSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("leftSibling must be a leaf node");
+				}
+				leftSibling = id.pageNumber();
 			}
-			leftSibling = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -443,17 +468,22 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			rightSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRightSiblingId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				rightSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("rightSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRightSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("rightSibling must be a leaf node");
+				}
+				rightSibling = id.pageNumber();
 			}
-			rightSibling = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 	
@@ -461,7 +491,12 @@ public class BLinkTreeLeafPage extends BTreeLeafPage {
 		return highKey;
 	}
 	public void setHighKey(Field f){
-		highKey = f;
+		latch.writeLock().lock();
+		try {
+			highKey = f;
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -17,6 +17,18 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
+ * <p>
+ * Transactions lock the keys of the file rather than whole leaf pages to prevent
+ * phantoms (key-range, or next-key, locking; see IndexKey): a lock on a key also
+ * covers the gap below it. Iterators READ_ONLY lock every key they pass, and the key
+ * following the last one; they hold a READ_ONLY lock on a leaf page only while they are
+ * positioned on it. Inserting a key READ_WRITE locks it, and checks that no reader
+ * locked the gap it falls in by briefly locking the following key; deleting a key
+ * READ_WRITE locks it and the following key, since the gap below the following key
+ * grows to cover it. Writers still READ_WRITE lock the pages they change until they
+ * complete, because tuples move within and between leaf pages, and pages are logged
+ * and undone as a whole.
+ * 
  * @author Becca Taft
  */
 public class BTreeFile implements DbFile {
@@ -25,6 +37,7 @@ public class BTreeFile implements DbFile {
 	protected final TupleDesc td;
 	protected final int tableid ;
 	protected int keyField;
+	protected final int pageSize;
 	
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +48,27 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, 0);
+	}
+
+	/**
+	 * Constructs a B+ tree file with its own page size. Internal, leaf and
+	 * header pages all use this size (the root pointer page does not).
+	 * 
+	 * @param pageSize - bytes per page of this file, or 0 to use the default
+	 *            page size (BufferPool.getPageSize())
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, int pageSize) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.pageSize = pageSize;
+	}
+
+	// see DbFile.java for javadocs
+	public int getPageSize() {
+		return (pageSize > 0) ? pageSize : BufferPool.getPageSize();
 	}
 
 	/**
@@ -98,19 +128,19 @@ public class BTreeFile implements DbFile {
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
+				byte pageBuf[] = new byte[getPageSize()];
+				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * getPageSize()) != 
+						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * getPageSize()) {
 					throw new IllegalArgumentException(
 							"Unable to seek to correct place in BTreeFile");
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = bis.read(pageBuf, 0, getPageSize());
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
+				if (retval < getPageSize()) {
 					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+							+ getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
@@ -155,7 +185,7 @@ public class BTreeFile implements DbFile {
 			rf.close();
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
+			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * getPageSize());
 			rf.write(data);
 			rf.close();
 		}
@@ -166,7 +196,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ getPageSize());
 	}
 
 	/**
@@ -201,25 +231,168 @@ public class BTreeFile implements DbFile {
                     return (BTreeLeafPage)(this.getPage(tid, dirtypages, pid, perm));
                 case BTreePageId.INTERNAL:
                     BTreeInternalPage pg = (BTreeInternalPage)(this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
-                    Iterator<BTreeEntry> es = pg.iterator();
-                    if (es == null || !es.hasNext())
-                        throw new DbException("Illegal entry iterator.");
-                    if (f == null)
-                        return findLeafPage(tid, dirtypages, es.next().getLeftChild(), perm, f);
-                    BTreeEntry e = es.next();
-                    while (true) {
-                        if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f))
-                            return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
-                        if (es.hasNext()) e = es.next();
-                        else break;
-                    }
-                    return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
+                    return findLeafPage(tid, dirtypages, childFor(pg, f), perm, f);
                 case BTreePageId.HEADER:
                 case BTreePageId.ROOT_PTR:
                 default:
                     throw new DbException("Illegal pageid type.");
             }
 	}
+
+	/**
+	 * @return the child of an internal page under which the left-most leaf page
+	 * possibly containing the key field f is, or the left-most child if f is null
+	 */
+	protected BTreePageId childFor(BTreeInternalPage pg, Field f) throws DbException {
+            Iterator<BTreeEntry> es = pg.iterator();
+            if (es == null || !es.hasNext())
+                throw new DbException("Illegal entry iterator.");
+            BTreeEntry e = es.next();
+            if (f == null)
+                return e.getLeftChild();
+            while (true) {
+                if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f))
+                    return e.getLeftChild();
+                if (es.hasNext()) e = es.next();
+                else break;
+            }
+            return e.getRightChild();
+	}
+
+	/**
+	 * Find and READ_ONLY lock the left-most leaf page possibly containing the key field f,
+	 * like findLeafPage, but hold the locks on the root pointer page and the internal pages
+	 * along the path only until the next page down is locked, unless tid held them already.
+	 * Readers rely on key-range locks, not on locks on internal pages, to keep what they
+	 * read from changing (see lockKeys).
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @param taken - the leaf page's id is added to it if tid did not hold a lock on it before
+	 * @return the leaf page, or null if the tree is empty
+	 */
+	BTreeLeafPage findLeafPageToRead(TransactionId tid, Field f, Collection<PageId> taken)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		synchronized(this) {
+			if (this.f.length() == 0)
+				return null;
+		}
+		PageId parent = BTreeRootPtrPage.getId(tableid);
+		boolean release = !bp.holdsLock(tid, parent);
+		BTreePageId pid = ((BTreeRootPtrPage) bp.getPage(tid, parent, Permissions.READ_ONLY)).getRootId();
+		while (true) {
+			if (pid == null) {
+				if (release)
+					bp.releasePage(tid, parent);
+				return null;
+			}
+			boolean held = bp.holdsLock(tid, pid);
+			Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+			if (release)
+				bp.releasePage(tid, parent);
+			if (pid.pgcateg() == BTreePageId.LEAF) {
+				if (!held)
+					taken.add(pid);
+				return (BTreeLeafPage) p;
+			}
+			parent = pid;
+			release = !held;
+			pid = childFor((BTreeInternalPage) p, f);
+		}
+	}
+
+	/**
+	 * Find and READ_WRITE lock the leaf page holding tuple t. Other transactions may have
+	 * moved t to another page, by splitting or merging pages, since it was read, so if it is
+	 * not where its record id says, it is looked for among the tuples with its key.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple, which tid holds a lock on the key of
+	 * @return the leaf page holding t, with t's record id pointing to it
+	 * @throws DbException if t is not in this file
+	 */
+	private BTreeLeafPage findTuplePage(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid != null && rid.getPageId().getTableId() == tableid) {
+			BTreePageId pageId = new BTreePageId(tableid, rid.getPageId().pageNumber(), 
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			if (page.isSlotUsed(rid.tupleno()) && sameTuple(page.tuples[rid.tupleno()], t))
+				return page;
+		}
+		Field key = t.getField(keyField);
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		BTreeLeafPage page = (rootId == null) ? null
+				: findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+		while (page != null) {
+			for (int i = 0; i < page.numSlots; i++) {
+				if (!page.isSlotUsed(i))
+					continue;
+				Tuple candidate = page.tuples[i];
+				if (candidate.getField(keyField).compare(Op.GREATER_THAN, key))
+					throw new DbException("tried to delete a tuple not in the file");
+				if (sameTuple(candidate, t)) {
+					t.setRecordId(candidate.getRecordId());
+					return page;
+				}
+			}
+			BTreePageId next = page.getRightSiblingId();
+			page = (next == null) ? null
+					: (BTreeLeafPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+		}
+		throw new DbException("tried to delete a tuple not in the file");
+	}
+
+	/** @return true if both tuples have the same field values */
+	private boolean sameTuple(Tuple a, Tuple b) {
+		if (a == b)
+			return true;
+		for (int i = 0; i < td.numFields(); i++)
+			if (!a.getField(i).equals(b.getField(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Find the key following the key field f: the smallest key in this file greater than f,
+	 * or the end of the file. Leaf pages it has to read are READ_ONLY locked only while
+	 * they are read, unless tid held them already.
+	 * 
+	 * @param tid - the transaction id
+	 * @param leaf - the left-most leaf page possibly containing f, or null to find it
+	 * @param f - the key field
+	 * @return the key following f
+	 */
+	IndexKey nextKey(TransactionId tid, BTreeLeafPage leaf, Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		ArrayList<PageId> taken = new ArrayList<PageId>();
+		try {
+			if (leaf == null)
+				leaf = findLeafPageToRead(tid, f, taken);
+			while (leaf != null) {
+				Iterator<Tuple> it = leaf.iterator();
+				while (it.hasNext()) {
+					Field key = it.next().getField(keyField);
+					if (key.compare(Op.GREATER_THAN, f))
+						return new IndexKey(tableid, key);
+				}
+				BTreePageId next = leaf.getRightSiblingId();
+				if (next == null)
+					break;
+				if (!bp.holdsLock(tid, next))
+					taken.add(next);
+				leaf = (BTreeLeafPage) bp.getPage(tid, next, Permissions.READ_ONLY);
+			}
+			return new IndexKey(tableid, null);
+		} finally {
+			for (PageId pid : taken)
+				bp.releasePage(tid, pid);
+		}
+	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
@@ -511,6 +684,14 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BufferPool bp = Database.getBufferPool();
+		Field key = t.getField(keyField);
+
+		// lock the key, and make sure no reader has locked the gap it falls in
+		bp.lockKey(tid, new IndexKey(tableid, key), Permissions.READ_WRITE);
+		IndexKey next = nextKey(tid, null, key);
+		boolean heldNext = bp.holdsLock(tid, next);
+		bp.lockKey(tid, next, Permissions.READ_WRITE);
 
 		// get a read lock on the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
@@ -525,12 +706,25 @@ public class BTreeFile implements DbFile {
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
 		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+
+		// the following key may have changed before the leaf page was locked
+		IndexKey actual;
+		while (!(actual = nextKey(tid, leafPage, key)).equals(next)) {
+			bp.lockKey(tid, actual, Permissions.READ_WRITE);
+			if (!heldNext)
+				bp.releaseKey(tid, next);
+			heldNext = bp.holdsLock(tid, actual);
+			next = actual;
+		}
+
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
+		if (!heldNext)
+			bp.releaseKey(tid, next);
 		
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
@@ -963,10 +1157,23 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BufferPool bp = Database.getBufferPool();
+		Field key = t.getField(keyField);
+
+		// lock the key and the following one, whose gap will cover it
+		bp.lockKey(tid, new IndexKey(tableid, key), Permissions.READ_WRITE);
+		IndexKey next = nextKey(tid, null, key);
+		bp.lockKey(tid, next, Permissions.READ_WRITE);
+
+		BTreeLeafPage page = findTuplePage(tid, dirtypages, t);
+
+		// the following key may have changed before the leaf page was locked
+		IndexKey actual;
+		while (!(actual = nextKey(tid, page, key)).equals(next)) {
+			bp.lockKey(tid, actual, Permissions.READ_WRITE);
+			next = actual;
+		}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -1044,7 +1251,7 @@ public class BTreeFile implements DbFile {
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData(getPageSize());
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
@@ -1094,7 +1301,7 @@ public class BTreeFile implements DbFile {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize()) + emptySlot;
 			}
 		}
 
@@ -1105,7 +1312,7 @@ public class BTreeFile implements DbFile {
 				// create the new page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+				byte[] emptyData = BTreeInternalPage.createEmptyPageData(getPageSize());
 				bw.write(emptyData);
 				bw.close();
 				emptyPageNo = numPages();
@@ -1139,8 +1346,8 @@ public class BTreeFile implements DbFile {
 		
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
+		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * getPageSize());
+		rf.write(BTreePage.createEmptyPageData(getPageSize()));
 		rf.close();
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
@@ -1206,7 +1413,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1216,7 +1423,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1232,15 +1439,15 @@ public class BTreeFile implements DbFile {
 		// now headerId should be set with the headerPage containing the slot corresponding to 
 		// emptyPageNo
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize());
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
-	 * behalf of the specified transaction. This method will acquire a read lock on
-	 * the affected pages of the file, and may block until the lock can be
-	 * acquired.
+	 * behalf of the specified transaction. This method will acquire read locks on
+	 * the keys in the range of the predicate and the key following it, and may block
+	 * until the locks can be acquired.
 	 * 
 	 * @param tid - the transaction id
 	 * @param ipred - the index predicate value to filter on
@@ -1252,8 +1459,8 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
-	 * will acquire a read lock on the affected pages of the file, and may block until 
-	 * the lock can be acquired.
+	 * will acquire read locks on the keys of the file and its end, and may block until 
+	 * the locks can be acquired.
 	 * 
 	 * @param tid - the transaction id
 	 * @return an iterator for all the tuples in this file
@@ -1268,170 +1475,267 @@ public class BTreeFile implements DbFile {
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeFile
  */
-class BTreeFileIterator extends AbstractDbFileIterator {
+class BTreeFileIterator extends BTreeSearchIterator {
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		super(f, tid, null);
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File.
+ * <p>
+ * It READ_ONLY locks the key of every tuple it passes in the range of the
+ * predicate, and the key following them, so that no tuple can appear in or
+ * vanish from the range it read (see BTreeFile). It READ_ONLY locks the leaf
+ * page it is positioned on, keeping the page it came from locked until it has
+ * locked the first key of the new one, and releases the locks as it moves on
+ * unless tid held them before. If a key is locked by another transaction, it
+ * releases its pages while it waits for the key, then finds its place again
+ * from the root. Once tid holds many locks (see BufferPool#escalate) it keeps
+ * the leaf pages locked instead of locking their keys.
+ * <p>
+ * For READ_COMMITTED transactions it also releases the key locks it took on a
+ * leaf page when it moves off the page, and for REPEATABLE_READ ones it does not
+ * lock the key following the range (see IsolationLevel).
+ */
+class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
 
 	TransactionId tid;
 	BTreeFile f;
+	IndexPredicate ipred;
+
+	/** leaf pages this iterator locked and has not released */
+	private final ArrayList<PageId> taken = new ArrayList<PageId>();
+	/** the key of the last tuple passed, or null before the first */
+	private Field lastKey = null;
+	/** true after finding its place again, until it is past lastKey */
+	private boolean skipThrough = false;
+	/** true once it keeps its leaf pages locked instead of locking keys */
+	private boolean escalated = false;
+	/** for READ_COMMITTED, the keys locked on the current leaf page and on the
+	    pages it has left that tid did not hold before */
+	private final ArrayList<IndexKey> keysTaken = new ArrayList<IndexKey>();
+	private final ArrayList<IndexKey> keysLeft = new ArrayList<IndexKey>();
+	private boolean done = false;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
 	 */
-	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
 		this.f = f;
 		this.tid = tid;
+		this.ipred = ipred;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Open this iterator by getting an iterator on the first leaf page applicable
+	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		lastKey = null;
+		skipThrough = false;
+		escalated = false;
+		done = false;
+		position();
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
-	 * 
-	 * @return the next tuple, or null if none exists
+	 * Position the iterator on the left-most leaf page possibly containing lastKey,
+	 * or, before the first tuple, the first key the predicate may hold for
 	 */
-	@Override
-	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
+	private void position() throws DbException, TransactionAbortedException {
+		Field start = lastKey;
+		if(start == null && ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ)) {
+			start = ipred.getField();
 		}
-
-		if (it == null)
-			return null;
-		return it.next();
+		curp = f.findLeafPageToRead(tid, start, taken);
+		it = (curp == null) ? null : curp.iterator();
+		skipThrough = (lastKey != null);
+		if (curp != null)
+			checkEscalation();
 	}
 
-	/**
-	 * rewind this iterator back to the beginning of the tuples
-	 */
-	public void rewind() throws DbException, TransactionAbortedException {
-		close();
-		open();
+	private void checkEscalation() {
+		BufferPool bp = Database.getBufferPool();
+		if (!escalated && !bp.isSnapshot(tid) && bp.escalate(tid, curp.getId()))
+			escalated = true;
 	}
 
 	/**
-	 * close the iterator
+	 * @return the next tuple in the file, following the right sibling pointers
+	 * as needed, or null at the end of the file
 	 */
-	public void close() {
-		super.close();
-		it = null;
-		curp = null;
+	private Tuple nextTuple() throws TransactionAbortedException, DbException {
+		while (curp != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (skipThrough && !t.getField(f.keyField()).compare(Op.GREATER_THAN, lastKey))
+					continue;
+				skipThrough = false;
+				return t;
+			}
+			BTreePageId nextp = curp.getRightSiblingId();
+			if (nextp == null)
+				return null;
+			if (!Database.getBufferPool().holdsLock(tid, nextp))
+				taken.add(nextp);
+			keysLeft.addAll(keysTaken);
+			keysTaken.clear();
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					nextp, Permissions.READ_ONLY);
+			it = curp.iterator();
+			checkEscalation();
+		}
+		return null;
 	}
-}
 
-/**
- * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
- */
-class BTreeSearchIterator extends AbstractDbFileIterator {
-
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	/** @return true if a tuple with the specified key comes before the range of the predicate */
+	private boolean beforeRange(Field key) {
+		if (ipred == null)
+			return false;
+		switch (ipred.getOp()) {
+		case EQUALS:
+		case GREATER_THAN_OR_EQ:
+			return key.compare(Op.LESS_THAN, ipred.getField());
+		case GREATER_THAN:
+			return key.compare(Op.LESS_THAN_OR_EQ, ipred.getField());
+		default:
+			return false;
+		}
+	}
 
-	TransactionId tid;
-	BTreeFile f;
-	IndexPredicate ipred;
+	/** @return true if a tuple with the specified key, which the predicate does not hold for,
+	    comes after the range of the predicate */
+	private boolean pastRange(Field key) {
+		switch (ipred.getOp()) {
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			return true;
+		case EQUALS:
+			return key.compare(Op.GREATER_THAN, ipred.getField());
+		default:
+			return false;
+		}
+	}
 
 	/**
-	 * Constructor for this iterator
-	 * @param f - the BTreeFile containing the tuples
-	 * @param tid - the transaction id
-	 * @param ipred - the predicate to filter on
+	 * READ_ONLY lock a key, or the end of the file. If another transaction holds a
+	 * conflicting lock on it, release the leaf pages, wait for the key, and find
+	 * the iterator's place again.
+	 * 
+	 * @param key - the key, or null for the end of the file
+	 * @return true if the key was locked without waiting
 	 */
-	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
-		this.f = f;
-		this.tid = tid;
-		this.ipred = ipred;
+	private boolean lockKey(Field key) throws TransactionAbortedException, DbException {
+		BufferPool bp = Database.getBufferPool();
+		IndexKey k = new IndexKey(f.getId(), key);
+		boolean release = tid.getIsolationLevel() == IsolationLevel.READ_COMMITTED
+				&& !bp.holdsLock(tid, k);
+		if (bp.tryLockKey(tid, k, Permissions.READ_ONLY)) {
+			if (release)
+				keysTaken.add(k);
+			return true;
+		}
+		releasePages(true);
+		bp.lockKey(tid, k, Permissions.READ_ONLY);
+		if (release)
+			keysTaken.add(k);
+		position();
+		return false;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * Release the leaf pages this iterator locked, except the current one unless all is set,
+	 * and for READ_COMMITTED the keys on them. After escalation the page locks are kept until
+	 * the transaction completes.
 	 */
-	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+	private void releasePages(boolean all) {
+		BufferPool bp = Database.getBufferPool();
+		if (all)
+			keysLeft.addAll(keysTaken);
+		for (IndexKey k : keysLeft)
+			bp.releaseReadLock(tid, k);
+		keysLeft.clear();
+		if (all)
+			keysTaken.clear();
+		if (escalated) {
+			taken.clear();
+			return;
 		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		Iterator<PageId> pids = taken.iterator();
+		while (pids.hasNext()) {
+			PageId pid = pids.next();
+			if (!all && curp != null && pid.equals(curp.getId()))
+				continue;
+			bp.releasePage(tid, pid);
+			pids.remove();
 		}
-		it = curp.iterator();
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * the predicate or from the next page by following the right sibling pointer,
+	 * locking the keys passed.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
+		while (!done) {
+			Tuple t = nextTuple();
+			Field key = (t == null) ? null : t.getField(f.keyField());
+			if (key != null && beforeRange(key))
+				continue;
+			if (tid.getIsolationLevel() == IsolationLevel.REPEATABLE_READ
+					&& (t == null || (ipred != null && !key.compare(ipred.getOp(), ipred.getField())
+							&& pastRange(key)))) {
+				// past the range: leave the gap at its end unlocked
+				finish();
+				return null;
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			if (key == null || lastKey == null || !key.equals(lastKey)) {
+				if (!escalated && !lockKey(key))
+					continue;
+				releasePages(false);
+			}
+			if (t == null) {
+				// the end of the file is locked too: nothing can be appended to the range
+				finish();
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			lastKey = key;
+			if (ipred == null || key.compare(ipred.getOp(), ipred.getField()))
+				return t;
+			if (pastRange(key)) {
+				finish();
+				return null;
 			}
 		}
-
 		return null;
 	}
 
+	private void finish() {
+		done = true;
+		releasePages(true);
+		it = null;
+		curp = null;
+	}
+
 	/**
 	 * rewind this iterator back to the beginning of the tuples
 	 */
@@ -1445,6 +1749,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		finish();
 	}
 }
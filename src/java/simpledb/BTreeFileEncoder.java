@@ -226,12 +226,12 @@ public class BTreeFileEncoder {
 		}
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
-		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8 - Page.LSN_SIZE * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - Page.LSN_SIZE * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -512,7 +512,8 @@ public class BTreeFileEncoder {
 		}
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
-		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		// the page's LSN, 0 here, is in the padding at the end
+		int nrecords = (npagebytes * 8 - pointerbytes * 8 - Page.LSN_SIZE * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
 		// nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -627,7 +628,8 @@ public class BTreeFileEncoder {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		// the page's LSN, 0 here, is in the padding at the end
+		int nentries = (npagebytes * 8 - pointerbytes * 8 - Page.LSN_SIZE * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
 		// nentries bits, plus 1 for the extra child pointer.
@@ -716,6 +718,7 @@ public class BTreeFileEncoder {
 		dos.writeByte((byte) rootCategory); // root page category
 
 		dos.writeInt(header); // header pointer
+		dos.writeLong(0); // LSN
 
 		return baos.toByteArray();
 	}
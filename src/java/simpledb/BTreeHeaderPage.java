@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.locks.*;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -19,24 +20,29 @@ public class BTreeHeaderPage implements Page {
 	final BTreePageId pid;
 	final byte header[];
 	final int numSlots;
+	final int pageSize;
 
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
+	private long lsn; // see Page#getLSN
 
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
 	 * The format of a BTreeHeaderPage is two pointers to the next and previous
 	 * header pages, followed by a set of bytes indicating which pages in the file
-	 * are used or available
+	 * are used or available, and the page's LSN in the last 8 bytes. The page
+	 * size is data.length.
 	 * @see BufferPool#getPageSize()
 	 * 
 	 */
 	public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
-		this.numSlots = getNumSlots();
+		this.pageSize = data.length;
+		this.numSlots = getNumSlots(pageSize);
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the next and prev pointers
@@ -55,9 +61,10 @@ public class BTreeHeaderPage implements Page {
 		}
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
+		header = new byte[getHeaderSize(pageSize)];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
+		lsn = dis.readLong();
 
 		dis.close();
 
@@ -68,24 +75,36 @@ public class BTreeHeaderPage implements Page {
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
-		for (int i=0; i<header.length; i++)
-			header[i] = (byte) 0xFF;
+		latch.writeLock().lock();
+		try {
+			for (int i=0; i<header.length; i++)
+				header[i] = (byte) 0xFF;
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
 	 * Computes the number of bytes in the header while saving room for pointers
 	 */
-	private static int getHeaderSize() {        
+	private static int getHeaderSize(int pageSize) {        
 		// pointerBytes: nextPage and prevPage pointers
 		int pointerBytes = 2 * INDEX_SIZE; 
-		return BufferPool.getPageSize() - pointerBytes;
+		return pageSize - pointerBytes - LSN_SIZE;
 	}
 
 	/**
-	 * Computes the number of slots in the header
+	 * Computes the number of slots in the header of a default-size page
 	 */
 	public static int getNumSlots() {        
-		return getHeaderSize() * 8;
+		return getNumSlots(BufferPool.getPageSize());
+	}
+
+	/**
+	 * Computes the number of slots in the header of a page of pageSize bytes
+	 */
+	public static int getNumSlots(int pageSize) {
+		return getHeaderSize(pageSize) * 8;
 	}
 
 	/** Return a view of this page before it was modified
@@ -120,6 +139,18 @@ public class BTreeHeaderPage implements Page {
 		return pid;
 	}
 
+	public ReadWriteLock getLatch() {
+		return latch;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -132,41 +163,51 @@ public class BTreeHeaderPage implements Page {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the next and prev pointers
+		latch.readLock().lock();
 		try {
-			dos.writeInt(nextPage);
+			int len = pageSize;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(prevPage);
+			// write out the next and prev pointers
+			try {
+				dos.writeInt(nextPage);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				dos.writeInt(prevPage);
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			// create the header of the page
+			for (int i=0; i<header.length; i++) {
+				try {
+					dos.writeByte(header[i]);
+				} catch (IOException e) {
+					// this really shouldn't happen
+					e.printStackTrace();
+				}
+			}
 			try {
-				dos.writeByte(header[i]);
+				dos.writeLong(lsn);
 			} catch (IOException e) {
-				// this really shouldn't happen
 				e.printStackTrace();
 			}
-		}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		return baos.toByteArray();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
+		}
 	}
 
 	/**
@@ -179,8 +220,15 @@ public class BTreeHeaderPage implements Page {
 	 * @return The returned ByteArray.
 	 */
 	public static byte[] createEmptyPageData() {
-		int len = BufferPool.getPageSize();
-		return new byte[len]; //all 0
+		return createEmptyPageData(BufferPool.getPageSize());
+	}
+
+	/**
+	 * Generate a byte array corresponding to an empty BTreeHeaderPage of a
+	 * file with the specified page size.
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		return new byte[pageSize]; //all 0
 	}
 
 	/**
@@ -211,17 +259,22 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
-		if(id == null) {
-			prevPage = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setPrevPageId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				prevPage = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("prevPage must be a header page");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setPrevPageId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("prevPage must be a header page");
+				}
+				prevPage = id.pageNumber();
 			}
-			prevPage = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -231,17 +284,22 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
-		if(id == null) {
-			nextPage = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setNextPageId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				nextPage = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("nextPage must be a header page");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setNextPageId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("nextPage must be a header page");
+				}
+				nextPage = id.pageNumber();
 			}
-			nextPage = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -277,14 +335,19 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
-		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		latch.writeLock().lock();
+		try {
+			int headerbit = i % 8;
+			int headerbyte = (i - headerbit) / 8;
+
+			Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+			if(value)
+				header[headerbyte] |= 1 << headerbit;
+			else
+				header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
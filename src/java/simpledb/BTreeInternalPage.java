@@ -46,10 +46,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * has m+1 pointers to children), the category of all child pages (either 
+	 * leaf or internal), and the page's LSN (see {@link Page#getLSN}), which is
+	 * in the last 8 bytes.
 	 *  Specifically, the number of entries is equal to: <p>
-	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
+	 *          floor((page size*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
 	 * (key + child pointer), which can be determined via the key field and 
 	 * {@link Catalog#getTupleDesc}.
@@ -67,6 +68,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.pageSize = data.length;
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -107,6 +109,7 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
+		lsn = readLSN(data);
 
 		setBeforeImage();
 	}
@@ -122,9 +125,9 @@ public class BTreeInternalPage extends BTreePage {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header, LSN
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + LSN_SIZE * 8; 
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
@@ -236,105 +239,111 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent pointer
+		latch.readLock().lock();
 		try {
-			dos.writeInt(parent);
+			int len = pageSize;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
+			// write out the parent pointer
+			try {
+				dos.writeInt(parent);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+			// write out the child page category
 			try {
-				dos.writeByte(header[i]);
+				dos.writeByte((byte) childCategory);
+
 			} catch (IOException e) {
-				// this really shouldn't happen
 				e.printStackTrace();
 			}
-		}
 
-		// create the keys
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
+			// create the header of the page
+			for (int i=0; i<header.length; i++) {
+				try {
+					dos.writeByte(header[i]);
+				} catch (IOException e) {
+					// this really shouldn't happen
+					e.printStackTrace();
+				}
+			}
+
+			// create the keys
+			// start from 1 because the first key slot is not used
+			// since a node with m keys has m+1 pointers
+			for (int i=1; i<keys.length; i++) {
+
+				// empty slot
+				if (!isSlotUsed(i)) {
+					for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+						try {
+							dos.writeByte(0);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+
 					}
+					continue;
+				}
 
+				// non-empty slot
+				try {
+					keys[i].serialize(dos);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-				continue;
-			}
 
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
 
-		}
+			// create the child pointers
+			for (int i=0; i<children.length; i++) {
 
-		// create the child pointers
-		for (int i=0; i<children.length; i++) {
+				// empty slot
+				if (!isSlotUsed(i)) {
+					for (int j=0; j<INDEX_SIZE; j++) {
+						try {
+							dos.writeByte(0);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
 
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
 					}
+					continue;
+				}
+
+				// non-empty slot
+				try {
+					dos.writeInt(children[i]);
 
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-				continue;
 			}
 
-			// non-empty slot
+			// padding
+			int zerolen = pageSize - (INDEX_SIZE + 1 + header.length + 
+					td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length + LSN_SIZE); 
+			byte[] zeroes = new byte[zerolen];
 			try {
-				dos.writeInt(children[i]);
-
+				dos.write(zeroes, 0, zerolen);
+				dos.writeLong(lsn);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-		}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -381,7 +390,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to delete
 	 */
 	public void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
-		deleteEntry(e, true);
+		latch.writeLock().lock();
+		try {
+			deleteEntry(e, true);
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -394,7 +408,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to delete
 	 */
 	public void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
-		deleteEntry(e, false);
+		latch.writeLock().lock();
+		try {
+			deleteEntry(e, false);
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -406,35 +425,40 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to update entry with null rid");
-		if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to update entry on invalid page or table");
-		if (!isSlotUsed(rid.tupleno()))
-			throw new DbException("tried to update null entry.");
+		latch.writeLock().lock();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to update entry with null rid");
+			if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to update entry on invalid page or table");
+			if (!isSlotUsed(rid.tupleno()))
+				throw new DbException("tried to update null entry.");
 		
-		for(int i = rid.tupleno() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
-		}
-		for(int i = rid.tupleno() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().pageNumber();
-				break;
-			}	
+			for(int i = rid.tupleno() + 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be less than or equal to keys on the right");
+					}
+					break;
+				}	
+			}
+			for(int i = rid.tupleno() - 1; i >= 0; i--) {
+				if(isSlotUsed(i)) {
+					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be greater than or equal to keys on the left");
+					}
+					children[i] = e.getLeftChild().pageNumber();
+					break;
+				}	
+			}
+			children[rid.tupleno()] = e.getRightChild().pageNumber(); 
+			keys[rid.tupleno()] = e.getKey();
+		} finally {
+			latch.writeLock().unlock();
 		}
-		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
-		keys[rid.tupleno()] = e.getKey();
 	}
 
 	/**
@@ -445,108 +469,113 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
-			throw new DbException("key field type mismatch, in insertEntry");
+		latch.writeLock().lock();
+		try {
+			if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+				throw new DbException("key field type mismatch, in insertEntry");
 
-		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
-			throw new DbException("table id mismatch in insertEntry");
+			if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in insertEntry");
 
-		if(childCategory == 0) {
-			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+			if(childCategory == 0) {
+				if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+					throw new DbException("child page category mismatch in insertEntry");
+
+				childCategory = e.getLeftChild().pgcateg();
+			}
+			else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 				throw new DbException("child page category mismatch in insertEntry");
 
-			childCategory = e.getLeftChild().pgcateg();
-		}
-		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
-			throw new DbException("child page category mismatch in insertEntry");
-
-		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().pageNumber();
-			children[1] = e.getRightChild().pageNumber();
-			keys[1] = e.getKey();
-			markSlotUsed(0, true);
-			markSlotUsed(1, true);
-			e.setRecordId(new RecordId(pid, 1));
-			return;
-		}
+			// if this is the first entry, add it and return
+			if(getNumEmptySlots() == getMaxEntries()) {
+				children[0] = e.getLeftChild().pageNumber();
+				children[1] = e.getRightChild().pageNumber();
+				keys[1] = e.getKey();
+				markSlotUsed(0, true);
+				markSlotUsed(1, true);
+				e.setRecordId(new RecordId(pid, 1));
+				return;
+			}
 
-		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+			// find the first empty slot, starting from 1
+			int emptySlot = -1;
+			for (int i=1; i<numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
+				}
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called insertEntry on page with no empty slots.");        
+			if (emptySlot == -1)
+				throw new DbException("called insertEntry on page with no empty slots.");        
 
-		// find the child pointer matching the left or right child in this entry
-		int lessOrEqKey = -1;
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(children[i] == e.getLeftChild().pageNumber() || children[i] == e.getRightChild().pageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().pageNumber() + ", right child " + 
-								e.getRightChild().pageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
+			// find the child pointer matching the left or right child in this entry
+			int lessOrEqKey = -1;
+			for (int i=0; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(children[i] == e.getLeftChild().pageNumber() || children[i] == e.getRightChild().pageNumber()) {
+						if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().pageNumber() + ", right child " + 
+									e.getRightChild().pageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						lessOrEqKey = i;
+						if(children[i] == e.getRightChild().pageNumber()) {
+							children[i] = e.getLeftChild().pageNumber();
+						}
 					}
-					lessOrEqKey = i;
-					if(children[i] == e.getRightChild().pageNumber()) {
-						children[i] = e.getLeftChild().pageNumber();
+					else if(lessOrEqKey != -1) {
+						// validate that the next key is greater than or equal to the one we are inserting
+						if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().pageNumber() + ", right child " + 
+									e.getRightChild().pageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						break;
 					}
 				}
-				else if(lessOrEqKey != -1) {
-					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().pageNumber() + ", right child " + 
-								e.getRightChild().pageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
-					}
-					break;
-				}
 			}
-		}
 
-		if(lessOrEqKey == -1) {
-			throw new DbException("attempt to insert invalid entry with left child " + 
-					e.getLeftChild().pageNumber() + ", right child " + 
-					e.getRightChild().pageNumber() + " and key " + e.getKey() +
-					" HINT: one of these children must match an existing child on the page" +
-					" and this key must be correctly ordered in between that child's" +
-					" left and right keys");
-		}
+			if(lessOrEqKey == -1) {
+				throw new DbException("attempt to insert invalid entry with left child " + 
+						e.getLeftChild().pageNumber() + ", right child " + 
+						e.getRightChild().pageNumber() + " and key " + e.getKey() +
+						" HINT: one of these children must match an existing child on the page" +
+						" and this key must be correctly ordered in between that child's" +
+						" left and right keys");
+			}
 
-		// shift entries back or forward to fill empty slot and make room for new entry
-		// while keeping entries in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
+			// shift entries back or forward to fill empty slot and make room for new entry
+			// while keeping entries in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveEntry(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
 			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
+			else {
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveEntry(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new entry into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().pageNumber();
-		e.setRecordId(new RecordId(pid, goodSlot));
+			// insert new entry into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
+			keys[goodSlot] = e.getKey();
+			children[goodSlot] = e.getRightChild().pageNumber();
+			e.setRecordId(new RecordId(pid, goodSlot));
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
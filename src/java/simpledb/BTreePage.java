@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.locks.*;
 
 import simpledb.Predicate.Op;
 
@@ -22,10 +23,13 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected int pageSize; // the length of the data the page was read from
 
 	protected int parent; // parent is always internal node or 0 for root node
+	protected long lsn; // see Page#getLSN
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -35,7 +39,7 @@ public abstract class BTreePage implements Page {
 	 * has m+1 pointers to children), and the category of all child pages (either 
 	 * leaf or internal).
 	 *  Specifically, the number of entries is equal to: <p>
-	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
+	 *          floor((page size*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
 	 * (key + child pointer), which can be determined via the key field and 
 	 * {@link Catalog#getTupleDesc}.
@@ -55,6 +59,7 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.pageSize = BufferPool.getPageSize();
 	}
 
 	/**
@@ -74,8 +79,15 @@ public abstract class BTreePage implements Page {
 	 * @return The returned ByteArray.
 	 */
 	public static byte[] createEmptyPageData() {
-		int len = BufferPool.getPageSize();
-		return new byte[len]; //all 0
+		return createEmptyPageData(BufferPool.getPageSize());
+	}
+
+	/**
+	 * Generate a byte array corresponding to an empty BTreePage of a file
+	 * with the specified page size.
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		return new byte[pageSize]; //all 0
 	}
 
 	/**
@@ -95,23 +107,48 @@ public abstract class BTreePage implements Page {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setParentId(BTreePageId id) throws DbException {
-		if(id == null) {
-			throw new DbException("parent id must not be null");
-		}
-		if(id.getTableId() != pid.getTableId()) {
-			throw new DbException("table id mismatch in setParentId");
-		}
-		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
-			throw new DbException("parent must be an internal node or root pointer");
-		}
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			parent = 0;
-		}
-		else {
-			parent = id.pageNumber();
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				throw new DbException("parent id must not be null");
+			}
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setParentId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
+				throw new DbException("parent must be an internal node or root pointer");
+			}
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				parent = 0;
+			}
+			else {
+				parent = id.pageNumber();
+			}
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
+	public ReadWriteLock getLatch() {
+		return latch;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return the LSN stored in the last {@link Page#LSN_SIZE} bytes of the
+	 * specified page data
+	 */
+	protected static long readLSN(byte[] data) {
+		return java.nio.ByteBuffer.wrap(data).getLong(data.length - LSN_SIZE);
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
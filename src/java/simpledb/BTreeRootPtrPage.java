@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.locks.*;
 
 /**
  * BTreeRootPtrPage stores the pointer to the root node used in the B+ tree and
@@ -10,7 +11,7 @@ import java.io.*;
  */
 public class BTreeRootPtrPage implements Page {
 	// size of this page
-	public final static int PAGE_SIZE = 9;
+	public final static int PAGE_SIZE = 9 + LSN_SIZE;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -21,8 +22,10 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private long lsn; // see Page#getLSN
 
 	private byte[] oldData;
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Constructor.
@@ -31,7 +34,7 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page and the page's LSN
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,6 +46,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the header pointer
 		header = dis.readInt();
+		lsn = dis.readLong();
 		
 		setBeforeImage();
 	}
@@ -68,6 +72,18 @@ public class BTreeRootPtrPage implements Page {
 		return new BTreePageId(tableid, 0, BTreePageId.ROOT_PTR);
 	}
 
+	public ReadWriteLock getLatch() {
+		return latch;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this root pointer page.
 	 * Used to serialize this root pointer page to disk.
@@ -78,38 +94,44 @@ public class BTreeRootPtrPage implements Page {
 	 * @return A byte array corresponding to the bytes of this root pointer page.
 	 */
 	public byte[] getPageData(){
-		int len = PAGE_SIZE;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		latch.readLock().lock();
+		try {
+			int len = PAGE_SIZE;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		// write out the root pointer (page number of the root page)
-		try{
-			dos.writeInt(root);
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+			// write out the root pointer (page number of the root page)
+			try{
+				dos.writeInt(root);
+			}catch(IOException e){
+				e.printStackTrace();
+			}
 
-		// write out the category of the root page (leaf or internal)
-		try{
-			dos.writeByte((byte) rootCategory);
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+			// write out the category of the root page (leaf or internal)
+			try{
+				dos.writeByte((byte) rootCategory);
+			}catch(IOException e){
+				e.printStackTrace();
+			}
 
-		// write out the header pointer (page number of the first header page)
-		try{
-			dos.writeInt(header);
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+			// write out the header pointer (page number of the first header page)
+			try{
+				dos.writeInt(header);
+				dos.writeLong(lsn);
+			}catch(IOException e){
+				e.printStackTrace();
+			}
 
-		try {
-			dos.flush();
-		}catch(IOException e) {
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
 
-		return baos.toByteArray();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
+		}
 	}
 
 	/**
@@ -168,18 +190,23 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
-		if(id == null) {
-			root = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRootId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				root = 0;
 			}
-			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("root must be an internal node or leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRootId");
+				}
+				if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("root must be an internal node or leaf node");
+				}
+				root = id.pageNumber();
+				rootCategory = id.pgcateg();
 			}
-			root = id.pageNumber();
-			rootCategory = id.pgcateg();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -200,17 +227,22 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
-		if(id == null) {
-			header = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setHeaderId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				header = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("header must be of type BTreePageId.HEADER");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setHeaderId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("header must be of type BTreePageId.HEADER");
+				}
+				header = id.pageNumber();
 			}
-			header = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -11,6 +11,27 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Files may use different page sizes, so the pool's capacity is a number of
+ * bytes (numPages default-size pages) rather than a number of pages: each
+ * cached page occupies a frame of its file's page size.
+ * <p>
+ * The pool is STEAL/NO-FORCE and relies on the {@link LogFile} for
+ * durability: a dirty page of an uncommitted transaction may be evicted,
+ * but an UPDATE record for it is written and forced before the page reaches
+ * disk; a committing transaction only logs the final images of the pages
+ * it dirtied and forces the log, and the pages themselves are written
+ * whenever they are evicted or flushed. Its locks are released as soon as
+ * its commit record is in the log buffer, before the force (see
+ * {@link #setEarlyLockRelease}).
+ * <p>
+ * Transactions may also read a snapshot of the database instead of taking
+ * shared locks (see {@link #beginSnapshot}); the committed versions of
+ * pages they still need are kept in a {@link PageVersions}. Optimistic
+ * transactions read snapshots too, and are validated when they commit
+ * (see {@link #beginOptimistic}). Transactions at a weaker isolation level
+ * than SERIALIZABLE hold some of their shared locks for less time (see
+ * {@link IsolationLevel} and {@link #releaseReadLock(TransactionId, PageId)}).
  * 
  * @Threadsafe, all fields are final
  */
@@ -29,12 +50,41 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 100;
 
+    /** Number of record and key locks a transaction may hold before it
+        locks whole pages instead where it can (see #escalate) */
+    static int LOCK_ESCALATION_THRESHOLD = 1000;
+
     private int numPages;
     private ConcurrentHashMap<PageId, Page> pageMap;
-    private LockManager lm;
+    /** bytes held by each cached page, and their total; protected by this */
+    private HashMap<PageId, Integer> frameSizes;
+    private long usedBytes;
+    private LockManager<PageId> lm;
+    /** record locks, taken under INTENTION_SHARED and INTENTION_EXCLUSIVE
+        page locks */
+    private LockManager<RecordId> rlm;
+    /** key-range locks on the keys of B+ tree files */
+    private LockManager<IndexKey> klm;
+    /** protected by this */
+    private final PageVersions versions = new PageVersions();
+    /** the pages each optimistic transaction has read; protected by this */
+    private final HashMap<TransactionId, Set<PageId>> readSets = new HashMap<TransactionId, Set<PageId>>();
+    /** held while an optimistic transaction is validated and its pages
+        committed, so that no other one commits in between */
+    private final Object validation = new Object();
+    /** transactions whose pages are logged for commit but which still
+        hold their locks: their pages hold committed changes; protected by
+        this */
+    private final HashSet<TransactionId> committing = new HashSet<TransactionId>();
+    private volatile boolean earlyLockRelease = true;
+    /** the last thread started by writePagesInBackground; protected by
+        writerLock rather than this, so starting one never waits for the pool */
+    private Thread backgroundWriter;
+    private final Object writerLock = new Object();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages of the default
+     * page size (fewer if they are larger, more if they are smaller).
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
@@ -42,13 +92,30 @@ public class BufferPool {
         // some code goes here
         this.numPages = numPages;
         pageMap = new ConcurrentHashMap<PageId, Page>();
-        lm = new LockManager();
+        frameSizes = new HashMap<PageId, Integer>();
+        usedBytes = 0;
+        lm = new LockManager<PageId>();
+        rlm = new LockManager<RecordId>();
+        klm = new LockManager<IndexKey>();
     }
     
     public static int getPageSize() {
       return pageSize;
     }
     
+    /**
+     * @return the page size of the specified table's file, or the default
+     *   page size if the table is not in the catalog
+     * @see DbFile#getPageSize
+     */
+    public static int getPageSize(int tableId) {
+        try {
+            return Database.getCatalog().getDatabaseFile(tableId).getPageSize();
+        } catch (NoSuchElementException e) {
+            return pageSize;
+        }
+    }
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
     	BufferPool.pageSize = pageSize;
@@ -70,6 +137,10 @@ public class BufferPool {
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
      *
+     * A page locked with INTENTION_EXCLUSIVE is marked dirty like one
+     * locked with READ_WRITE; the caller must then lock each record it
+     * changes (see #lockRecord) and latch the page while changing it.
+     *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
@@ -77,34 +148,317 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        boolean write = perm.equals(Permissions.READ_WRITE) || perm.equals(Permissions.INTENTION_EXCLUSIVE);
+        if (!write && !lm.holdsExclusiveLock(tid, pid)) {
+            synchronized (this) {
+                if (versions.isSnapshot(tid)) {
+                    Set<PageId> reads = readSets.get(tid);
+                    if (reads != null)
+                        reads.add(pid);
+                    return versions.read(tid, cachedPage(pid));
+                }
+            }
+        }
+        if (perm.equals(Permissions.INTENTION_EXCLUSIVE) && isSnapshot(tid)) {
+            // other writers of the page would change a snapshot's own pages
+            perm = Permissions.READ_WRITE;
+        }
         // Acquire the proper lock first
+        acquire(lm, tid, pid, perm);
+        // Now we have the proper lock
+        Page p;
+        synchronized (this) {
+            if (write && versions.isSnapshot(tid) && versions.changedSince(tid, pid)) {
+                // first committer wins: tid's snapshot missed that change
+                throw new TransactionAbortedException();
+            }
+            p = cachedPage(pid);
+        }
+        
+        if (write)
+        	markDirty(p, tid);
+        return p;
+    }
+
+    /**
+     * Wait for a lock, aborting the transaction if it cannot be had in time.
+     */
+    private <K> void acquire(LockManager<K> m, TransactionId tid, K key, Permissions perm)
+        throws TransactionAbortedException {
         long start = System.currentTimeMillis();
-        boolean success = lm.acquireLock(tid, pid, perm);
+        boolean success = m.acquireLock(tid, key, perm);
         Random r = new Random();
         while (!success) {
             try {
                 long end = System.currentTimeMillis();
                 if (end - start > (TIMEOUT_THRESHOLD + r.nextInt(100))) {
-                    System.out.println("Abort: waiting for Tid = " + tid.getId() + ", Pid = " + pid.toString() + ", Perm = " + perm.toString());
+                    System.out.println("Abort: waiting for Tid = " + tid.getId() + ", Key = " + key.toString() + ", Perm = " + perm.toString());
                     throw new TransactionAbortedException();
                 }
                 Thread.sleep(10);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-            success = lm.acquireLock(tid, pid, perm);
+            success = m.acquireLock(tid, key, perm);
         }
-        // Now we have the proper lock
-        if (!pageMap.containsKey(pid)) {
-           if (pageMap.size() == numPages)
-               evictPage();
-           pageMap.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-           pageMap.get(pid).setBeforeImage();
+    }
+
+    /**
+     * Lock a record of a page the transaction has locked with
+     * INTENTION_SHARED or INTENTION_EXCLUSIVE. Will block until the lock is
+     * granted, and abort the transaction if it takes too long. Snapshot
+     * transactions (see #beginSnapshot) take no READ_ONLY record locks.
+     *
+     * @param perm READ_ONLY or READ_WRITE
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if (perm.equals(Permissions.READ_ONLY) && isSnapshot(tid))
+            return;
+        acquire(rlm, tid, rid, perm);
+    }
+
+    /**
+     * Take a READ_WRITE lock on a record if no other transaction holds one
+     * on it, without waiting. Does not take the pool's monitor, so it may
+     * be called with a page latched.
+     *
+     * @return true if tid now holds the lock
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        try {
+            return rlm.acquireLock(tid, rid, Permissions.READ_WRITE);
+        } catch (TransactionAbortedException e) {
+            return false;
         }
-        
-        if (perm==Permissions.READ_WRITE) 
-        	pageMap.get(pid).markPageDirty(true, tid);
-        return pageMap.get(pid);
+    }
+
+    /**
+     * Lock a key of a B+ tree file, and with it the gap below the key (see
+     * IndexKey). Will block until the lock is granted, and abort the
+     * transaction if it takes too long. Snapshot transactions take no
+     * READ_ONLY key locks.
+     *
+     * @param perm READ_ONLY or READ_WRITE
+     */
+    public void lockKey(TransactionId tid, IndexKey key, Permissions perm)
+        throws TransactionAbortedException {
+        if (perm.equals(Permissions.READ_ONLY) && isSnapshot(tid))
+            return;
+        acquire(klm, tid, key, perm);
+    }
+
+    /**
+     * Lock a key of a B+ tree file if no other transaction holds a
+     * conflicting lock on it, without waiting. Does not take the pool's
+     * monitor.
+     *
+     * @param perm READ_ONLY or READ_WRITE
+     * @return true if tid now holds the lock (or, for READ_ONLY, reads a
+     *   snapshot and needs none)
+     */
+    public boolean tryLockKey(TransactionId tid, IndexKey key, Permissions perm) {
+        if (perm.equals(Permissions.READ_ONLY) && isSnapshot(tid))
+            return true;
+        try {
+            return klm.acquireLock(tid, key, perm);
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Release a key lock before the transaction completes. Only safe for
+     * locks that protect nothing tid has read or written, such as the
+     * instant next-key lock of an insert.
+     */
+    public void releaseKey(TransactionId tid, IndexKey key) {
+        klm.releaseLock(tid, key);
+    }
+
+    /** Return true if the specified transaction has a lock on the specified key */
+    public boolean holdsLock(TransactionId tid, IndexKey key) {
+        return klm.holdsLock(tid, key);
+    }
+
+    /**
+     * Lock escalation: once tid holds LOCK_ESCALATION_THRESHOLD record and
+     * key locks, try to READ_ONLY lock a whole page it would otherwise lock
+     * the records or keys of one by one, without waiting; this fails while
+     * another transaction is writing the page.
+     *
+     * READ_COMMITTED transactions release their READ_ONLY locks as they go,
+     * so they never escalate.
+     *
+     * @return true if tid now holds a READ_ONLY or READ_WRITE lock on the
+     *   page, and needs no READ_ONLY locks on its records or keys
+     */
+    public boolean escalate(TransactionId tid, PageId pid) {
+        if (tid.getIsolationLevel() == IsolationLevel.READ_COMMITTED
+            || rlm.numHeld(tid) + klm.numHeld(tid) < LOCK_ESCALATION_THRESHOLD)
+            return false;
+        try {
+            return lm.acquireLock(tid, pid, Permissions.READ_ONLY);
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+    }
+
+    /** Return true if the specified transaction has a lock on the specified record */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        return rlm.holdsLock(tid, rid);
+    }
+
+    /** Return true if a transaction other than tid has a lock on the specified record */
+    public boolean lockedByOthers(TransactionId tid, RecordId rid) {
+        return rlm.lockedByOthers(tid, rid);
+    }
+
+    /**
+     * Release a lock on a page before the transaction completes if tid
+     * holds it only for reading (READ_ONLY or INTENTION_SHARED); a lock
+     * since strengthened for writing is kept. Used by iterators of
+     * READ_COMMITTED transactions as they leave a page they locked.
+     */
+    public void releaseReadLock(TransactionId tid, PageId pid) {
+        lm.releaseReadLock(tid, pid);
+    }
+
+    /** Release a READ_ONLY record lock; see #releaseReadLock(TransactionId, PageId) */
+    public void releaseReadLock(TransactionId tid, RecordId rid) {
+        rlm.releaseReadLock(tid, rid);
+    }
+
+    /** Release a READ_ONLY key lock; see #releaseReadLock(TransactionId, PageId) */
+    public void releaseReadLock(TransactionId tid, IndexKey key) {
+        klm.releaseReadLock(tid, key);
+    }
+
+    /**
+     * Return true if the specified page object is the one the pool holds
+     * for its id. A page read with INTENTION_EXCLUSIVE may be evicted, and
+     * read again by another transaction, before the caller latches it; the
+     * caller must then fetch it again.
+     */
+    public boolean isCurrent(Page p) {
+        return pageMap.get(p.getId()) == p;
+    }
+
+    /**
+     * Get a page to change under its latch instead of a transactional lock
+     * (see Page#getLatch), as BLinkTreeFile changes its internal pages. The
+     * page is marked dirty by tid, as if it were locked with READ_WRITE,
+     * and returned write latched; the caller releases the latch.
+     */
+    public Page latchPage(TransactionId tid, PageId pid) throws DbException {
+        while (true) {
+            Page p = cachedPage(pid);
+            markDirty(p, tid);
+            p.getLatch().writeLock().lock();
+            // it may have been written out, or evicted, before it was latched
+            if (isCurrent(p) && p.isPageDirty() != null)
+                return p;
+            p.getLatch().writeLock().unlock();
+        }
+    }
+
+    /** Return true if the specified transaction reads a snapshot (see #beginSnapshot) */
+    public synchronized boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    /** @return the specified page, reading it into the pool if needed */
+    private synchronized Page cachedPage(PageId pid) throws DbException {
+        Page p = pageMap.get(pid);
+        if (p == null) {
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            p.setBeforeImage();
+            cachePage(pid, p);
+        }
+        return p;
+    }
+
+    /**
+     * Set whether a committing transaction releases its locks once its
+     * commit record is in the log buffer (the default), rather than after
+     * the log is forced, so that transactions waiting for its locks are
+     * not held up by the fsync. It still returns only once the record is
+     * on disk. A transaction that went on to read or overwrite its changes
+     * cannot commit first: its own commit record comes later in the log,
+     * and a read-only transaction waits for the log to be forced through
+     * the last commit record before it completes.
+     */
+    public void setEarlyLockRelease(boolean earlyLockRelease) {
+        this.earlyLockRelease = earlyLockRelease;
+    }
+
+    /**
+     * Make the specified transaction read a snapshot: until it completes,
+     * pages it reads are returned as they were committed when it began,
+     * without taking shared locks, so it never waits for writers nor holds
+     * them up. It still locks the pages it writes, and is aborted when it
+     * tries to write a page committed by another transaction since it
+     * began (first committer wins).
+     * <p>
+     * Pages of a snapshot must not be changed in place; pages it has
+     * locked for writing are the current ones.
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * Run the specified transaction optimistically: it reads a snapshot
+     * (see #beginSnapshot) and records the pages it reads; its write set
+     * is the pages it locks for writing, which are changed in place and so
+     * still locked. When it commits, it is validated: if it wrote anything
+     * and another transaction has committed a page it read since it began,
+     * it is aborted instead. A read-only optimistic transaction never
+     * aborts, since its snapshot is consistent.
+     * <p>
+     * The read set must hold every page whose tuples could have made a
+     * difference to what the transaction read, so scans of snapshots do not
+     * skip pages by their zone map entries (see HeapFile#iterator(TransactionId, List)).
+     */
+    public synchronized void beginOptimistic(TransactionId tid) {
+        versions.beginSnapshot(tid);
+        readSets.put(tid, new HashSet<PageId>());
+    }
+
+    /** Return true if the specified transaction is optimistic (see #beginOptimistic) */
+    public synchronized boolean isOptimistic(TransactionId tid) {
+        return readSets.containsKey(tid);
+    }
+
+    /**
+     * @return false if the specified transaction is optimistic, has
+     *   written pages and read one committed by another transaction since
+     *   it began; true otherwise
+     */
+    private synchronized boolean validate(TransactionId tid) {
+        Set<PageId> reads = readSets.get(tid);
+        if (reads == null || lm.keysHeld(tid, LockMode.EXCLUSIVE).isEmpty())
+            return true;
+        for (PageId pid : reads) {
+            if (versions.changedSince(tid, pid))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the number of old page versions kept for snapshots, for tests */
+    synchronized int numPageVersions() {
+        return versions.numVersions();
+    }
+
+    /**
+     * Mark a page dirty, entering it in the log's dirty page table if it
+     * was clean.
+     */
+    private void markDirty(Page p, TransactionId tid) {
+        if (p.isPageDirty() == null)
+            Database.getLogFile().pageDirtied(p);
+        p.markPageDirty(true, tid);
     }
 
     /**
@@ -141,34 +495,221 @@ public class BufferPool {
         return lm.holdsLock(tid, p);
     }
 
+    /**
+     * Return true if the specified page is resident in the buffer pool.
+     */
+    public boolean isCached(PageId pid) {
+        return pageMap.containsKey(pid);
+    }
+
+    /**
+     * Commit or abort a given transaction; release all locks associated to
+     * the transaction.
+     * <p>
+     * The commit or abort record is written by the log's group commit, so
+     * the wait for it to reach disk happens without holding the buffer
+     * pool's monitor and can be shared with other transactions.
+     *
+     * @param tid the ID of the transaction requesting the unlock
+     * @param commit a flag indicating whether we should commit or abort
+     * @return true if the transaction committed
+     */
+    public boolean transactionComplete(TransactionId tid, boolean commit)
+        throws IOException {
+        return transactionComplete(tid, commit, false);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @param asyncCommit true to commit without waiting for the commit
+     *   record to reach disk (see LogFile#logCommit(TransactionId, boolean));
+     *   otherwise the locks may be released before it does (see
+     *   #setEarlyLockRelease)
+     * @return true if the transaction committed; false if it was to abort,
+     *   or is optimistic and failed validation (see #beginOptimistic) and
+     *   was aborted instead
      */
-    public synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public boolean transactionComplete(TransactionId tid, boolean commit, boolean asyncCommit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         //System.out.println("TransactionComplete: Tid = " + tid.toString() + ", commit =" + commit);
     	if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() + (commit ? " commit" : " abort"));
-    	try {
-	        for (PageId pid : pageMap.keySet()) {
-	            if (pageMap.get(pid).isPageDirty() != null && pageMap.get(pid).isPageDirty().equals(tid)) {
-	                if (commit) {
-	                    flushPage(pid);
-	                } else {
-	                    pageMap.put(pid, pageMap.get(pid).getBeforeImage());
-	                }
-	            }
-	        }
-    	}catch (NullPointerException e){
-    		e.printStackTrace();
-    		System.exit(0);
-    	}
+        LogFile log = Database.getLogFile();
+        if (commit && isOptimistic(tid)) {
+            synchronized (validation) {
+                commit = validate(tid);
+                if (commit)
+                    logCommittedPages(tid);
+            }
+        } else if (commit) {
+            logCommittedPages(tid);
+        }
+        boolean early = earlyLockRelease;
+        long record = 0;
+        if (commit) {
+            // read-only transactions that never logged anything need no
+            // record, but may have read changes not yet forced
+            if (log.isActive(tid))
+                record = log.appendCommit(tid, asyncCommit);
+            else if (early)
+                record = log.lastCommitRecord();
+            if (asyncCommit)
+                record = 0;
+            if (!early)
+                log.groupForce(record);
+        } else {
+            // undo what was stolen to disk, then drop in-memory changes
+            if (log.isActive(tid))
+                log.logAbort(tid);
+            revertPages(tid);
+        }
+        synchronized (this) {
+            versions.endSnapshot(tid);
+            readSets.remove(tid);
+        }
         lm.releaseAllLocks(tid);
+        rlm.releaseAllLocks(tid);
+        klm.releaseAllLocks(tid);
+        synchronized (this) {
+            committing.remove(tid);
+        }
+        if (commit)
+            log.locksReleased(tid);
+        if (early)
+            log.groupForce(record);
+        return commit;
+    }
+
+    /**
+     * @return the slots of the specified page tid holds READ_WRITE record
+     *   locks on, or null if tid does not lock the page's records one at a
+     *   time (it holds no INTENTION_EXCLUSIVE lock on it)
+     */
+    private List<Integer> writtenSlots(TransactionId tid, PageId pid) {
+        if (lm.mode(tid, pid) != LockMode.INTENTION_EXCLUSIVE)
+            return null;
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for (RecordId rid : rlm.keysHeld(tid, LockMode.EXCLUSIVE))
+            if (rid.getPageId().equals(pid))
+                slots.add(rid.tupleno());
+        return slots;
+    }
+
+    /**
+     * @return the pages tid holds INTENTION_EXCLUSIVE locks on, each with
+     *   the slots tid holds READ_WRITE record locks on
+     */
+    private Map<PageId, List<Integer>> writtenSlots(TransactionId tid) {
+        HashMap<PageId, List<Integer>> slots = new HashMap<PageId, List<Integer>>();
+        for (PageId pid : lm.keysHeld(tid, LockMode.INTENTION_EXCLUSIVE))
+            slots.put(pid, new ArrayList<Integer>());
+        for (RecordId rid : rlm.keysHeld(tid, LockMode.EXCLUSIVE)) {
+            List<Integer> s = slots.get(rid.getPageId());
+            if (s != null)
+                s.add(rid.tupleno());
+        }
+        return slots;
+    }
+
+    /**
+     * @return the cached page, if tid locks its records one at a time and
+     *   it is dirty, for the log to undo tid's changes to it in place: other
+     *   transactions may have changed its other records since it was last
+     *   written
+     */
+    synchronized HeapPage recordLockedPage(TransactionId tid, PageId pid) {
+        if (lm.mode(tid, pid) != LockMode.INTENTION_EXCLUSIVE)
+            return null;
+        Page p = pageMap.get(pid);
+        return (p == null || p.isPageDirty() == null) ? null : (HeapPage) p;
+    }
+
+    /**
+     * NO-FORCE commit: log the final image of every page tid dirtied and
+     * leave the pages dirty; pages it stole earlier only need their before
+     * image moved forward.
+     * <p>
+     * tid holds the locks on these pages, so nobody else changes them: they
+     * are logged outside the pool's monitor, letting committing
+     * transactions encode their log records in parallel. Once they are,
+     * tid is committing until it releases its locks, and its pages are
+     * written without logging them again (see #flushPage).
+     */
+    private void logCommittedPages(TransactionId tid) throws IOException {
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        ArrayList<Page> owned = new ArrayList<Page>();
+        HashMap<HeapPage, List<Integer>> shared = new HashMap<HeapPage, List<Integer>>();
+        Map<PageId, List<Integer>> slots = writtenSlots(tid);
+        synchronized (this) {
+            for (Page p : pageMap.values()) {
+                if (slots.containsKey(p.getId()))
+                    continue;
+                if (tid.equals(p.isPageDirty()))
+                    dirtied.add(p);
+                else if (lm.holdsExclusiveLock(tid, p.getId()))
+                    owned.add(p);
+            }
+            // pages whose records tid locked hold other transactions'
+            // changes too: only tid's records are logged and committed
+            for (Map.Entry<PageId, List<Integer>> e : slots.entrySet()) {
+                try {
+                    shared.put((HeapPage) cachedPage(e.getKey()), e.getValue());
+                } catch (DbException ex) {
+                    throw new IOException("could not read page " + e.getKey() + ": " + ex.getMessage());
+                }
+            }
+        }
+        LogFile log = Database.getLogFile();
+        for (Page p : dirtied)
+            log.logWrite(tid, p.getBeforeImage(), p);
+        for (Map.Entry<HeapPage, List<Integer>> e : shared.entrySet())
+            log.logWrite(tid, e.getKey().getBeforeImage(), e.getKey(), e.getValue());
+        synchronized (this) {
+            versions.committed(tid, dirtied, shared);
+            for (Page p : dirtied)
+                p.setBeforeImage();
+            for (Page p : owned)
+                p.setBeforeImage();
+            for (Map.Entry<HeapPage, List<Integer>> e : shared.entrySet())
+                e.getKey().setBeforeImage(e.getValue());
+            committing.add(tid);
+        }
+    }
+
+    /**
+     * @return true if tid's changes to the specified page are uncommitted:
+     *   it still holds a lock on the page and has not logged its pages for
+     *   commit
+     */
+    private synchronized boolean uncommitted(TransactionId tid, PageId pid) {
+        return lm.holdsLock(tid, pid) && !committing.contains(tid);
+    }
+
+    /**
+     * Put back the before image of every page tid dirtied in memory. The
+     * before image may hold committed changes that are not on disk yet, so
+     * it stays dirty. Of pages whose records tid locked one at a time, only
+     * those records are put back.
+     */
+    private synchronized void revertPages(TransactionId tid) {
+        versions.aborted(tid);
+        Map<PageId, List<Integer>> slots = writtenSlots(tid);
+        for (PageId pid : pageMap.keySet()) {
+            Page p = pageMap.get(pid);
+            if (slots.containsKey(pid)) {
+                HeapPage hp = (HeapPage) p;
+                hp.setSlots(hp.getBeforeImage(), slots.get(pid));
+            } else if (tid.equals(p.isPageDirty())) {
+                Page before = p.getBeforeImage();
+                markDirty(before, tid);
+                pageMap.put(pid, before);
+            }
+        }
     }
 
     /**
@@ -194,12 +735,7 @@ public class BufferPool {
         DbFile f = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> dpList = f.insertTuple(tid, t);
         // Now let's insert all dirty pages back to BufferPool
-        for (Page p : dpList) {
-            PageId pid = p.getId();
-            if (!pageMap.containsKey(pid) && pageMap.size() == numPages) evictPage();
-            pageMap.put(pid, p);
-            pageMap.get(pid).markPageDirty(true, tid);
-        }
+        recache(tid, dpList);
         //System.out.println("Buffer pool succeeds to insert tuple: Tid is" + tid.toString() + " Insert Tuple is" + ((IntField)(t.getField(0))).getValue());
     }
 
@@ -223,19 +759,29 @@ public class BufferPool {
         //System.out.println("Buffer pool try to delete tuple: Tid is" + tid.toString() + " Delete Tuple is" + ((IntField)(t.getField(0))).getValue());
         DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> dpList = f.deleteTuple(tid, t);
-        for (Page p : dpList) {
+        recache(tid, dpList);
+        //System.out.println("Buffer pool succeeds to delete tuple: Tid is" + tid.toString() + " Delete Tuple is" + ((IntField)(t.getField(0))).getValue());
+    }
+
+    /**
+     * Put pages dirtied by tid back in the pool, marked dirty. A page whose
+     * records tid locks one at a time is left alone if it was evicted and
+     * read again meanwhile: the change was written out with the old copy.
+     */
+    private synchronized void recache(TransactionId tid, List<Page> pages) throws DbException {
+        for (Page p : pages) {
             PageId pid = p.getId();
-            if (!pageMap.containsKey(pid) && pageMap.size() == numPages) evictPage();
-            pageMap.put(pid, p);
-            pageMap.get(pid).markPageDirty(true, tid);
+            Page cached = pageMap.get(pid);
+            if (cached != null && cached != p && lm.mode(tid, pid) == LockMode.INTENTION_EXCLUSIVE)
+                continue;
+            cachePage(pid, p);
+            markDirty(p, tid);
         }
-        //System.out.println("Buffer pool succeeds to delete tuple: Tid is" + tid.toString() + " Delete Tuple is" + ((IntField)(t.getField(0))).getValue());
     }
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Pages of uncommitted transactions are logged first, as on eviction.
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
@@ -256,24 +802,144 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        uncachePage(pid);
+        Database.getLogFile().pageFlushed(pid);
+    }
+
+    /**
+     * Put a page in the pool, evicting pages until its frame fits.
+     */
+    private synchronized void cachePage(PageId pid, Page p) throws DbException {
+        if (!frameSizes.containsKey(pid)) {
+            int size = getPageSize(pid.getTableId());
+            long capacity = (long) numPages * getPageSize();
+            while (!frameSizes.isEmpty() && usedBytes + size > capacity)
+                evictPage();
+            frameSizes.put(pid, size);
+            usedBytes += size;
+        }
+        pageMap.put(pid, p);
+    }
+
+    /**
+     * Drop a page from the pool, freeing its frame.
+     */
+    private synchronized void uncachePage(PageId pid) {
         pageMap.remove(pid);
+        versions.uncached(pid);
+        Integer size = frameSizes.remove(pid);
+        if (size != null) usedBytes -= size;
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.
+     * If the transaction that dirtied the page still holds its lock and
+     * has not logged its pages for commit, the page has uncommitted
+     * changes: an UPDATE record is forced to the log before the page is
+     * written, and the page keeps its before image so the transaction can
+     * still be rolled back. The same goes for the records changed by each
+     * such transaction holding an INTENTION_EXCLUSIVE lock on the page.
+     * Otherwise the log is forced through the page's LSN, if it is not on
+     * disk already.
+     * <p>
+     * The page is read latched meanwhile, so that what is written is what was
+     * logged.
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
         Page p = pageMap.get(pid);
-        if (p != null && p.isPageDirty() != null) {
+        if (p == null || p.isPageDirty() == null)
+            return;
+        p.getLatch().readLock().lock();
+        try {
+            TransactionId dirtier = p.isPageDirty();
+            LogFile log = Database.getLogFile();
+            boolean uncommitted = false;
+            if (uncommitted(dirtier, pid) && writtenSlots(dirtier, pid) == null) {
+                versions.pageStolen(dirtier, pid, p.getBeforeImage());
+                log.logWrite(dirtier, p.getBeforeImage(), p);
+                uncommitted = true;
+            }
+            for (TransactionId writer : lm.holders(pid, LockMode.INTENTION_EXCLUSIVE)) {
+                List<Integer> slots = writtenSlots(writer, pid);
+                if (slots.isEmpty() || committing.contains(writer))
+                    continue;
+                versions.pageStolen(writer, pid, p.getBeforeImage());
+                log.logWrite(writer, p.getBeforeImage(), p, slots);
+                uncommitted = true;
+            }
+            if (uncommitted) {
+                log.force();
+            } else {
+                // an asynchronous commit's records may still be in the log buffer
+                log.forceTo(p.getLSN());
+            }
             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+            Database.getLogFile().pageFlushed(pid);
             p.markPageDirty(false, null);
-            p.setBeforeImage();
+            if (!uncommitted)
+                p.setBeforeImage();
+        } finally {
+            p.getLatch().readLock().unlock();
         }
     }
 
+    /**
+     * Write the specified pages to disk from a background thread, one at a
+     * time, holding the pool's monitor only while each is written. Used by
+     * fuzzy checkpoints (see LogFile#logCheckpoint), so the pages are
+     * written while transactions keep running. Pages with uncommitted
+     * changes are skipped, since writing them would force the log; they are
+     * written once evicted or flushed after their transaction commits.
+     * Background writers run one after another.
+     */
+    public void writePagesInBackground(final Collection<PageId> pids) {
+        final Thread previous;
+        Thread writer;
+        synchronized (writerLock) {
+            previous = backgroundWriter;
+            writer = new Thread("background page writer") {
+                public void run() {
+                    try {
+                        if (previous != null)
+                            previous.join();
+                        for (PageId pid : pids)
+                            writeCommittedPage(pid);
+                    } catch (InterruptedException e) {
+                        // give up; the pages are written when evicted
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            writer.setDaemon(true);
+            backgroundWriter = writer;
+        }
+        writer.start();
+    }
+
+    /** Wait for the pages given to writePagesInBackground to be written */
+    public void awaitBackgroundWrites() throws InterruptedException {
+        Thread writer;
+        synchronized (writerLock) {
+            writer = backgroundWriter;
+        }
+        if (writer != null)
+            writer.join();
+    }
+
+    private synchronized void writeCommittedPage(PageId pid) throws IOException {
+        Page p = pageMap.get(pid);
+        if (p == null || p.isPageDirty() == null || uncommitted(p.isPageDirty(), pid))
+            return;
+        for (TransactionId writer : lm.holders(pid, LockMode.INTENTION_EXCLUSIVE))
+            if (!committing.contains(writer))
+                return;
+        flushPage(pid);
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
@@ -289,7 +955,8 @@ public class BufferPool {
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are preferred; if there are none a dirty page is stolen,
+     * which flushes it (logging it first if it is uncommitted).
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
@@ -300,112 +967,137 @@ public class BufferPool {
                 cleanPages.add(pid);
             }
         }
-        if (cleanPages.size() == 0) throw new DbException("No clean pages to evict!");
-        PageId vic = cleanPages.get((int) Math.floor(Math.random() * cleanPages.size()));
+        List<PageId> candidates = cleanPages;
+        if (candidates.size() == 0)
+            candidates = new ArrayList<PageId>(pageMap.keySet());
+        PageId vic = candidates.get((int) Math.floor(Math.random() * candidates.size()));
+        // latched until it is gone, so no one changes it after it is written
+        Page p = pageMap.get(vic);
+        p.getLatch().writeLock().lock();
         try {
-            assert pageMap.get(vic).isPageDirty() == null : "Evict a dirty page!";
             flushPage(vic);
-        } catch (Exception e) {
-            e.printStackTrace();
+            uncachePage(vic);
+        } catch (IOException e) {
+            throw new DbException("Could not flush page " + vic + " for eviction: " + e.getMessage());
+        } finally {
+            p.getLatch().writeLock().unlock();
         }
-        pageMap.remove(vic);
     }
 
-    private class LockManager {
-        private HashMap<PageId, Set<TransactionId>> sharers;
-        private HashMap<PageId, TransactionId> owners;
-        private HashMap<TransactionId, Set<PageId>> sharedPages;
-        private HashMap<TransactionId, Set<PageId>> ownedPages;
+    /**
+     * Lock modes, from weakest to strongest. INTENTION_SHARED and
+     * INTENTION_EXCLUSIVE are only taken on pages whose records are locked
+     * one at a time; a page lock in one of them is compatible with the same
+     * kind of lock held by others.
+     */
+    private enum LockMode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, EXCLUSIVE;
+
+        static LockMode of(Permissions perm) {
+            if (perm.equals(Permissions.READ_ONLY)) return SHARED;
+            if (perm.equals(Permissions.READ_WRITE)) return EXCLUSIVE;
+            if (perm.equals(Permissions.INTENTION_SHARED)) return INTENTION_SHARED;
+            if (perm.equals(Permissions.INTENTION_EXCLUSIVE)) return INTENTION_EXCLUSIVE;
+            return null;
+        }
+
+        boolean compatibleWith(LockMode other) {
+            switch (this) {
+            case INTENTION_SHARED:
+                return other != EXCLUSIVE;
+            case INTENTION_EXCLUSIVE:
+                return other == INTENTION_SHARED || other == INTENTION_EXCLUSIVE;
+            case SHARED:
+                return other == INTENTION_SHARED || other == SHARED;
+            default:
+                return false;
+            }
+        }
+
+        /** @return the weakest mode covering both this one and other; a
+            page both shared and intention exclusive is held exclusively */
+        LockMode join(LockMode other) {
+            if (this == other) return this;
+            if (this == INTENTION_SHARED) return other;
+            if (other == INTENTION_SHARED) return this;
+            return EXCLUSIVE;
+        }
+    }
+
+    /**
+     * Two-phase locks on pages or records, held until released by
+     * releaseAllLocks (or releaseLock).
+     */
+    private class LockManager<K> {
+        /** key -> the mode each holder has it in */
+        private HashMap<K, HashMap<TransactionId, LockMode>> holders;
+        private HashMap<TransactionId, Set<K>> held;
 
-        private HashMap<PageId, Set<TransactionId>> waiters;
-        private HashMap<TransactionId, PageId> waitedPages;
-        
         private HashMap<TransactionId, Set<TransactionId>> waitingTx;
-        
-//        private class Dep {
-//        	TransactionId stid;
-//        	TransactionId dtid;
-//        	PageId pid;
-//        	Permissions perm;
-//        	
-//        	Dep(TransactionId stid, TransactionId dtid, PageId pid, Permissions perm){
-//        		this.stid = stid;
-//        		this.dtid = dtid;
-//        		this.pid = pid;
-//        		this.perm = perm;
-//        	}
-//        }
-//        private HashSet<Dep> dep = new HashSet<Dep>();
 
         public LockManager() {
-            sharers = new HashMap<PageId, Set<TransactionId>>();
-            owners = new HashMap<PageId, TransactionId>();
-            sharedPages = new HashMap<TransactionId, Set<PageId>>();
-            ownedPages = new HashMap<TransactionId, Set<PageId>>();
-            waiters = new HashMap<PageId, Set<TransactionId>>();
-            waitedPages = new HashMap<TransactionId, PageId>();
-            
+            holders = new HashMap<K, HashMap<TransactionId, LockMode>>();
+            held = new HashMap<TransactionId, Set<K>>();
             waitingTx = new HashMap<TransactionId, Set<TransactionId>>();
         }
-        public synchronized boolean acquireLock(TransactionId tid, PageId pid, Permissions perm)
+
+        /**
+         * Grant tid the lock if no other transaction holds the key in a
+         * conflicting mode; a transaction already holding the key has its
+         * mode strengthened.
+         *
+         * @return true if the lock was granted
+         * @throws TransactionAbortedException if waiting would deadlock
+         */
+        public synchronized boolean acquireLock(TransactionId tid, K key, Permissions perm)
             throws TransactionAbortedException {
-            checkConsistency();
-            //System.out.println("************************************************************************************************************************Want: Tid = " + tid.toString() + ", Pid = " + pid.toString() + ", Perm = " + perm.toString());
-            boolean success = false;
-            if (perm.equals(Permissions.READ_WRITE)) {
-                success = acquireExclusiveLock(tid, pid);
-            } else if (perm.equals(Permissions.READ_ONLY)) {
-                success = acquireSharedLock(tid, pid);
-            } else if (perm.equals(Permissions.NO_LOCK)) {
-            	if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() +" Nol "+pid);
-                success = true;
-            } else {
-                assert false : "What?!";
+            LockMode mode = LockMode.of(perm);
+            if (mode == null) {
+            	if (BufferPool.DEBUG_ON) System.out.println("Tx "+tid.getId() +" Nol "+key);
+                return true;
+            }
+            HashMap<TransactionId, LockMode> h = holders.get(key);
+            if (h == null) {
+                h = new HashMap<TransactionId, LockMode>();
+                holders.put(key, h);
             }
-            if (success) {
-            	
-                //System.out.println("Success: Tid = " + tid.toString() + ", Pid = " + pid.toString() + ", Perm = " + perm.toString());
-                //removeWaiter(tid, pid);
+            LockMode current = h.get(tid);
+            if (current != null)
+                mode = current.join(mode);
+            Set<TransactionId> blockers = null;
+            for (Map.Entry<TransactionId, LockMode> e : h.entrySet()) {
+                if (e.getKey().equals(tid) || mode.compatibleWith(e.getValue()))
+                    continue;
+                if (blockers == null)
+                    blockers = new HashSet<TransactionId>();
+                blockers.add(e.getKey());
+            }
+            if (blockers == null) {
+                h.put(tid, mode);
+                Set<K> keys = held.get(tid);
+                if (keys == null) {
+                    keys = new HashSet<K>();
+                    held.put(tid, keys);
+                }
+                keys.add(key);
                 waitingTx.remove(tid);
-            	return true;
-            } else {
-            	if (waitingTx.get(tid) == null ) waitingTx.put(tid, new HashSet<TransactionId>());
-            	if (perm.equals(Permissions.READ_WRITE)){
-            		// add edges for every Tx that has a read lock on this page
-            		Set<TransactionId> sharer = sharers.get(pid);
-            		if (sharer != null) {
-	            		for( TransactionId t: sharer){
-	            			waitingTx.get(tid).add(t);
-	            			//dep.add(new Dep(tid, t, pid, perm));
-	            		}
-            		}
-            		TransactionId owner = owners.get(pid);
-            		if (owner != null){
-            			waitingTx.get(tid).add(owner);
-            			//dep.add(new Dep(tid, owner, pid, perm));
-            		}
-            	} else if (perm.equals(Permissions.READ_ONLY)){
-            		TransactionId owner = owners.get(pid);
-            		if (owner != null){
-            			waitingTx.get(tid).add(owner);
-            			//dep.add(new Dep(tid, owner, pid, perm));
-            		}
+                if (BufferPool.DEBUG_ON) System.out.println("Tx "+ tid.getId() + " " + mode + " Acq "+ key);
+                return true;
+            }
+            if (h.isEmpty())
+                holders.remove(key);
+            if (waitingTx.get(tid) == null) waitingTx.put(tid, new HashSet<TransactionId>());
+            waitingTx.get(tid).addAll(blockers);
+            visited = new HashSet<TransactionId>();
+            if (DETECT_DEADLOCK && detectDeadlock(tid,tid)) {
+            	if (BufferPool.DEBUG_ON){
+            		System.out.println("Tx "+tid.getId() +" Deadlock Detected while trying to lock "+ key +" "+perm);
+            		PrintDeadlockTree();
             	}
-                //addWaiter(tid, pid);
-            	visited = new HashSet<>();
-                if (DETECT_DEADLOCK && detectDeadlock(tid,tid)) {
-                	if (BufferPool.DEBUG_ON){
-                		System.out.println("Tx "+tid.getId() +" Deadlock Detected while trying to "+ pid.pageNumber() +" "+perm);
-                		PrintDeadlockTree();
-                	}
-                	waitingTx.remove(tid);
-                    // There is a deadlock
-                    //removeWaiter(tid, pid);
-                	
-                    throw new TransactionAbortedException();
-                }
-                return false;
+            	waitingTx.remove(tid);
+                throw new TransactionAbortedException();
             }
+            return false;
         }
         HashSet<TransactionId> visited;
         private boolean detectDeadlock(TransactionId start, TransactionId cur) {
@@ -433,170 +1125,82 @@ public class BufferPool {
         }
         
         private void PrintDeadlockTree(){
-        	
         	for (TransactionId s : waitingTx.keySet()){
         		String st = " "+s.getId()+" : " + Arrays.toString(waitingTx.get(s).toArray()) ;
         		System.out.println(st);
-        		for (TransactionId t : waitingTx.get(s)){
-        			//st += t.getId() +", ";
-        		}
-        		//System.out.println(st);
         	}
         }
-        
-        private void checkConsistency() {
-            for (PageId pid : sharers.keySet()) {
-                assert !owners.keySet().contains(pid) : "Page in sharers is also in owners.";
-                assert sharers.get(pid).size() > 0 : "sharer is actually empty.";
-                for (TransactionId tid : sharers.get(pid)) {
-                    assert sharedPages.get(tid).contains(pid) : "Pair in sharers does not exist in sharedPages.";
-                }
-            }
-            for (PageId pid : owners.keySet()) {
-                assert !sharers.keySet().contains(pid) : "Page in owners is also in sharers.";
-                TransactionId tid = owners.get(pid);
-                assert owners.get(pid) != null : "owner is actually empty.";
-                assert ownedPages.get(tid).contains(pid) : "Pair in owners does not exist in ownedPages.";
-            }
-            for (TransactionId tid : sharedPages.keySet()) {
-                assert sharedPages.get(tid).size() > 0 : "SharedPages is actually empty.";
-                for (PageId pid : sharedPages.get(tid)) {
-                    assert sharers.get(pid).contains(tid) : "Pair in sharedPages does not exist in sharers.";
-                }
-            }
-            for (TransactionId tid : ownedPages.keySet()) {
-                assert ownedPages.get(tid).size() > 0 : "OwnedPages is actually empty.";
-                for (PageId pid : ownedPages.get(tid)) {
-                    assert owners.get(pid).equals(tid) : "Pair in ownedPages does not exist in owners.";
-                }
-            }
+
+        /** @return the mode tid holds the key in, or null */
+        public synchronized LockMode mode(TransactionId tid, K key) {
+            HashMap<TransactionId, LockMode> h = holders.get(key);
+            return (h == null) ? null : h.get(tid);
         }
-        public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-            checkConsistency();
-            TransactionId owner = owners.get(pid);
-            if (owner != null && owner.equals(tid)) return true;
-            Set<TransactionId> sharer = sharers.get(pid);
-            if (sharer != null && sharer.contains(tid)) return true;
-            return false;
+        public synchronized boolean holdsLock(TransactionId tid, K key) {
+            return mode(tid, key) != null;
         }
-        private void addWaiter(TransactionId tid, PageId pid) {
-        	
-        	
-        	
-            Set<TransactionId> waiter = waiters.get(pid);
-            if (waiter == null) waiter = new HashSet<TransactionId>();
-            waiter.add(tid);
-            waiters.put(pid, waiter);
-            assert waitedPages.get(tid) == null || waitedPages.get(tid).equals(pid) : "This transaction is waiting for another page!";
-            waitedPages.put(tid, pid);
-        }
-        private void removeWaiter(TransactionId tid, PageId pid) {
-            Set<TransactionId> waiter = waiters.get(pid);
-            if (waiter==null) return ;
-            waiter.remove(tid);
-            if (waiter.size() == 0) waiters.remove(pid);
-            else waiters.put(pid, waiter);
-            waitedPages.remove(tid);
-        }
-        private void addSharer(TransactionId tid, PageId pid) {
-            Set<TransactionId> sharer = sharers.get(pid);
-            if (sharer == null) sharer = new HashSet<TransactionId>();
-            sharer.add(tid);
-            sharers.put(pid, sharer);
-            Set<PageId> sharedPage = sharedPages.get(tid);
-            if (sharedPage == null) sharedPage = new HashSet<PageId>();
-            sharedPage.add(pid);
-            sharedPages.put(tid, sharedPage);
-        }
-        private void addOwner(TransactionId tid, PageId pid) {
-            owners.put(pid, tid);
-            Set<PageId> ownedPage = ownedPages.get(tid);
-            if (ownedPage == null) ownedPage = new HashSet<PageId>();
-            ownedPage.add(pid);
-            ownedPages.put(tid, ownedPage);
-        }
-        private void removeSharer(TransactionId tid, PageId pid) {
-            Set<TransactionId> sharer = sharers.get(pid);
-            sharer.remove(tid);
-            if (sharer.size() == 0) sharers.remove(pid);
-            else sharers.put(pid, sharer);
-            Set<PageId> sharedPage = sharedPages.get(tid);
-            sharedPage.remove(pid);
-            if (sharedPage.size() == 0) sharedPages.remove(tid);
-            else sharedPages.put(tid, sharedPage);
-        }
-        private void removeOwner(TransactionId tid, PageId pid) {
-            owners.remove(pid);
-            Set<PageId> ownedPage = ownedPages.get(tid);
-            ownedPage.remove(pid);
-            if (ownedPage.size() == 0) ownedPages.remove(tid);
-            else ownedPages.put(tid, ownedPage);
-        }
-        private boolean acquireExclusiveLock(TransactionId tid, PageId pid) {
-            checkConsistency();
-            Set<TransactionId> sharer = sharers.get(pid);
-            TransactionId owner = owners.get(pid);
-            assert owner == null || sharer == null : "owner and sharer are not null at the same time!";
-            // There is an existing owner other than itself
-            if (owner != null && !owner.equals(tid)) return false;
-            // There is an existing sharer other than itself
-            if (sharer != null && ( (sharer.size() > 1) || (sharer.size() == 1 && !sharer.contains(tid)) )) return false;
-            if (sharer != null) {
-                // It holds the shared permission already
-                assert (sharer.size() == 1 && sharer.contains(tid)) : "Consistency issue.";
-                removeSharer(tid, pid);
-            }
-            addOwner(tid, pid);
-            checkConsistency();
-            if (BufferPool.DEBUG_ON) System.out.println("Tx "+ tid.getId() + " Xlock Acq "+ pid);
-            return true;
+        public synchronized boolean holdsExclusiveLock(TransactionId tid, K key) {
+            return mode(tid, key) == LockMode.EXCLUSIVE;
         }
-        private boolean acquireSharedLock(TransactionId tid, PageId pid) {
-            checkConsistency();
-            Set<TransactionId> sharer = sharers.get(pid);
-            TransactionId owner = owners.get(pid);
-            if (BufferPool.DEBUG_ON) System.out.println("Tx "+ tid.getId() + " Slock Acq "+ pid);
-            assert owner == null || sharer == null : "owner and sharer are not null at the same time!";
-            if (owner != null && !owner.equals(tid)) {
-                // There is an existing owner other than itself
-                return false;
-            } else {
-                // (owner != null) means it holds the exclusive permission, thus does nothing
-                if (owner == null) addSharer(tid, pid);
-                checkConsistency();
-                return true;
-            }
+        /** @return the number of keys tid holds */
+        public synchronized int numHeld(TransactionId tid) {
+            Set<K> keys = held.get(tid);
+            return (keys == null) ? 0 : keys.size();
         }
-        public synchronized void releaseLock(TransactionId tid, PageId pid) {
-            checkConsistency();
-            //System.out.println("ReleaseLocks: Tid = " + tid.toString() + ", Pid = " + pid.toString());
-            Set<PageId> sharedPage = sharedPages.get(tid);
-            if (sharedPage != null && sharedPage.contains(pid)) {
-                removeSharer(tid, pid);
+        /** @return true if a transaction other than tid holds the key */
+        public synchronized boolean lockedByOthers(TransactionId tid, K key) {
+            HashMap<TransactionId, LockMode> h = holders.get(key);
+            return h != null && (h.size() > 1 || (h.size() == 1 && !h.containsKey(tid)));
+        }
+        /** @return the transactions holding the key in the specified mode */
+        public synchronized List<TransactionId> holders(K key, LockMode mode) {
+            ArrayList<TransactionId> tids = new ArrayList<TransactionId>();
+            HashMap<TransactionId, LockMode> h = holders.get(key);
+            if (h != null) {
+                for (Map.Entry<TransactionId, LockMode> e : h.entrySet())
+                    if (e.getValue() == mode)
+                        tids.add(e.getKey());
             }
-            Set<PageId> ownedPage = ownedPages.get(tid);
-            if (ownedPage != null && ownedPage.contains(pid)) {
-                removeOwner(tid, pid);
+            return tids;
+        }
+        /** @return the keys tid holds in the specified mode */
+        public synchronized List<K> keysHeld(TransactionId tid, LockMode mode) {
+            ArrayList<K> keys = new ArrayList<K>();
+            Set<K> ks = held.get(tid);
+            if (ks != null) {
+                for (K key : ks)
+                    if (holders.get(key).get(tid) == mode)
+                        keys.add(key);
             }
-            if (BufferPool.DEBUG_ON) System.out.println("Tx "+ tid.getId() + " Xlock Rel "+ pid);
+            return keys;
+        }
+        public synchronized void releaseLock(TransactionId tid, K key) {
+            Set<K> keys = held.get(tid);
+            if (keys == null || !keys.remove(key))
+                return;
+            if (keys.isEmpty())
+                held.remove(tid);
+            HashMap<TransactionId, LockMode> h = holders.get(key);
+            h.remove(tid);
+            if (h.isEmpty())
+                holders.remove(key);
+            if (BufferPool.DEBUG_ON) System.out.println("Tx "+ tid.getId() + " Rel "+ key);
+        }
+        /** Release tid's lock on the key if it is SHARED or INTENTION_SHARED */
+        public synchronized void releaseReadLock(TransactionId tid, K key) {
+            LockMode m = mode(tid, key);
+            if (m == LockMode.SHARED || m == LockMode.INTENTION_SHARED)
+                releaseLock(tid, key);
         }
         public synchronized void releaseAllLocks(TransactionId tid) {
-            checkConsistency();
-            //System.out.println("ReleaseAllLocks: Tid = " + tid.toString());
-            if (sharedPages.get(tid) != null) {
-                for (PageId pid : sharedPages.get(tid)) {
-                    Set<TransactionId> sharer = sharers.get(pid);
-                    sharer.remove(tid);
-                    if (sharer.size() == 0) sharers.remove(pid);
-                    else sharers.put(pid, sharer);
-                }
-                sharedPages.remove(tid);
-            }
-            if (ownedPages.get(tid) != null) {
-                for (PageId pid : ownedPages.get(tid)) {
-                    owners.remove(pid);
+            Set<K> keys = held.remove(tid);
+            if (keys != null) {
+                for (K key : keys) {
+                    HashMap<TransactionId, LockMode> h = holders.get(key);
+                    h.remove(tid);
+                    if (h.isEmpty())
+                        holders.remove(key);
                 }
-                ownedPages.remove(tid);
             }
             waitingTx.remove(tid);
         }
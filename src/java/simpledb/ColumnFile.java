@@ -0,0 +1,391 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnFile is a DbFile that stores a table column by column. Each column
+ * has its own chain of ColumnPages in its own file, so a scan that only
+ * needs some of the columns only reads (and locks) the pages of those
+ * columns.
+ * <p>
+ * Rows are numbered globally: row r lives in slot r % getNumSlots(c) of page
+ * r / getNumSlots(c) of every column c. The RecordId of a tuple is always
+ * expressed in terms of column 0, i.e. (ColumnPageId(table, 0, page), slot),
+ * so RecordIds handed out by projected scans can still be used to delete
+ * the whole row.
+ * <p>
+ * Scans of READ_COMMITTED transactions release the lock on each page of a
+ * column when they move on to the column's next page.
+ * <p>
+ * Column c of a ColumnFile backed by file f is stored in the file named
+ * f.getPath() + "." + c.
+ *
+ * @see simpledb.ColumnPage
+ */
+public class ColumnFile implements DbFile {
+
+    private final int tableId;
+    private final File f;
+    private final TupleDesc td;
+    private final File[] columnFiles;
+    private final int pageSize;
+
+    /**
+     * Constructs a column file backed by the specified file.
+     *
+     * @param f
+     *            the file naming this table; the columns are stored in
+     *            f.getPath() + "." + column
+     * @param td
+     *            the schema of the table
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this(f, td, 0);
+    }
+
+    /**
+     * Constructs a column file with its own page size.
+     *
+     * @param pageSize
+     *            bytes per page of every column, or 0 to use the default
+     *            page size (BufferPool.getPageSize())
+     */
+    public ColumnFile(File f, TupleDesc td, int pageSize) {
+        this.tableId = f.getAbsoluteFile().hashCode();
+        this.f = f;
+        this.td = td;
+        this.pageSize = pageSize;
+        this.columnFiles = new File[td.numFields()];
+        for (int i = 0; i < columnFiles.length; i++)
+            columnFiles[i] = getColumnFile(f, i);
+    }
+
+    /** @return the file storing the specified column of the table named by f */
+    public static File getColumnFile(File f, int column) {
+        return new File(f.getPath() + "." + column);
+    }
+
+    /**
+     * Returns the File naming this ColumnFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return tableId;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return (pageSize > 0) ? pageSize : BufferPool.getPageSize();
+    }
+
+    /** @return the number of values of the specified column stored per page */
+    public int getNumSlots(int column) {
+        return ColumnPage.getNumSlots(td.getFieldType(column), getPageSize());
+    }
+
+    /**
+     * Returns the number of pages in the page chain of the specified column.
+     */
+    public int numPages(int column) {
+        return (int) ((columnFiles[column].length() + getPageSize() - 1) / getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (!(pid instanceof ColumnPageId) || pid.getTableId() != tableId) return null;
+        ColumnPageId cpid = (ColumnPageId) pid;
+        if (cpid.column() < 0 || cpid.column() >= columnFiles.length) return null;
+        if (cpid.pageNumber() < 0 || cpid.pageNumber() >= numPages(cpid.column())) return null;
+        try {
+            int pageSize = getPageSize();
+            byte[] data = new byte[pageSize];
+            RandomAccessFile raf = new RandomAccessFile(columnFiles[cpid.column()], "r");
+            try {
+                raf.seek((long) pageSize * cpid.pageNumber());
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            return new ColumnPage(cpid, data, td.getFieldType(cpid.column()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        assert page instanceof ColumnPage : "Write non-column page to a column file.";
+        ColumnPageId cpid = (ColumnPageId) page.getId();
+        RandomAccessFile raf = new RandomAccessFile(columnFiles[cpid.column()], "rw");
+        try {
+            raf.seek((long) getPageSize() * cpid.pageNumber());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Make sure the page chain of column is at least numPages long. */
+    private synchronized void extend(int column, int numPages) throws IOException {
+        for (int i = numPages(column); i < numPages; i++) {
+            writePage(new ColumnPage(new ColumnPageId(tableId, column, i),
+                    ColumnPage.createEmptyPageData(getPageSize()), td.getFieldType(column)));
+        }
+    }
+
+    /** @return the RecordId of the specified global row number */
+    private RecordId rowToRecordId(long row) {
+        int n = getNumSlots(0);
+        return new RecordId(new ColumnPageId(tableId, 0, (int) (row / n)), (int) (row % n));
+    }
+
+    /** @return the global row number of the specified RecordId */
+    private long recordIdToRow(RecordId rid) throws DbException {
+        PageId pid = rid.getPageId();
+        if (!(pid instanceof ColumnPageId) || pid.getTableId() != tableId
+                || ((ColumnPageId) pid).column() != 0)
+            throw new DbException("RecordId does not belong to this column file.");
+        return (long) pid.pageNumber() * getNumSlots(0) + rid.tupleno();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("TupleDesc does not match.");
+        BufferPool bp = Database.getBufferPool();
+
+        // column 0's slot bitmaps decide where the row goes
+        int pgNo;
+        for (pgNo = 0; pgNo < numPages(0); pgNo++) {
+            if (((ColumnPage) bp.getPage(tid, new ColumnPageId(tableId, 0, pgNo),
+                    Permissions.READ_ONLY)).getNumEmptySlots() > 0)
+                break;
+        }
+        if (pgNo == numPages(0)) extend(0, pgNo + 1);
+        ColumnPage first = (ColumnPage) bp.getPage(tid, new ColumnPageId(tableId, 0, pgNo),
+                Permissions.READ_WRITE);
+        int slot = first.getFirstEmptySlot();
+        if (slot < 0) throw new DbException("Column page filled up underneath us.");
+        long row = (long) pgNo * first.getNumSlots() + slot;
+
+        ArrayList<Page> pList = new ArrayList<Page>();
+        for (int c = 0; c < td.numFields(); c++) {
+            int n = getNumSlots(c);
+            int cpgNo = (int) (row / n);
+            if (cpgNo >= numPages(c)) extend(c, cpgNo + 1);
+            ColumnPage p = (c == 0) ? first : (ColumnPage) bp.getPage(tid,
+                    new ColumnPageId(tableId, c, cpgNo), Permissions.READ_WRITE);
+            p.setValue((int) (row % n), t.getField(c));
+            pList.add(p);
+        }
+        t.setRecordId(rowToRecordId(row));
+        return pList;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        if (t.getRecordId() == null) throw new DbException("Tuple has no RecordId.");
+        long row = recordIdToRow(t.getRecordId());
+        ArrayList<Page> pList = new ArrayList<Page>();
+        for (int c = 0; c < td.numFields(); c++) {
+            int n = getNumSlots(c);
+            int cpgNo = (int) (row / n);
+            if (cpgNo >= numPages(c)) throw new DbException("Page number is illegal.");
+            ColumnPage p = (ColumnPage) Database.getBufferPool().getPage(tid,
+                    new ColumnPageId(tableId, c, cpgNo), Permissions.READ_WRITE);
+            p.clearValue((int) (row % n));
+            pList.add(p);
+        }
+        return pList;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[td.numFields()];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        return iterator(tid, all);
+    }
+
+    /**
+     * Returns an iterator over the specified columns of the tuples stored
+     * in this file. Only the pages of those columns are read. The returned
+     * tuples contain just the requested fields, in the requested order, but
+     * carry the RecordId of the whole row.
+     *
+     * @param columns the field indexes to read; must not be empty
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return new ColumnFileIterator(tid, columns);
+    }
+
+    /** @return the TupleDesc of the specified columns of this file */
+    public TupleDesc getTupleDesc(int[] columns) {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = td.getFieldType(columns[i]);
+            names[i] = td.getFieldName(columns[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    private class ColumnFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final int[] columns;
+        private final TupleDesc projectedTd;
+
+        /** the page of each requested column that was used last */
+        private ColumnPage[] pages;
+        /** for READ_COMMITTED, whether the lock on each of pages was taken
+            by this iterator, to be released when it moves on */
+        private boolean[] taken;
+        private long row;
+        private long numRows;
+
+        public ColumnFileIterator(TransactionId tid, int[] columns) {
+            if (columns.length == 0) throw new IllegalArgumentException("No columns requested.");
+            this.tid = tid;
+            this.columns = columns.clone();
+            this.projectedTd = ColumnFile.this.getTupleDesc(columns);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            pages = new ColumnPage[columns.length];
+            taken = new boolean[columns.length];
+            row = 0;
+            // the first requested column drives the scan
+            numRows = (long) numPages(columns[0]) * getNumSlots(columns[0]);
+        }
+
+        private ColumnPage pageFor(int i, long r) throws DbException, TransactionAbortedException {
+            int n = getNumSlots(columns[i]);
+            int pgNo = (int) (r / n);
+            if (pages[i] == null || pages[i].getId().pageNumber() != pgNo) {
+                BufferPool bp = Database.getBufferPool();
+                release(i);
+                PageId pid = new ColumnPageId(tableId, columns[i], pgNo);
+                taken[i] = tid.getIsolationLevel() == IsolationLevel.READ_COMMITTED
+                    && !bp.holdsLock(tid, pid);
+                pages[i] = (ColumnPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+                if (pages[i] == null) throw new DbException("Column " + columns[i] + " is missing page " + pgNo);
+            }
+            return pages[i];
+        }
+
+        /** Release the lock on the page of column i if this iterator took it */
+        private void release(int i) {
+            if (taken[i])
+                Database.getBufferPool().releaseReadLock(tid, pages[i].getId());
+            taken[i] = false;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (pages == null) return null;
+            while (row < numRows) {
+                long r = row++;
+                ColumnPage p = pageFor(0, r);
+                int n = p.getNumSlots();
+                if (!p.isSlotUsed((int) (r % n))) {
+                    continue;
+                }
+                Tuple t = new Tuple(projectedTd);
+                t.setField(0, p.getValue((int) (r % n)));
+                for (int i = 1; i < columns.length; i++)
+                    t.setField(i, pageFor(i, r).getValue((int) (r % getNumSlots(columns[i]))));
+                t.setRecordId(rowToRecordId(r));
+                return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return projectedTd;
+        }
+
+        public void close() {
+            super.close();
+            if (pages != null) {
+                for (int i = 0; i < pages.length; i++)
+                    release(i);
+            }
+            pages = null;
+        }
+    }
+
+    /**
+     * Bulk loads the tuples returned by the specified iterator into a new
+     * column file, writing the column files directly rather than through
+     * the BufferPool.
+     *
+     * @param source an open iterator over the tuples to load
+     * @param outFile the file naming the new table; existing column files
+     *            are overwritten
+     * @param td the schema of the tuples
+     * @return the new ColumnFile (not yet added to the catalog)
+     */
+    public static ColumnFile convert(DbFileIterator source, File outFile, TupleDesc td)
+        throws IOException, DbException, TransactionAbortedException {
+        return convert(source, outFile, td, 0);
+    }
+
+    /**
+     * Bulk loads a new column file with the specified page size (0 for the
+     * default page size).
+     *
+     * @see #convert(DbFileIterator, File, TupleDesc)
+     */
+    public static ColumnFile convert(DbFileIterator source, File outFile, TupleDesc td, int pageSize)
+        throws IOException, DbException, TransactionAbortedException {
+        ColumnFile cf = new ColumnFile(outFile, td, pageSize);
+        int numColumns = td.numFields();
+        DataOutputStream[] outs = new DataOutputStream[numColumns];
+        ColumnPage[] pages = new ColumnPage[numColumns];
+        int[] pgNos = new int[numColumns];
+        try {
+            for (int c = 0; c < numColumns; c++) {
+                outs[c] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(cf.columnFiles[c])));
+            }
+            long row = 0;
+            while (source.hasNext()) {
+                Tuple t = source.next();
+                for (int c = 0; c < numColumns; c++) {
+                    int n = cf.getNumSlots(c);
+                    if (pages[c] == null) {
+                        pages[c] = new ColumnPage(new ColumnPageId(cf.getId(), c, pgNos[c]),
+                                ColumnPage.createEmptyPageData(cf.getPageSize()), td.getFieldType(c));
+                    }
+                    pages[c].setValue((int) (row % n), t.getField(c));
+                    if ((row + 1) % n == 0) {
+                        outs[c].write(pages[c].getPageData());
+                        pages[c] = null;
+                        pgNos[c]++;
+                    }
+                }
+                row++;
+            }
+            for (int c = 0; c < numColumns; c++) {
+                if (pages[c] != null) outs[c].write(pages[c].getPageData());
+            }
+        } finally {
+            for (DataOutputStream out : outs)
+                if (out != null) out.close();
+        }
+        return cf;
+    }
+}
@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Each instance of ColumnPage stores the values of a single column for a
+ * run of consecutive rows of a ColumnFile and implements the Page interface
+ * that is used by BufferPool.
+ * <p>
+ * The format mirrors HeapPage, except that slots hold one field instead of
+ * a whole tuple: a bitmap of header bytes marking the slots in use,
+ * followed by getNumSlots() fixed-size values of the column's type.
+ *
+ * @see ColumnFile
+ * @see HeapPage
+ * @see BufferPool
+ */
+public class ColumnPage implements Page {
+
+    final ColumnPageId pid;
+    final Type type;
+    final byte header[];
+    final Field values[];
+    final int numSlots;
+    final int pageSize;
+    long lsn;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+    TransactionId tid; // The transaction that makes this page dirty
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk. The
+     * type of the values is the type of field pid.column() of the table, as
+     * recorded in the Catalog; the page size is data.length. The page's
+     * LSN is in its last {@link Page#LSN_SIZE} bytes.
+     *
+     * @see #getNumSlots(Type, int)
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.column()));
+    }
+
+    /**
+     * Create a ColumnPage holding values of the specified type. Used when
+     * the table is not (yet) in the Catalog, e.g. while bulk loading.
+     */
+    ColumnPage(ColumnPageId id, byte[] data, Type type) throws IOException {
+        this.pid = id;
+        this.type = type;
+        this.pageSize = data.length;
+        this.numSlots = getNumSlots(type, pageSize);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        header = new byte[getHeaderSize(numSlots)];
+        for (int i = 0; i < header.length; i++)
+            header[i] = dis.readByte();
+
+        values = new Field[numSlots];
+        for (int i = 0; i < values.length; i++) {
+            if (!isSlotUsed(i)) {
+                dis.skipBytes(type.getLen());
+                continue;
+            }
+            try {
+                values[i] = type.parse(dis);
+            } catch (java.text.ParseException e) {
+                e.printStackTrace();
+                throw new IOException("parsing error!");
+            }
+        }
+        dis.skipBytes(pageSize - LSN_SIZE - header.length - type.getLen() * numSlots);
+        lsn = dis.readLong();
+        dis.close();
+
+        setBeforeImage();
+        tid = null;
+    }
+
+    /**
+     * @return the number of values of the specified type that fit on one
+     *   page of pageSize bytes:
+     *   floor(((pageSize - LSN size)*8) / (type length * 8 + 1))
+     */
+    public static int getNumSlots(Type type, int pageSize) {
+        return ((pageSize - LSN_SIZE) * 8) / (type.getLen() * 8 + 1);
+    }
+
+    private static int getHeaderSize(int numSlots) {
+        return (numSlots + 7) / 8;
+    }
+
+    /** @return the number of value slots on this page */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public ColumnPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new ColumnPage(pid, oldDataRef, type);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public ColumnPageId getId() {
+        return pid;
+    }
+
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #ColumnPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            int len = pageSize;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                dos.write(header);
+                byte[] empty = new byte[type.getLen()];
+                for (int i = 0; i < values.length; i++) {
+                    if (isSlotUsed(i))
+                        values[i].serialize(dos);
+                    else
+                        dos.write(empty);
+                }
+                dos.write(new byte[len - header.length - type.getLen() * numSlots - LSN_SIZE]);
+                dos.writeLong(lsn);
+                dos.flush();
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+            return baos.toByteArray();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * ColumnPage of pageSize bytes.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
+    }
+
+    /**
+     * @return the value stored in the specified slot, or null if the slot
+     *   is empty.
+     */
+    public Field getValue(int slot) {
+        return isSlotUsed(slot) ? values[slot] : null;
+    }
+
+    /**
+     * Store a value in the specified slot, marking the slot as used.
+     * @throws DbException if the slot is out of range or the value has the
+     *   wrong type.
+     */
+    public void setValue(int slot, Field f) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if (slot < 0 || slot >= numSlots) throw new DbException("Slot no is illegal.");
+            if (f == null || f.getType() != type) throw new DbException("Field type does not match.");
+            values[slot] = f;
+            markSlotUsed(slot, true);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clear the specified slot.
+     * @throws DbException if the slot is out of range or already empty.
+     */
+    public void clearValue(int slot) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if (slot < 0 || slot >= numSlots) throw new DbException("Slot no is illegal.");
+            if (!isSlotUsed(slot)) throw new DbException("Slot is already empty.");
+            values[slot] = null;
+            markSlotUsed(slot, false);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markPageDirty(boolean dirty, TransactionId tid) {
+        this.tid = (dirty) ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isPageDirty() {
+        return tid;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int numEmptySlots = 0;
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i)) numEmptySlots++;
+        return numEmptySlots;
+    }
+
+    /**
+     * @return the first empty slot on this page, or -1 if the page is full
+     */
+    public int getFirstEmptySlot() {
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i)) return i;
+        return -1;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return ((header[i / 8] >> (i % 8)) & 1) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) header[i / 8] |= (1 << (i % 8));
+        else header[i / 8] &= (~(1 << (i % 8)));
+    }
+}
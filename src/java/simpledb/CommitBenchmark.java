@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CommitBenchmark measures commit throughput against the number of
+ * committing threads. Each thread repeatedly runs a transaction that
+ * inserts one tuple into a table of its own and commits, so the threads
+ * contend only on the log, and group commit is what lets throughput grow
+ * with the thread count.
+ * <p>
+ * Run it with
+ * <pre>
+ *     java -cp ... simpledb.SimpleDb commitbench [seconds] [delays] [threads ...]
+ * </pre>
+ * where delays is a comma-separated list of group commit delays in
+ * milliseconds (see LogFile#setGroupCommitDelay); it prints commits per
+ * second with one row per thread count and one column per delay. It uses
+ * the database's log file in the current directory.
+ */
+public class CommitBenchmark {
+
+    private static final int[] DEFAULT_THREADS = { 1, 2, 4, 8, 16, 32 };
+    private static final String DEFAULT_DELAYS = "0,1,5";
+
+    public static void main(String[] args) throws IOException {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        String[] delayArgs = ((args.length > 1) ? args[1] : DEFAULT_DELAYS).split(",");
+        long[] delays = new long[delayArgs.length];
+        for (int i = 0; i < delays.length; i++)
+            delays[i] = Long.parseLong(delayArgs[i]);
+        int[] threads = DEFAULT_THREADS;
+        if (args.length > 2) {
+            threads = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                threads[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("commits/sec, " + seconds + " s per run");
+        System.out.print("threads");
+        for (long delay : delays)
+            System.out.print("\tdelay " + delay + " ms");
+        System.out.println();
+        for (int n : threads) {
+            System.out.print(n);
+            for (long delay : delays)
+                System.out.printf("\t%.1f", run(n, seconds, delay));
+            System.out.println();
+        }
+    }
+
+    /**
+     * Run the benchmark once on a fresh database.
+     *
+     * @return the number of commits per second over all threads
+     */
+    public static double run(int nThreads, int seconds, long delay) throws IOException {
+        Database.reset();
+        Database.getLogFile().setGroupCommitDelay(delay);
+        final TupleDesc td = Utility.getTupleDesc(2);
+        final HeapFile[] tables = new HeapFile[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            File f = File.createTempFile("commitbench", ".dat");
+            f.deleteOnExit();
+            ZoneMap.getMapFile(f).deleteOnExit();
+            tables[i] = new HeapFile(f, td);
+            Database.getCatalog().addTable(tables[i], "commitbench" + i);
+        }
+
+        final AtomicLong commits = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final HeapFile table = tables[i];
+            workers[i] = new Thread() {
+                public void run() {
+                    int n = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            try {
+                                Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                                                     Utility.getHeapTuple(n++, 2));
+                                t.commit();
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                t.abort();
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for benchmark threads");
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        return commits.get() * 1000.0 / elapsed;
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are stored compressed on
+ * disk. Pages are compressed with {@link PageCompressor} in writePage and
+ * decompressed in readPage, so everything above the DbFile (the BufferPool,
+ * HeapPage, the operators) still sees ordinary fixed-size HeapPages.
+ * <p>
+ * Because compressed pages have variable length, the data file is no longer
+ * addressed by pageNumber * pageSize. Instead a page map, kept in a side file
+ * named after the data file with a ".pmap" suffix, stores one fixed-size
+ * entry per logical page:
+ * <pre>
+ *     long offset    -- where the compressed page starts in the data file
+ *     int  length    -- number of compressed bytes
+ *     int  capacity  -- number of bytes reserved for the page at offset
+ * </pre>
+ * A page that still fits in its reserved space is rewritten in place;
+ * otherwise it is appended to the end of the data file and its map entry
+ * is updated. Space left behind by relocated pages is not reclaimed.
+ *
+ * @see simpledb.HeapFile
+ * @see simpledb.PageCompressor
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    private static final int ENTRY_SIZE = 8 + 4 + 4;
+
+    private final File mapFile;
+    /** offset, length and capacity of each logical page; protected by this */
+    private final ArrayList<long[]> pageMap;
+
+    /**
+     * Constructs a compressed heap file backed by the specified file and
+     * its page map. Both files are created if they do not exist.
+     *
+     * @param f
+     *            the file that stores the compressed pages of this heap file.
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        this.mapFile = getMapFile(f);
+        this.pageMap = new ArrayList<long[]>();
+        try {
+            loadPageMap();
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read page map " + mapFile, e);
+        }
+    }
+
+    /** @return the side file holding the page map of the specified data file */
+    public static File getMapFile(File f) {
+        return new File(f.getPath() + ".pmap");
+    }
+
+    private void loadPageMap() throws IOException {
+        if (!mapFile.exists()) return;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+        try {
+            long n = mapFile.length() / ENTRY_SIZE;
+            for (long i = 0; i < n; i++) {
+                long[] entry = new long[3];
+                entry[0] = dis.readLong();
+                entry[1] = dis.readInt();
+                entry[2] = dis.readInt();
+                pageMap.add(entry);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    private void writeMapEntry(int pgNo, long[] entry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mapFile, "rw");
+        try {
+            raf.seek((long) pgNo * ENTRY_SIZE);
+            raf.writeLong(entry[0]);
+            raf.writeInt((int) entry[1]);
+            raf.writeInt((int) entry[2]);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads and inflates the compressed image of the specified page.
+     */
+    protected synchronized byte[] readPageData(int pgNo) throws IOException {
+        long[] entry = pageMap.get(pgNo);
+        byte[] compressed = new byte[(int) entry[1]];
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "r");
+        try {
+            raf.seek(entry[0]);
+            raf.readFully(compressed);
+        } finally {
+            raf.close();
+        }
+        return PageCompressor.decompress(compressed, getPageSize());
+    }
+
+    /**
+     * Compresses the specified page image and writes it in place if it
+     * fits the page's slot, or at the end of the file otherwise.
+     */
+    protected synchronized void writePageData(int pgNo, byte[] data) throws IOException {
+        if (pgNo < 0 || pgNo > pageMap.size())
+            throw new IOException("Page number " + pgNo + " is past the end of the file.");
+        byte[] compressed = PageCompressor.compress(data);
+
+        long[] entry = (pgNo < pageMap.size()) ? pageMap.get(pgNo) : null;
+        if (entry == null || entry[2] < compressed.length) {
+            // does not fit where it was; move it to the end of the file
+            entry = new long[] { getFile().length(), compressed.length, compressed.length };
+        } else {
+            entry[1] = compressed.length;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+        try {
+            raf.seek(entry[0]);
+            raf.write(compressed);
+        } finally {
+            raf.close();
+        }
+        writeMapEntry(pgNo, entry);
+        if (pgNo == pageMap.size()) pageMap.add(entry);
+        else pageMap.set(pgNo, entry);
+    }
+
+    /**
+     * Returns the number of pages in this CompressedHeapFile.
+     */
+    public synchronized int numPages() {
+        return pageMap.size();
+    }
+
+    /**
+     * Converts an uncompressed heap file (as written by HeapFileEncoder or
+     * HeapFile) into a compressed heap file.
+     *
+     * @param heapFile the uncompressed source file
+     * @param outFile the compressed data file to create; its page map is
+     *            created next to it
+     * @param td the TupleDesc of the table
+     * @return the new CompressedHeapFile (not yet added to the catalog)
+     * @throws IOException if either file can't be read or written
+     */
+    public static CompressedHeapFile convert(File heapFile, File outFile, TupleDesc td)
+        throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        File outMap = getMapFile(outFile);
+        outFile.delete();
+        outMap.delete();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+        DataOutputStream map = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outMap)));
+        try {
+            long numPages = (heapFile.length() + pageSize - 1) / pageSize;
+            long offset = 0;
+            byte[] page = new byte[pageSize];
+            for (long i = 0; i < numPages; i++) {
+                Arrays.fill(page, (byte) 0);
+                try {
+                    in.readFully(page);
+                } catch (EOFException e) {
+                    // last page was short; the rest stays zero
+                }
+                byte[] compressed = PageCompressor.compress(page);
+                data.write(compressed);
+                map.writeLong(offset);
+                map.writeInt(compressed.length);
+                map.writeInt(compressed.length);
+                offset += compressed.length;
+            }
+        } finally {
+            in.close();
+            data.close();
+            map.close();
+        }
+        return new CompressedHeapFile(outFile, td);
+    }
+}
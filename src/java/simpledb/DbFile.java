@@ -88,4 +88,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of bytes in each page of this file. Files may use
+     * different page sizes; the BufferPool sizes each frame accordingly.
+     *
+     * @see BufferPool#getPageSize(int)
+     */
+    public int getPageSize();
 }
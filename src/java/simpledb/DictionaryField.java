@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * A StringField read from a dictionary-encoded column. It carries the code
+ * of its value in a {@link StringDictionary} in addition to the value
+ * itself (which is the dictionary's own String, not a copy), so that
+ * equality against another field of the same dictionary is an integer
+ * comparison.
+ * <p>
+ * Everything else (ordering, LIKE, serialization) behaves exactly like a
+ * StringField with the same value.
+ */
+public class DictionaryField extends StringField {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient StringDictionary dictionary;
+    private final int code;
+
+    /**
+     * Constructor.
+     *
+     * @param dictionary
+     *            the dictionary the code belongs to
+     * @param code
+     *            the code of this field's value
+     */
+    public DictionaryField(StringDictionary dictionary, int code) {
+        super(dictionary.decode(code), Type.STRING_LEN);
+        this.dictionary = dictionary;
+        this.code = code;
+    }
+
+    /** @return the dictionary this field's code belongs to */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /** @return the code of this field's value */
+    public int getCode() {
+        return code;
+    }
+
+    public boolean equals(Object field) {
+        if (field instanceof DictionaryField && ((DictionaryField) field).dictionary == dictionary)
+            return ((DictionaryField) field).code == code;
+        return super.equals(field);
+    }
+
+    public int hashCode() {
+        // must agree with StringField so encoded and plain values hash alike
+        return super.hashCode();
+    }
+
+    /**
+     * Compare the specified field to the value of this Field. EQUALS and
+     * NOT_EQUALS against a field of the same dictionary compare codes;
+     * everything else compares strings.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        if (val instanceof DictionaryField && ((DictionaryField) val).dictionary == dictionary) {
+            if (op == Predicate.Op.EQUALS)
+                return ((DictionaryField) val).code == code;
+            if (op == Predicate.Op.NOT_EQUALS)
+                return ((DictionaryField) val).code != code;
+        }
+        return super.compare(op, val);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * DictionaryHeapFile is a HeapFile whose STRING_TYPE fields are stored as
+ * 4-byte codes in a per-table {@link StringDictionary} instead of as
+ * Type.STRING_LEN + 4 byte strings. Pages are still HeapPages; HeapPage
+ * looks the dictionary up through the Catalog, decodes codes into
+ * {@link DictionaryField}s on read and encodes strings on insert.
+ * <p>
+ * For columns that repeat a few distinct values this shrinks the tuple
+ * (and so the file) considerably, fits more tuples on each page, and lets
+ * equality predicates and joins on strings of the same table compare codes
+ * instead of strings (see Predicate#filter and DictionaryField#compare).
+ * <p>
+ * The dictionary lives in a side file next to the data file, named with a
+ * ".dict" suffix. The data file is not readable without it.
+ *
+ * @see simpledb.HeapFile
+ * @see simpledb.StringDictionary
+ */
+public class DictionaryHeapFile extends HeapFile {
+
+    private final StringDictionary dictionary;
+
+    /**
+     * Constructs a dictionary-encoded heap file backed by the specified file
+     * and its dictionary. The dictionary is created if it does not exist.
+     *
+     * @param f
+     *            the file that stores the encoded pages of this heap file.
+     */
+    public DictionaryHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        this.dictionary = new StringDictionary(f);
+    }
+
+    /** @return the dictionary of this file's strings */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Loads the tuples returned by an open iterator into a new
+     * dictionary-encoded heap file.
+     *
+     * @param source an open iterator over tuples with TupleDesc td
+     * @param outFile the data file to create; its dictionary is created
+     *            next to it
+     * @param td the TupleDesc of the table
+     * @return the new DictionaryHeapFile (not yet added to the catalog)
+     * @throws IOException if either file can't be written
+     */
+    public static DictionaryHeapFile convert(DbFileIterator source, File outFile, TupleDesc td)
+        throws IOException, DbException, TransactionAbortedException {
+        outFile.delete();
+        StringDictionary.getDictionaryFile(outFile).delete();
+        DictionaryHeapFile file = new DictionaryHeapFile(outFile, td);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+        try {
+            int pgNo = 0;
+            HeapPage page = null;
+            while (source.hasNext()) {
+                if (page == null)
+                    page = file.newPage(pgNo);
+                Tuple t = new Tuple(td);
+                Tuple next = source.next();
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, next.getField(j));
+                page.insertTuple(t);
+                if (page.getNumEmptySlots() == 0) {
+                    out.write(page.getPageData());
+                    page = null;
+                    pgNo++;
+                }
+            }
+            if (page != null)
+                out.write(page.getPageData());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private HeapPage newPage(int pgNo) throws IOException {
+        return new HeapPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData(getPageSize()),
+                            getTupleDesc(), dictionary);
+    }
+}
@@ -9,6 +9,18 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Tuples are locked one at a time (see BufferPool#lockRecord), under
+ * INTENTION_SHARED and INTENTION_EXCLUSIVE page locks, so transactions
+ * reading and writing different tuples of a page do not wait for each
+ * other. A tuple is READ_ONLY locked when a scan returns it and READ_WRITE
+ * locked when it is inserted or deleted; an empty slot whose tuple was
+ * deleted by an uncommitted transaction is not reused until it finishes.
+ * Scans do not lock empty slots, so they do not prevent phantoms. A scan
+ * that has locked many tuples locks whole pages instead, where no other
+ * transaction is writing them (see BufferPool#escalate). Scans of
+ * READ_COMMITTED transactions release the locks they took on a page and its
+ * tuples when they move on to the next page.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,6 +30,8 @@ public class HeapFile implements DbFile {
     private int tableId;
     private File f;
     private TupleDesc td;
+    private int pageSize;
+    private ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,9 +42,21 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+        this(f, td, 0);
+    }
+
+    /**
+     * Constructs a heap file with its own page size.
+     *
+     * @param pageSize
+     *            bytes per page of this file, or 0 to use the default page
+     *            size (BufferPool.getPageSize())
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
         this.tableId = f.getAbsoluteFile().hashCode();
         this.f = f;
         this.td = td;
+        this.pageSize = pageSize;
     }
 
     /**
@@ -67,19 +93,29 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return (pageSize > 0) ? pageSize : BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns the min/max summaries of the INT columns of this file's pages.
+     */
+    public synchronized ZoneMap getZoneMap() {
+        if (zoneMap == null) zoneMap = new ZoneMap(f, td);
+        return zoneMap;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         if (this.getId() != pid.getTableId()) return null;
         if (pid.pageNumber() < 0 || pid.pageNumber() >= this.numPages()) return null;
         try {
-            int pageSize = BufferPool.getPageSize();
-            byte[] byteStream = new byte[pageSize];
-            RandomAccessFile raf = new RandomAccessFile(f, "r");
-            raf.seek(pageSize * pid.pageNumber());
-            raf.readFully(byteStream);
-            raf.close();
-            return new HeapPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), byteStream);
+            byte[] byteStream = readPageData(pid.pageNumber());
+            HeapPage hp = new HeapPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), byteStream);
+            getZoneMap().pageRead(hp);
+            return hp;
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -92,10 +128,38 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         assert page instanceof HeapPage : "Write non-heap page to a heap file.";
+        writePageData(page.getId().pageNumber(), page.getPageData());
+        getZoneMap().pageWritten((HeapPage) page);
+    }
+
+    /**
+     * Reads the bytes of the specified page from disk. Subclasses that
+     * lay pages out differently override this and {@link #writePageData}.
+     */
+    protected byte[] readPageData(int pgNo) throws IOException {
+        int pageSize = getPageSize();
+        byte[] byteStream = new byte[pageSize];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek((long) pageSize * pgNo);
+            raf.readFully(byteStream);
+        } finally {
+            raf.close();
+        }
+        return byteStream;
+    }
+
+    /**
+     * Writes the bytes of the specified page to disk.
+     */
+    protected void writePageData(int pgNo, byte[] data) throws IOException {
         RandomAccessFile raf = new RandomAccessFile(f, "rw");
-        raf.seek(BufferPool.getPageSize() * page.getId().pageNumber());
-        raf.write(page.getPageData());
-        raf.close();
+        try {
+            raf.seek((long) getPageSize() * pgNo);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
     }
 
     /**
@@ -103,7 +167,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) Math.ceil((double)f.length() / BufferPool.getPageSize());
+        return (int) Math.ceil((double)f.length() / getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -114,38 +178,60 @@ public class HeapFile implements DbFile {
         if (!td.equals(t.getTupleDesc())) throw new DbException("TupleDesc does not match.");
         int i = 0;
         HeapPage hp = null;
-        for (i = 0; i < numPages(); i ++) {
-            if (((HeapPage)(Database.getBufferPool().getPage(
-                                tid, new HeapPageId(tableId, i), Permissions.READ_ONLY))).getNumEmptySlots() > 0)
-                break;
-        }
-        if (i == numPages()) {
-            //System.out.println("Shit");
-            synchronized(this) {
-                i = numPages();
-                // All files are full
-                hp = new HeapPage(new HeapPageId(tableId, i), HeapPage.createEmptyPageData());
-                try {
-                    int pageSize = BufferPool.getPageSize();
-                    byte[] byteStream = hp.getPageData();
-                    RandomAccessFile raf = new RandomAccessFile(f, "rw");
-                    raf.seek(pageSize * i);
-                    raf.write(byteStream);
-                    raf.close();
-                }
-                catch (IOException e) {
-                    throw e;
+        while (hp == null) {
+            for (; i < numPages(); i ++) {
+                if (((HeapPage)(Database.getBufferPool().getPage(
+                                    tid, new HeapPageId(tableId, i), Permissions.INTENTION_SHARED))).getNumEmptySlots() == 0)
+                    continue;
+                hp = insertInto(tid, new HeapPageId(tableId, i), t);
+                if (hp != null)
+                    break;
+            }
+            if (hp == null) {
+                //System.out.println("Shit");
+                synchronized(this) {
+                    if (i == numPages()) {
+                        // All files are full
+                        writePage(new HeapPage(new HeapPageId(tableId, i), HeapPage.createEmptyPageData(getPageSize())));
+                    }
                 }
             }
         }
-        hp = (HeapPage)(Database.getBufferPool().getPage(tid, new HeapPageId(tableId, i), Permissions.READ_WRITE));
-        hp.insertTuple(t);
+        getZoneMap().tupleInserted(i, t);
         //System.out.println("Tid is" + tid.toString() + " Insert Tuple is" + ((IntField)(t.getField(0))).getValue());
         ArrayList<Page> pList = new ArrayList<Page>();
         pList.add(hp);
         return pList;
     }
 
+    /**
+     * Insert a tuple in the first empty slot of a page whose record no other
+     * transaction has locked, READ_WRITE locking the record.
+     *
+     * @return the page, or null if it has no such slot
+     */
+    private HeapPage insertInto(TransactionId tid, PageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            HeapPage hp = (HeapPage) bp.getPage(tid, pid, Permissions.INTENTION_EXCLUSIVE);
+            hp.getLatch().writeLock().lock();
+            try {
+                if (!bp.isCurrent(hp))
+                    continue;
+                for (int slot = 0; slot < hp.numSlots; slot++) {
+                    if (hp.isSlotUsed(slot) || !bp.tryLockRecord(tid, new RecordId(pid, slot)))
+                        continue;
+                    hp.insertTuple(t, slot);
+                    return hp;
+                }
+                return null;
+            } finally {
+                hp.getLatch().writeLock().unlock();
+            }
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -154,8 +240,22 @@ public class HeapFile implements DbFile {
         if (tableId != t.getRecordId().getPageId().getTableId()) throw new DbException("Table Id does not match.");
         int pageno = t.getRecordId().getPageId().pageNumber();
         if (pageno < 0 || pageno >= numPages()) throw new DbException("Page number is illegal.");
-        HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE));
-        hp.deleteTuple(t);
+        BufferPool bp = Database.getBufferPool();
+        bp.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+        HeapPage hp;
+        while (true) {
+            hp = (HeapPage)(bp.getPage(tid, t.getRecordId().getPageId(), Permissions.INTENTION_EXCLUSIVE));
+            hp.getLatch().writeLock().lock();
+            try {
+                if (!bp.isCurrent(hp))
+                    continue;
+                hp.deleteTuple(t);
+                break;
+            } finally {
+                hp.getLatch().writeLock().unlock();
+            }
+        }
+        // the zone map stays wide until the page is written back
         //System.out.println("Tid is" + tid.toString() + " Delete Tuple is" + ((IntField)(t.getField(0))).getValue());
         ArrayList<Page> pList = new ArrayList<Page>();
         pList.add(hp);
@@ -168,17 +268,39 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(this, tid);
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that skips pages
+     * whose zone map entries show that no tuple on them can satisfy all of
+     * the specified predicates. Tuples on pages that are read are returned
+     * unfiltered; the caller still has to apply the predicates.
+     *
+     * @param filters conjunctive predicates over this file's fields
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters) {
+        return new HeapFileIterator(this, tid, filters);
+    }
+
     public class HeapFileIterator implements DbFileIterator {
         private TransactionId tid;
         private HeapFile hf;
+        private List<Predicate> filters;
 
         private boolean active;
         private int currentPageNo;
         private Iterator<Tuple> currentPageIter;
+        /** for READ_COMMITTED, the locks taken on the current page and its
+            tuples that tid did not hold before, released on leaving it */
+        private PageId lockedPage;
+        private final ArrayList<RecordId> lockedRecords = new ArrayList<RecordId>();
 
         public HeapFileIterator(HeapFile hf, TransactionId tid) {
+            this(hf, tid, null);
+        }
+
+        public HeapFileIterator(HeapFile hf, TransactionId tid, List<Predicate> filters) {
             this.tid = tid;
             this.hf = hf;
+            this.filters = filters;
             close();
         }
 
@@ -186,14 +308,80 @@ public class HeapFile implements DbFile {
             return hf.numPages();
         }
 
+        /**
+         * @return false if the page can be skipped: it is not cached (so its
+         *   zone map entry describes it) and the entry rules out a filter.
+         *   Snapshots never skip pages, since the entry describes the page
+         *   as last written, which may be newer than the version they read,
+         *   and optimistic transactions must record every page they could
+         *   have matched in their read sets.
+         */
+        private boolean mayMatch(int pgNo) {
+            if (filters == null || filters.isEmpty()) return true;
+            if (Database.getBufferPool().isSnapshot(tid)) return true;
+            if (Database.getBufferPool().isCached(new HeapPageId(tableId, pgNo))) return true;
+            ZoneMap zm = hf.getZoneMap();
+            for (Predicate p : filters) {
+                if (!zm.mayMatch(pgNo, p)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * READ_ONLY lock the tuples of a page, and the empty slots other
+         * transactions have locked (they may be deleting a tuple), reading
+         * each tuple once it is locked.
+         *
+         * @return an iterator over the tuples of the page
+         */
+        private Iterator<Tuple> lockTuples(int pgNo) throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            PageId pid = new HeapPageId(tableId, pgNo);
+            releaseReadLocks();
+            boolean readCommitted = tid.getIsolationLevel() == IsolationLevel.READ_COMMITTED;
+            if (readCommitted && !bp.holdsLock(tid, pid))
+                lockedPage = pid;
+            HeapPage hp = (HeapPage) bp.getPage(tid, pid, Permissions.INTENTION_SHARED);
+            if (bp.isSnapshot(tid) || bp.escalate(tid, pid))
+                return hp.iterator();
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+            for (int slot = 0; slot < hp.numSlots; slot++) {
+                RecordId rid = new RecordId(pid, slot);
+                if (hp.getTuple(slot) == null && !bp.lockedByOthers(tid, rid))
+                    continue;
+                if (readCommitted && !bp.holdsLock(tid, rid))
+                    lockedRecords.add(rid);
+                bp.lockRecord(tid, rid, Permissions.READ_ONLY);
+                if (!bp.isCurrent(hp)) {
+                    // evicted while we waited, maybe changed since
+                    hp = (HeapPage) bp.getPage(tid, pid, Permissions.INTENTION_SHARED);
+                }
+                Tuple t = hp.getTuple(slot);
+                if (t != null)
+                    tuples.add(t);
+            }
+            return tuples.iterator();
+        }
+
+        /** Release the READ_ONLY locks a READ_COMMITTED scan took on its current page */
+        private void releaseReadLocks() {
+            BufferPool bp = Database.getBufferPool();
+            for (RecordId rid : lockedRecords)
+                bp.releaseReadLock(tid, rid);
+            lockedRecords.clear();
+            if (lockedPage != null)
+                bp.releaseReadLock(tid, lockedPage);
+            lockedPage = null;
+        }
+
         public void open() throws DbException, TransactionAbortedException {
             active = true;
             currentPageNo = -1;
             currentPageIter = null;
             while (currentPageNo + 1 < numPages()) {
                 currentPageNo ++;
-                currentPageIter = ((HeapPage)Database.getBufferPool().getPage(
-                        tid, new HeapPageId(tableId, currentPageNo), Permissions.READ_ONLY)).iterator();
+                if (!mayMatch(currentPageNo)) continue;
+                currentPageIter = lockTuples(currentPageNo);
                 if (!hasNext()) continue;
                 return;
             }
@@ -209,8 +397,8 @@ public class HeapFile implements DbFile {
             if (!hasNext()) {
                 while (currentPageNo + 1 < numPages()) {
                     currentPageNo ++;
-                    currentPageIter = ((HeapPage)Database.getBufferPool().getPage(
-                            tid, new HeapPageId(tableId, currentPageNo), Permissions.READ_ONLY)).iterator();
+                    if (!mayMatch(currentPageNo)) continue;
+                    currentPageIter = lockTuples(currentPageNo);
                     if (!hasNext()) continue;
                     break;
                 }
@@ -232,6 +420,7 @@ public class HeapFile implements DbFile {
             active = false;
             currentPageNo = -1;
             currentPageIter = null;
+            releaseReadLocks();
         }
     }
 }
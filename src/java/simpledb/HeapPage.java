@@ -2,10 +2,15 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.locks.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The methods that read or change the slots of a HeapPage take its latch
+ * (see Page#getLatch), shared or exclusive; callers that must see the page
+ * unchanged across several calls hold the latch themselves.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,34 +20,59 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
+    final StringDictionary dictionary;
+    final int tupleSize;
+    final int pageSize;
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    long lsn;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock=new Object();
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
     TransactionId tid; // The transaction that makes this page dirty
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * the slots of the page that are in use, some number of tuple slots,
+     * and the page's LSN in the last {@link Page#LSN_SIZE} bytes.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((page size - LSN size)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is the length of data, which is the page size of the
+     * table's file ({@link DbFile#getPageSize}).
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * If the table is a {@link DictionaryHeapFile}, its STRING_TYPE fields
+     * are stored as 4-byte codes in the table's dictionary, and the tuple
+     * size above is the encoded size.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()),
+             getDictionary(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage with the specified schema and dictionary (null if
+     * strings are stored in full). Used when the table is not (yet) in the
+     * Catalog, e.g. while bulk loading.
+     */
+    HeapPage(HeapPageId id, byte[] data, TupleDesc td, StringDictionary dictionary) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
+        this.dictionary = dictionary;
+        this.tupleSize = getTupleSize(td, dictionary);
+        this.pageSize = data.length;
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -59,18 +89,39 @@ public class HeapPage implements Page {
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
+        dis.skipBytes(pageSize - LSN_SIZE - header.length - tupleSize * numSlots);
+        lsn = dis.readLong();
         dis.close();
 
         setBeforeImage();
         tid = null;
     }
 
+    private static StringDictionary getDictionary(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        return (file instanceof DictionaryHeapFile) ? ((DictionaryHeapFile) file).getDictionary() : null;
+    }
+
+    /**
+     * @return the number of bytes a tuple of the specified schema takes on
+     *   a page, with strings encoded if there is a dictionary
+     */
+    static int getTupleSize(TupleDesc td, StringDictionary dictionary) {
+        if (dictionary == null) return td.getSize();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            size += (type == Type.STRING_TYPE) ? Type.INT_TYPE.getLen() : type.getLen();
+        }
+        return size;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
         // some code goes here
-        return (int) Math.floor((double)BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1));
+        return (int) Math.floor((double)(pageSize - LSN_SIZE) * 8 / (tupleSize * 8 + 1));
     }
 
     /**
@@ -91,7 +142,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,oldDataRef,td,dictionary);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -101,12 +152,64 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // the page's data first: it takes the page's latch
+        byte[] data = getPageData();
+        synchronized(oldDataLock)
+        {
+        oldData = data;
+        }
+    }
+
+    /**
+     * Move the before image forward for the specified slots only, when the
+     * transaction that changed them commits while others still have
+     * uncommitted changes on this page.
+     */
+    public void setBeforeImage(Collection<Integer> slots) {
+        byte[] data = getPageData();
+        SlotLayout layout = SlotLayout.of(this);
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        byte[] old = oldData.clone();
+        for (int slot : slots)
+            layout.copySlot(data, old, slot);
+        oldData = old;
+        }
+    }
+
+    /**
+     * Make the specified slots of this page hold what they hold on another
+     * version of it, in place.
+     */
+    public void setSlots(HeapPage from, Collection<Integer> slots) {
+        latch.writeLock().lock();
+        try {
+            for (int slot : slots) {
+                Tuple t = from.getTuple(slot);
+                markSlotUsed(slot, t != null);
+                tuples[slot] = t;
+            }
+        } finally {
+            latch.writeLock().unlock();
         }
     }
 
+    /**
+     * @return the tuple in the specified slot, or null if it is empty
+     */
+    public Tuple getTuple(int slot) {
+        latch.readLock().lock();
+        try {
+            return isSlotUsed(slot) ? tuples[slot] : null;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -122,7 +225,7 @@ public class HeapPage implements Page {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
+            for (int i=0; i<tupleSize; i++) {
                 try {
                     dis.readByte();
                 } catch (IOException e) {
@@ -138,12 +241,19 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f;
+                if (dictionary != null && td.getFieldType(j) == Type.STRING_TYPE)
+                    f = dictionary.getField(dis.readInt());
+                else
+                    f = td.getFieldType(j).parse(dis);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
         }
 
         return t;
@@ -161,64 +271,73 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        latch.readLock().lock();
+        try {
+            int len = pageSize;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+            DataOutputStream dos = new DataOutputStream(baos);
 
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
+            // create the header of the page
+            for (int i=0; i<header.length; i++) {
+                try {
+                    dos.writeByte(header[i]);
+                } catch (IOException e) {
+                    // this really shouldn't happen
+                    e.printStackTrace();
+                }
             }
-        }
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+            // create the tuples
+            for (int i=0; i<tuples.length; i++) {
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
+                // empty slot
+                if (!isSlotUsed(i)) {
+                    for (int j=0; j<tupleSize; j++) {
+                        try {
+                            dos.writeByte(0);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+
+                    }
+                    continue;
+                }
+
+                // non-empty slot
+                for (int j=0; j<td.numFields(); j++) {
+                    Field f = tuples[i].getField(j);
                     try {
-                        dos.writeByte(0);
+                        if (f instanceof DictionaryField && ((DictionaryField) f).getDictionary() == dictionary)
+                            dos.writeInt(((DictionaryField) f).getCode());
+                        else
+                            f.serialize(dos);
+
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
-
                 }
-                continue;
             }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // padding
+            int zerolen = pageSize - (header.length + tupleSize * tuples.length) - LSN_SIZE;
+            byte[] zeroes = new byte[zerolen];
+            try {
+                dos.write(zeroes, 0, zerolen);
+                dos.writeLong(lsn);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+            try {
+                dos.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            return baos.toByteArray();
+        } finally {
+            latch.readLock().unlock();
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -231,8 +350,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generate a byte array corresponding to an empty HeapPage of a file
+     * with the specified page size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -243,14 +369,19 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        if (!(t.getRecordId().getPageId().equals(pid))) throw new DbException("Page id does not match.");
-        int tupleno = t.getRecordId().tupleno();
-        if (tupleno < 0 || tupleno >= numSlots) throw new DbException("Tuple no is illegal.");
-        if (!isSlotUsed(tupleno)) throw new DbException("Slot is already empty.");
-        markSlotUsed(tupleno, false);
-        tuples[tupleno] = null;
+        latch.writeLock().lock();
+        try {
+            // some code goes here
+            // not necessary for lab1
+            if (!(t.getRecordId().getPageId().equals(pid))) throw new DbException("Page id does not match.");
+            int tupleno = t.getRecordId().tupleno();
+            if (tupleno < 0 || tupleno >= numSlots) throw new DbException("Tuple no is illegal.");
+            if (!isSlotUsed(tupleno)) throw new DbException("Slot is already empty.");
+            markSlotUsed(tupleno, false);
+            tuples[tupleno] = null;
+        } finally {
+            latch.writeLock().unlock();
+        }
     }
 
     /**
@@ -261,16 +392,54 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        if (getNumEmptySlots() == 0 || !(t.getTupleDesc().equals(td)))
-            throw new DbException("HeapPage is full or TupleDesc does not match.");
-        int pos = 0;
-        for (pos = 0; isSlotUsed(pos); pos ++) {}
-        markSlotUsed(pos, true);
-        tuples[pos] = t;
-        tuples[pos].resetTupleDesc(td);
-        tuples[pos].setRecordId(new RecordId(pid, pos));
+        latch.writeLock().lock();
+        try {
+            // some code goes here
+            // not necessary for lab1
+            if (getNumEmptySlots() == 0 || !(t.getTupleDesc().equals(td)))
+                throw new DbException("HeapPage is full or TupleDesc does not match.");
+            int pos = 0;
+            for (pos = 0; isSlotUsed(pos); pos ++) {}
+            insertTuple(t, pos);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the specified empty slot of the page.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int pos) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if (pos < 0 || pos >= numSlots || isSlotUsed(pos) || !(t.getTupleDesc().equals(td)))
+                throw new DbException("Slot is in use or TupleDesc does not match.");
+            if (dictionary != null) encode(t);
+            markSlotUsed(pos, true);
+            tuples[pos] = t;
+            tuples[pos].resetTupleDesc(td);
+            tuples[pos].setRecordId(new RecordId(pid, pos));
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the strings of t with fields of this page's dictionary, so
+     * that every stored string can be written as a code.
+     */
+    private void encode(Tuple t) throws DbException {
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (!(f instanceof StringField)) continue;
+            if (f instanceof DictionaryField && ((DictionaryField) f).getDictionary() == dictionary) continue;
+            try {
+                t.setField(j, dictionary.getField(dictionary.encode(((StringField) f).getValue())));
+            } catch (IOException e) {
+                throw new DbException("failed to add string to dictionary: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -292,19 +461,32 @@ public class HeapPage implements Page {
         return tid;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        // some code goes here
-        int numEmptySlots = 0;
-        for (int i = 0; i < numSlots; i ++) {
-            int index = i / 8;
-            int offset = i % 8;
-            if (((header[index] >> offset) & 1) == 0)
-                numEmptySlots ++;
+        latch.readLock().lock();
+        try {
+            // some code goes here
+            int numEmptySlots = 0;
+            for (int i = 0; i < numSlots; i ++) {
+                int index = i / 8;
+                int offset = i % 8;
+                if (((header[index] >> offset) & 1) == 0)
+                    numEmptySlots ++;
+            }
+            return numEmptySlots;
+        } finally {
+            latch.readLock().unlock();
         }
-        return numEmptySlots;
     }
 
     /**
@@ -335,12 +517,17 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        // some code goes here
-        ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
-        for (int i = 0; i < numSlots; i ++) {
-            if (isSlotUsed(i)) tupleList.add(tuples[i]);
+        latch.readLock().lock();
+        try {
+            // some code goes here
+            ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+            for (int i = 0; i < numSlots; i ++) {
+                if (isSlotUsed(i)) tupleList.add(tuples[i]);
+            }
+            return tupleList.iterator();
+        } finally {
+            latch.readLock().unlock();
         }
-        return tupleList.iterator();
     }
 
 }
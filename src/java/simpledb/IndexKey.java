@@ -0,0 +1,51 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * An IndexKey is a key value of a specific B+ tree file, as locked by
+ * key-range locking (see BufferPool#lockKey). A lock on a key covers the
+ * key and the gap between it and the next smaller key in the file; the key
+ * past the last one, which covers the gap at the end of the file, has a
+ * null field.
+ */
+public class IndexKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableId;
+    private final Field key;
+
+    /**
+     * @param tableId the id of the B+ tree file
+     * @param key the key value, or null for the end of the file
+     */
+    public IndexKey(int tableId, Field key) {
+        this.tableId = tableId;
+        this.key = key;
+    }
+
+    /**
+     * @return the key value, or null for the end of the file
+     */
+    public Field getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || o.getClass() != this.getClass()) return false;
+        IndexKey k = (IndexKey) o;
+        if (k.tableId != tableId) return false;
+        return (key == null) ? k.key == null : key.equals(k.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return (tableId << 8) + ((key == null) ? 0 : key.hashCode());
+    }
+
+    public String toString() {
+        return tableId + ":" + ((key == null) ? "end" : key.toString());
+    }
+}
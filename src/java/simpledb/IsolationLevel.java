@@ -0,0 +1,30 @@
+package simpledb;
+
+/**
+ * The isolation level of a transaction (see Transaction#setIsolationLevel),
+ * from weakest to strongest. Levels only change how long READ_ONLY locks
+ * taken by iterators are held; writes are always READ_WRITE locked until
+ * the transaction completes, so no level reads uncommitted changes or
+ * loses updates. Snapshot and optimistic transactions take no READ_ONLY
+ * locks, so the level does not apply to them.
+ */
+public enum IsolationLevel {
+    /**
+     * Iterators release the READ_ONLY locks they took on a page, its
+     * tuples and its keys as soon as they move off the page, so a long
+     * scan holds only the locks of the page it is on. Reading the same
+     * tuple twice may give different results.
+     */
+    READ_COMMITTED,
+    /**
+     * READ_ONLY locks on what was read are held until the transaction
+     * completes, but B+ tree iterators do not lock the key following the
+     * range they read, so tuples may be inserted past its end (phantoms).
+     */
+    REPEATABLE_READ,
+    /**
+     * Strict two-phase locking, with key-range locks in B+ trees; the
+     * default.
+     */
+    SERIALIZABLE
+}
@@ -36,7 +36,8 @@ public class JoinPredicate implements Serializable {
 
     /**
      * Apply the predicate to the two specified tuples. The comparison can be
-     * made through Field's compare method.
+     * made through Field's compare method; fields of the same
+     * dictionary-encoded table compare equal by code (see DictionaryField).
      * 
      * @return true if the tuples satisfy the predicate.
      */
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogBuffer collects log records in memory so that {@link LogFile} writes
+ * them to disk in large sequential blocks, and so that many threads can add
+ * records to it at once.
+ * <p>
+ * The buffer is a ring of direct ByteBuffers of BLOCK_SIZE bytes, mapped
+ * onto the log by file offset: byte pos of the log lives in block
+ * (pos / BLOCK_SIZE) % NUM_BLOCKS. Adding a record takes two steps:
+ * <ul>
+ * <li> reserve(len) atomically claims the next len bytes of the log and
+ * returns their offset. This is the only step that is serialized, and it
+ * is short.
+ * <li> put(offset, record) copies the record into its range. Threads copy
+ * into their disjoint ranges concurrently, without holding any lock.
+ * </ul>
+ * flush() writes out, with one gathering write, everything reserved so
+ * far once every copy into it has finished; only these writes to disk are
+ * ordered. Reserving more than the ring can hold flushes first. A record
+ * larger than the whole ring is written straight to the file.
+ * <p>
+ * Positions are log file offsets: position() is the end of the last
+ * reserved record. Buffered bytes are not in the file until flush() is
+ * called, so anything that reads the log must flush first. The buffer
+ * writes to a {@link Sink}, which may be a single file channel or the
+ * segments of a {@link LogSegments}.
+ */
+public class LogBuffer {
+
+    /** Where flushed bytes are written */
+    public interface Sink {
+        /**
+         * Write all the remaining bytes of the specified buffers, in
+         * order, starting at the specified offset.
+         */
+        void write(ByteBuffer[] srcs, long offset) throws IOException;
+    }
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int NUM_BLOCKS = 8;
+    static final long CAPACITY = (long) BLOCK_SIZE * NUM_BLOCKS;
+
+    private final ByteBuffer[] blocks;
+
+    // all protected by this
+    private Sink sink;
+    private long flushedOffset; // everything before this is in the file
+    private long copiedOffset;  // everything before this is in the buffer (or file)
+    private long reservedOffset; // end of the last reservation
+    /** copies that finished out of order: start offset -> end offset */
+    private final TreeMap<Long, Long> copiedAhead = new TreeMap<Long, Long>();
+
+    /**
+     * Create a buffer that appends to the specified sink.
+     *
+     * @param sink where the log is written
+     * @param offset the offset of the first byte to write
+     */
+    public LogBuffer(Sink sink, long offset) {
+        blocks = new ByteBuffer[NUM_BLOCKS];
+        for (int i = 0; i < NUM_BLOCKS; i++)
+            blocks[i] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        reset(sink, offset);
+    }
+
+    /**
+     * Create a buffer that appends to the specified channel.
+     *
+     * @param channel the log file's channel
+     * @param offset the offset in the file of the first byte to write
+     */
+    public LogBuffer(FileChannel channel, long offset) {
+        this(channelSink(channel), offset);
+    }
+
+    private static Sink channelSink(final FileChannel channel) {
+        return new Sink() {
+            public void write(ByteBuffer[] srcs, long offset) throws IOException {
+                long len = 0;
+                for (ByteBuffer b : srcs)
+                    len += b.remaining();
+                channel.position(offset);
+                long written = 0;
+                while (written < len)
+                    written += channel.write(srcs);
+            }
+        };
+    }
+
+    /**
+     * Discard anything buffered and start appending to the specified
+     * sink at the specified offset (after the log is reset or truncated).
+     * There must be no copies in progress.
+     */
+    public synchronized void reset(Sink sink, long offset) {
+        this.sink = sink;
+        flushedOffset = copiedOffset = reservedOffset = offset;
+        copiedAhead.clear();
+    }
+
+    /** @return the file offset at which the next reservation starts */
+    public synchronized long position() {
+        return reservedOffset;
+    }
+
+    /**
+     * Claim the next len bytes of the log. The caller must then put() the
+     * record at the returned offset; until it does, flushes past the
+     * offset wait for it.
+     *
+     * @return the file offset of the reserved range
+     */
+    public synchronized long reserve(int len) throws IOException {
+        if (len <= CAPACITY) {
+            while (reservedOffset + len - flushedOffset > CAPACITY)
+                flushTo(reservedOffset);
+        }
+        long start = reservedOffset;
+        reservedOffset += len;
+        return start;
+    }
+
+    /**
+     * Copy a record into the range reserved for it.
+     *
+     * @param start the offset returned by reserve(len)
+     * @param data the record
+     * @param len the length of the record, as reserved
+     */
+    public void put(long start, byte[] data, int len) throws IOException {
+        if (len > CAPACITY) {
+            putOversized(start, data, len);
+            return;
+        }
+        int off = 0;
+        long pos = start;
+        while (off < len) {
+            int blockOff = (int) (pos % BLOCK_SIZE);
+            int n = Math.min(len - off, BLOCK_SIZE - blockOff);
+            // a duplicate, so concurrent copies into one block don't share a position
+            ByteBuffer dup = blocks[(int) ((pos / BLOCK_SIZE) % NUM_BLOCKS)].duplicate();
+            dup.position(blockOff);
+            dup.put(data, off, n);
+            off += n;
+            pos += n;
+        }
+        copied(start, start + len);
+    }
+
+    private synchronized void putOversized(long start, byte[] data, int len) throws IOException {
+        // everything before the record goes to the file through the ring
+        while (copiedOffset < start)
+            await();
+        flushTo(start);
+        sink.write(new ByteBuffer[] { ByteBuffer.wrap(data, 0, len) }, start);
+        flushedOffset = start + len;
+        copied(start, start + len);
+    }
+
+    private synchronized void copied(long start, long end) {
+        if (start != copiedOffset) {
+            copiedAhead.put(start, end);
+            return;
+        }
+        copiedOffset = end;
+        Long next;
+        while ((next = copiedAhead.remove(copiedOffset)) != null)
+            copiedOffset = next;
+        notifyAll();
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for log copies");
+        }
+    }
+
+    /**
+     * Write everything reserved so far to the end of the log file, waiting
+     * for copies into it to finish. This does not force the file to disk.
+     */
+    public synchronized void flush() throws IOException {
+        flushTo(reservedOffset);
+    }
+
+    private void flushTo(long target) throws IOException {
+        while (copiedOffset < target)
+            await();
+        if (target <= flushedOffset)
+            return;
+        ArrayList<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+        for (long pos = flushedOffset; pos < target; ) {
+            int blockOff = (int) (pos % BLOCK_SIZE);
+            int n = (int) Math.min(target - pos, BLOCK_SIZE - blockOff);
+            ByteBuffer slice = blocks[(int) ((pos / BLOCK_SIZE) % NUM_BLOCKS)].duplicate();
+            slice.limit(blockOff + n);
+            slice.position(blockOff);
+            slices.add(slice);
+            pos += n;
+        }
+        sink.write(slices.toArray(new ByteBuffer[slices.size()]), flushedOffset);
+        flushedOffset = target;
+    }
+}
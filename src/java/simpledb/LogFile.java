@@ -3,7 +3,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,33 +40,64 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds one long integer: the offset of the
+last written checkpoint, or -1 if there are no checkpoints.  A new log
+starts with a checkpoint, at the offset where the log it replaces ended
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
+records are variable length.  They are stored in segment files next to
+the log file (see LogSegments), and are addressed by their offset in the
+log as a whole, or LSN.  The first record is at offset 8; offsets are
+never reused, so truncating the log just deletes old segments.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the long integer offset of the transaction's previous
+record (or -1 if this is its first), so a transaction's records can be
+walked back from its last without reading anyone else's.
 
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, TUPLE_INSERT, TUPLE_DELETE and TUPLE_UPDATE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  An image is a one byte page type tag (see PageRegistry), the
+integers of its PageId, the integer length of the page data, a one byte
+encoding and the encoded data: the page data itself (RAW_IMAGE), or an
+integer length and the page data compressed with PageCompressor
+(ZLIB_IMAGE), or the same for the exclusive or of the page data and the
+record's before image (DELTA_IMAGE, after images only).  See
+LogFile.print() for an example.
+
+<li>TUPLE_INSERT, TUPLE_DELETE and TUPLE_UPDATE records describe a change
+to one slot of a HeapPage or BTreeLeafPage (see SlotLayout).  They consist
+of the page's type tag and id (as written by writePageData, without the
+page data), an integer slot number, an integer tuple length, and the tuple's
+bytes: the new tuple for an insert, the old tuple for a delete, and the
+old tuple followed by the new one for an update.  They are logged instead
+of an UPDATE record when a page changed in only a few slots.  A slot record
+that undoes a change of a transaction being rolled back (a compensation log
+record) has COMPENSATION_FLAG set in its type: it is redone like any other,
+but never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the pages that were dirty in the buffer pool and the offset from which
+their changes that are not on disk may be logged (their recLSN).  The
+format of the record is an integer count of the number of transactions, as
+well as a long integer transaction id and a long integer first record
+offset for each active transaction, then an integer count of dirty pages,
+and the page's id (a type tag and integers, as in writePageData) and a
+long integer recLSN for each dirty page.
+
+<li> Every page carries the LSN of the last record that logged a change
+to it (see Page#getLSN), so recovery can tell from the page on disk which
+records it already reflects.
 
 </ul>
 
@@ -74,7 +106,12 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
+    // holds the checkpoint pointer
     private RandomAccessFile raf;
+    // holds the records
+    final LogSegments segments;
+    // records are appended here, and reach the segments when it is flushed
+    private LogBuffer buffer;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +119,92 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int TUPLE_INSERT_RECORD = 6;
+    static final int TUPLE_DELETE_RECORD = 7;
+    static final int TUPLE_UPDATE_RECORD = 8;
+    // set in the type of a slot record written by a rollback
+    static final int COMPENSATION_FLAG = 0x100;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
+
+    // encodings of a logged page image
+    static final int RAW_IMAGE = 0;
+    static final int ZLIB_IMAGE = 1;
+    static final int DELTA_IMAGE = 2;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    // the first record recovery from the last checkpoint reads: segments
+    // before it may be deleted //protected by this
+    private long oldestNeeded = LONG_SIZE;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // group commit: records up to forcedRecords (counted like
+    // totalRecords) are known to be on disk, and forcing is set while a
+    // leader is forcing on behalf of a batch //protected by this
+    long forcedRecords = 0;
+    boolean forcing = false;
+    int groupForces = 0; // batches forced, for tests
+    private long groupCommitDelay = 0;
+    // the log is on disk up to this offset //protected by this
+    long forcedOffset = LONG_SIZE;
+
+    // asynchronous commit: the last async commit record (counted like
+    // totalRecords), and the thread that forces it within
+    // asyncCommitInterval of its commit //protected by this
+    private long asyncRecord = 0;
+    private Thread flusher;
+    private long asyncCommitInterval = 10;
+    // the last synchronous commit record (counted like totalRecords),
+    // whose transaction may have released its locks before it was
+    // forced //protected by this
+    private long lastCommit = 0;
+    // transactions whose commit record is appended but whose locks the
+    // buffer pool has not released yet: nothing more may be logged for
+    // them //protected by this
+    private HashSet<Long> unreleased = new HashSet<Long>();
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // the offset of each live transaction's last record, which its next
+    // record points back to //protected by this
+    private HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+    // records the last undo read, for tests //protected by this
+    int undoRecordsRead = 0;
+
+    // the image each active transaction last logged of each page, which
+    // its next record of that page is a diff against //protected by this
+    private HashMap<Long, HashMap<PageId, byte[]>> loggedImages =
+        new HashMap<Long, HashMap<PageId, byte[]>>();
+
+    /** A page in the dirty page table */
+    private static class DirtyPage {
+        final PageRegistry.PageType type;
+        long recLSN;
+
+        DirtyPage(PageRegistry.PageType type, long recLSN) {
+            this.type = type;
+            this.recLSN = recLSN;
+        }
+    }
+
+    // the dirty page table: the pages that are dirty in the buffer pool,
+    // with the offset from which their changes may be logged //protected by this
+    private LinkedHashMap<PageId, DirtyPage> dirtyPages = new LinkedHashMap<PageId, DirtyPage>();
+
+    // set to false to leave the pages of a checkpoint to be written by
+    // eviction, as if the background writer had not got to them yet
+    boolean checkpointWrites = true;
+
+    // whether page images are compressed when logged
+    private volatile boolean compressImages = true;
+
+    /** Number of threads recover() redoes pages with */
+    static int REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    // pages the last recover() wrote in its redo pass, for tests
+    final AtomicInteger pagesRedone = new AtomicInteger();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -107,6 +220,8 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
+        buffer = new LogBuffer(segments, Math.max(LONG_SIZE, segments.length()));
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -120,24 +235,135 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
-    // we're about to append a log record. if we weren't sure whether the
-    // DB wants to do recovery, we're sure now -- it didn't. So truncate
-    // the log.
+    // we're about to append a log record: count it, and start the log
+    // over if need be (see noRecovery)
     void preAppend() throws IOException {
         totalRecords++;
+        noRecovery();
+    }
+
+    // we're about to write to the log. if we weren't sure whether the
+    // DB wants to do recovery, we're sure now -- it didn't. So truncate
+    // the log.
+    private void noRecovery() throws IOException {
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
         }
     }
 
+    /** Throw away the records of the log and start it over. Pages on disk
+        may carry LSNs from the old log, so LSNs carry on from its end
+        rather than starting over, and the new log begins with a checkpoint
+        that tells recovery where it starts. */
+    private void startLog() throws IOException {
+        long start = Math.max(LONG_SIZE, segments.length());
+        segments.reset();
+        currentOffset = oldestNeeded = forcedOffset = start;
+        buffer.reset(segments, currentOffset);
+        // pages dirtied before now have their changes logged from here on
+        for (DirtyPage dp : dirtyPages.values())
+            dp.recLSN = Math.max(dp.recLSN, start);
+        RecordBytes rec = checkpointRecord();
+        rec.putAt(buffer, reserve(rec));
+        buffer.flush();
+        segments.force();
+        forcedOffset = currentOffset;
+        raf.setLength(0);
+        raf.seek(0);
+        raf.writeLong(start);
+        raf.getChannel().force(true);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** A log record serialized by the thread that appends it, outside the
+        log's monitor. It has placeholders for the offset of its
+        transaction's previous record and its own start offset, which are
+        only known once its range of the log is reserved. */
+    private static class RecordBytes extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        final int type;
+        final long tid;
+
+        RecordBytes(int type, long tid, int size) throws IOException {
+            super(size);
+            this.type = type;
+            this.tid = tid;
+            out.writeInt(type);
+            out.writeLong(tid);
+            out.writeLong(NO_PREV_RECORD);
+        }
+
+        /** End the record; no more fields may be written */
+        RecordBytes finish() throws IOException {
+            out.writeLong(-1);
+            return this;
+        }
+
+        /** Fill in the offset of the transaction's previous record */
+        void setPrev(long prev) {
+            putLong(INT_SIZE + LONG_SIZE, prev);
+        }
+
+        /** Fill in the start offset and copy the record into its range */
+        void putAt(LogBuffer buffer, long start) throws IOException {
+            putLong(count - LONG_SIZE, start);
+            buffer.put(start, buf, count);
+        }
+
+        private void putLong(int at, long v) {
+            for (int i = 0; i < LONG_SIZE; i++)
+                buf[at + i] = (byte) (v >>> (56 - 8 * i));
+        }
+    }
+
+    /** Reserve the range of the log a finished record will occupy, and
+        chain it to its transaction's previous record. Must be called
+        holding the monitor; the record is copied in afterwards with putAt,
+        which need not be. */
+    private long reserve(RecordBytes rec) throws IOException {
+        preAppend();
+        long start = buffer.reserve(rec.size());
+        currentOffset = start + rec.size();
+        if (rec.type != CHECKPOINT_RECORD) {
+            Long prev = tidToLastLogRecord.put(rec.tid, start);
+            rec.setPrev(prev == null ? NO_PREV_RECORD : prev);
+        }
+        return start;
+    }
+
+    /** Set the longest time, in milliseconds, a group commit leader waits
+        for more commits to join its batch before forcing the log. 0 (the
+        default) forces at once; commits that arrive while a force is in
+        progress still share the next one. */
+    public synchronized void setGroupCommitDelay(long millis) {
+        groupCommitDelay = millis;
+    }
+
+    /** Set whether the page images of UPDATE records are compressed (the
+        default). Before images are compressed with zlib, and after images
+        are logged as a compressed delta against the before image, so a
+        record costs little more than the bytes that changed. Records are
+        read back whatever the setting was when they were written. */
+    public void setCompressImages(boolean compress) {
+        compressImages = compress;
+    }
+
+    /** Set the longest time, in milliseconds, an asynchronous commit may
+        stay in the log buffer before the background flusher forces it
+        (see logCommit(TransactionId, boolean)); 10 by default. */
+    public synchronized void setAsyncCommitInterval(long millis) {
+        asyncCommitInterval = millis;
+    }
+
+    /** @return true if the specified transaction has written log records
+        and has not yet committed or aborted */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -146,11 +372,10 @@ public class LogFile {
     public void logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
-
+        long record;
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
@@ -158,299 +383,643 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                RecordBytes rec = new RecordBytes(ABORT_RECORD, tid.getId(), 28).finish();
+                rec.putAt(buffer, reserve(rec));
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+                loggedImages.remove(tid.getId());
+                record = totalRecords;
             }
         }
+        groupForce(record);
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The force is a group commit: the record is appended, then the caller
+        waits (holding no locks) until some thread forces the log past it,
+        so that concurrent commits share one fsync.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, false);
+    }
+
+    /** Write a commit record for the specified tid, and force the log to
+        disk unless the commit is asynchronous.
+        <p>
+        An asynchronous commit returns once its record is in the log
+        buffer; the background flusher forces it within the async commit
+        interval (see setAsyncCommitInterval), so a crash loses at most
+        the commits of the last interval. The log is forced in order, so
+        what is lost is always a suffix of the log: a transaction whose
+        commit survives never depends on one that was lost, and the
+        database recovers to a consistent state.
+
+        @param tid The committing transaction.
+        @param async true to return without waiting for the record to
+        reach disk
+    */
+    public void logCommit(TransactionId tid, boolean async) throws IOException {
+        long record = appendCommit(tid, async);
+        locksReleased(tid);
+        if (!async)
+            groupForce(record);
+    }
+
+    /** Append a commit record for the specified tid to the log buffer,
+        without waiting for it to reach disk; logCommit is this followed
+        by groupForce unless the commit is asynchronous. The buffer pool
+        releases the transaction's locks in between (see
+        BufferPool#setEarlyLockRelease).
+
+        <p>
+        Until locksReleased is called for it, the transaction may not log
+        anything else: a page it changed that is written meanwhile holds
+        committed changes.
+
+        @param async true if the commit is asynchronous
+        @return the record, to pass to groupForce
+    */
+    long appendCommit(TransactionId tid, boolean async) throws IOException {
         Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+        RecordBytes rec = new RecordBytes(COMMIT_RECORD, tid.getId(), 28).finish();
+        long record, start;
+        synchronized (this) {
+            //should we verify that this is a live transaction?
+            start = reserve(rec);
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            loggedImages.remove(tid.getId());
+            unreleased.add(tid.getId());
+            record = totalRecords;
+            if (async) {
+                asyncRecord = record;
+                if (flusher == null)
+                    startFlusher();
+            } else {
+                lastCommit = record;
+            }
+        }
+        rec.putAt(buffer, start);
+        return record;
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Note that the buffer pool released the locks of a transaction whose
+        commit record was appended (see appendCommit) */
+    synchronized void locksReleased(TransactionId tid) {
+        unreleased.remove(tid.getId());
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
+    /** @return the last synchronous commit record appended. A transaction
+        that read changes whose locks were released before their commit
+        was forced must not finish committing before the log is forced
+        through it; one that wrote to the log is ordered behind it anyway,
+        since the log is forced in order. */
+    synchronized long lastCommitRecord() {
+        return lastCommit;
+    }
+
+    /** Start the background flusher, which forces the log every async
+        commit interval for as long as asynchronous commits keep coming.
+        Must be called holding the monitor. */
+    private void startFlusher() {
+        flusher = new Thread("log flusher") {
+            public void run() {
+                try {
+                    while (true) {
+                        long interval, record;
+                        synchronized (LogFile.this) {
+                            interval = asyncCommitInterval;
+                        }
+                        Thread.sleep(interval);
+                        synchronized (LogFile.this) {
+                            record = asyncRecord;
+                            if (record <= forcedRecords) {
+                                flusher = null;
+                                return;
+                            }
+                        }
+                        groupForce(record);
+                    }
+                } catch (InterruptedException e) {
+                    // forced by the next commit or force instead
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (LogFile.this) {
+                        if (flusher == Thread.currentThread())
+                            flusher = null;
+                    }
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Make sure the log is on disk through the record at the specified
+        offset, so that a page with that LSN may be written (write-ahead
+        logging). Only pages with changes committed asynchronously, or
+        whose commit is still being forced, ever wait here. */
+    public void forceTo(long lsn) throws IOException {
+        long record;
+        synchronized (this) {
+            if (lsn < forcedOffset)
+                return;
+            record = totalRecords;
+        }
+        groupForce(record);
+    }
+
+    /** Wait until the log is on disk through the specified record. If no
+        other thread is forcing the log, this one leads the next batch: it
+        waits up to the group commit delay for more records, then forces
+        everything appended so far, outside the monitor so that the next
+        batch can be appended meanwhile. */
+    void groupForce(long record) throws IOException {
+        long delay;
+        synchronized (this) {
+            while (forcedRecords < record && forcing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for group commit");
+                }
+            }
+            if (forcedRecords >= record)
+                return;
+            forcing = true;
+            delay = groupCommitDelay;
+        }
+        try {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for group commit");
+                }
+            }
+            long batchEnd, batchEndOffset;
+            synchronized (this) {
+                batchEnd = totalRecords;
+                batchEndOffset = currentOffset;
+            }
+            // covers every record reserved so far, so the whole batch
+            buffer.flush();
+            segments.force();
+            synchronized (this) {
+                forcedRecords = Math.max(forcedRecords, batchEnd);
+                forcedOffset = Math.max(forcedOffset, batchEndOffset);
+                groupForces++;
+            }
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Write log records to disk for the specified tid and page
         (with provided         before and after images.)
+        <p>
+        If the page is a HeapPage or BTreeLeafPage whose frame did not
+        change, and only a few slots did, one TUPLE_INSERT, TUPLE_DELETE or
+        TUPLE_UPDATE record is written per changed slot. Otherwise an UPDATE
+        record with both page images is written. Slot records are diffs
+        against the image of the page the transaction last logged (the
+        before image if it has not logged the page yet), so that redoing
+        them in order, or undoing them in reverse order, is exact.
+        <p>
+        The after page is stamped with the offset of the last record
+        written as its LSN (see Page#getLSN), so the page records which
+        changes it reflects when it is written to disk.
+        <p>
+        The records are encoded before taking the log's monitor, which is
+        only held to reserve their range of the log, so concurrent writers
+        encode and copy their records in parallel.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        logWrite(tid, before, after, null);
+    }
+
+    /** Write log records for the changes tid made to the specified slots
+        of a HeapPage other transactions may have changed other slots of
+        (see BufferPool#lockRecord). Only slot records are written, however
+        many there are, since undoing an UPDATE record would undo the other
+        transactions' changes too.
+        @param slots the slots tid changed, or null if every change from
+        before to after is tid's
+        @see #logWrite(TransactionId, Page, Page)
+    */
+    public void logWrite(TransactionId tid, Page before, Page after,
+                         Collection<Integer> slots)
+        throws IOException  {
         /* update record conists of
 
            record type
            transaction id
+           offset of the transaction's previous record
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        byte[] afterData = after.getPageData();
+        byte[] base;
+        synchronized (this) {
+            HashMap<PageId, byte[]> logged = loggedImages.get(tid.getId());
+            base = (logged == null) ? null : logged.get(after.getId());
+        }
+        byte[] beforeData = null;
+        if (base == null)
+            base = beforeData = before.getPageData();
+        if (slots != null) {
+            byte[] mine = base.clone();
+            SlotLayout layout = SlotLayout.of(after);
+            for (int slot : slots)
+                layout.copySlot(afterData, mine, slot);
+            afterData = mine;
+        }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        List<RecordBytes> recs = slotRecords(tid, after, base, afterData, slots == null);
+        if (recs == null) {
+            if (beforeData == null)
+                beforeData = before.getPageData();
+            RecordBytes rec = new RecordBytes(UPDATE_RECORD, tid.getId(), 2 * beforeData.length + 256);
+            writePageData(rec.out, before, beforeData, null);
+            writePageData(rec.out, after, afterData, beforeData);
+            recs = Collections.singletonList(rec.finish());
+        }
+        if (recs.isEmpty())
+            return;
+
+        long[] starts = new long[recs.size()];
+        synchronized (this) {
+            // its commit record is already in the log: registering it again
+            // would list it as active, and recovery would undo it
+            if (unreleased.contains(tid.getId()))
+                throw new IllegalStateException("transaction " + tid.getId() + " already committed");
+            for (int i = 0; i < starts.length; i++)
+                starts[i] = reserve(recs.get(i));
+            after.setLSN(starts[starts.length - 1]);
+            // transactions that never called logXactionBegin start here
+            if (!tidToFirstLogRecord.containsKey(tid.getId()))
+                tidToFirstLogRecord.put(tid.getId(), starts[0]);
+            HashMap<PageId, byte[]> logged = loggedImages.get(tid.getId());
+            if (logged == null) {
+                logged = new HashMap<PageId, byte[]>();
+                loggedImages.put(tid.getId(), logged);
+            }
+            logged.put(after.getId(), afterData);
+        }
+        for (int i = 0; i < starts.length; i++)
+            recs.get(i).putAt(buffer, starts[i]);
+        Debug.log("WRITE OFFSET = " + starts[0]);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Encode the changes from base to afterData as slot records.
+        @param mayLogPage false to write slot records however large they are
+        @return the records (none if nothing changed), or null if the page
+        must be logged as a whole: it is not a slotted page, its frame
+        changed, or the slot records would be larger than an UPDATE record */
+    private List<RecordBytes> slotRecords(TransactionId tid, Page after, byte[] base,
+                                          byte[] afterData, boolean mayLogPage)
+        throws IOException {
+        return slotRecords(tid, after, base, afterData, mayLogPage, 0);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** @param flags or'ed into the type of each record */
+    private List<RecordBytes> slotRecords(TransactionId tid, Page after, byte[] base,
+                                          byte[] afterData, boolean mayLogPage, int flags)
+        throws IOException {
+        SlotLayout layout = SlotLayout.of(after);
+        if (layout == null || !layout.sameFrame(base, afterData))
+            return null;
+        PageRegistry.PageType pageType = PageRegistry.forPage(after);
+        ArrayList<RecordBytes> recs = new ArrayList<RecordBytes>();
+        int size = 0;
+        for (int slot = 0; slot < layout.numSlots; slot++) {
+            boolean was = layout.isUsed(base, slot);
+            boolean is = layout.isUsed(afterData, slot);
+            int type;
+            if (was && is) {
+                if (layout.sameSlot(base, afterData, slot))
+                    continue;
+                type = TUPLE_UPDATE_RECORD;
+            } else if (is) {
+                type = TUPLE_INSERT_RECORD;
+            } else if (was) {
+                type = TUPLE_DELETE_RECORD;
+            } else {
+                continue;
+            }
+            RecordBytes rec = new RecordBytes(type | flags, tid.getId(), 2 * layout.slotSize + 96);
+            PageRegistry.writeId(rec.out, pageType, after.getId());
+            rec.out.writeInt(slot);
+            rec.out.writeInt(layout.slotSize);
+            if (was)
+                layout.writeSlot(rec.out, base, slot);
+            if (is)
+                layout.writeSlot(rec.out, afterData, slot);
+            recs.add(rec.finish());
+            size += rec.size();
+            if (mayLogPage && size >= 2 * afterData.length)
+                return null;
+        }
+        return recs;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        writePageData(raf, p, p.getPageData(), null);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** @param base the data of the record's before image, to log this
+        image as a delta against, or null */
+    private void writePageData(DataOutput raf, Page p, byte[] pageData, byte[] base)
+        throws IOException{
+        //page data is:
+        // page type tag (see PageRegistry)
+        // id ints
+        // page data length
+        // encoding
+        // page data, or compressed length and compressed data
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
+        PageRegistry.writeId(raf, PageRegistry.forPage(p), p.getId());
         raf.writeInt(pageData.length);
+        if (compressImages) {
+            int encoding = ZLIB_IMAGE;
+            byte[] src = pageData;
+            if (base != null && base.length == pageData.length) {
+                encoding = DELTA_IMAGE;
+                src = xor(pageData, base);
+            }
+            byte[] compressed = PageCompressor.compress(src);
+            if (compressed.length + INT_SIZE < pageData.length) {
+                raf.writeByte(encoding);
+                raf.writeInt(compressed.length);
+                raf.write(compressed);
+                return;
+            }
+        }
+        raf.writeByte(RAW_IMAGE);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    private static byte[] xor(byte[] a, byte[] b) {
+        byte[] x = new byte[a.length];
+        for (int i = 0; i < a.length; i++)
+            x[i] = (byte) (a[i] ^ b[i]);
+        return x;
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** A slot record read back from the log */
+    private static class SlotChange {
+        final PageRegistry.PageType pageType;
+        final PageId pid;
+        final int slot;
+        final byte[] before; // null for an insert
+        final byte[] after; // null for a delete
+
+        SlotChange(PageRegistry.PageType pageType, PageId pid, int slot, byte[] before, byte[] after) {
+            this.pageType = pageType;
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
+        }
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    static boolean isSlotRecord(int type) {
+        type &= ~COMPENSATION_FLAG;
+        return type == TUPLE_INSERT_RECORD || type == TUPLE_DELETE_RECORD
+            || type == TUPLE_UPDATE_RECORD;
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    static boolean isCompensation(int type) {
+        return (type & COMPENSATION_FLAG) != 0;
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    private SlotChange readSlotChange(DataInput in, int type) throws IOException {
+        type &= ~COMPENSATION_FLAG;
+        PageRegistry.PageType pageType = PageRegistry.readType(in);
+        PageId pid = PageRegistry.readId(in, pageType);
+        int slot = in.readInt();
+        int len = in.readInt();
+        byte[] before = null, after = null;
+        if (type != TUPLE_INSERT_RECORD) {
+            before = new byte[len];
+            in.readFully(before);
+        }
+        if (type != TUPLE_DELETE_RECORD) {
+            after = new byte[len];
+            in.readFully(after);
+        }
+        return new SlotChange(pageType, pid, slot, before, after);
+    }
+
+    /** Read the payload of an UPDATE or slot record.
+        @return the id of the page it changes */
+    private PageId readUpdatePageId(DataInput in, int type) throws IOException {
+        if (type == UPDATE_RECORD) {
+            PageId pid = readPageId(in);
+            readPageId(in);
+            return pid;
+        }
+        return readSlotChange(in, type).pid;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    Page readPageData(DataInput in) throws IOException {
+        return readPageData(in, null);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** @param base the data of the record's before image, which an after
+        image may be a delta against */
+    private Page readPageData(DataInput in, byte[] base) throws IOException {
+        PageRegistry.PageType pageType = PageRegistry.readType(in);
+        PageId pid = PageRegistry.readId(in, pageType);
+        return pageType.newPage(pid, readImage(in, base));
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Read the page data of an image, after its type and id */
+    private byte[] readImage(DataInput in, byte[] base) throws IOException {
+        int pageSize = in.readInt();
+        int encoding = in.readUnsignedByte();
+        if (encoding == RAW_IMAGE) {
+            byte[] pageData = new byte[pageSize];
+            in.readFully(pageData);
+            return pageData;
         }
-        return newPage;
+        if (encoding != ZLIB_IMAGE && encoding != DELTA_IMAGE)
+            throw new IOException("unknown page image encoding " + encoding);
+        if (encoding == DELTA_IMAGE && base == null)
+            throw new IOException("delta page image without a before image");
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+        byte[] data = PageCompressor.decompress(compressed, pageSize);
+        return encoding == DELTA_IMAGE ? xor(data, base) : data;
+    }
 
+    /** Read the id of a page written by writePageData, skipping the page
+        itself, so analysis can look at records without building pages */
+    PageId readPageId(DataInput in) throws IOException {
+        PageId pid = PageRegistry.readId(in, PageRegistry.readType(in));
+        int pageSize = in.readInt();
+        if (in.readUnsignedByte() == RAW_IMAGE)
+            in.skipBytes(pageSize);
+        else
+            in.skipBytes(in.readInt());
+        return pid;
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.printf("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+        RecordBytes rec = new RecordBytes(BEGIN_RECORD, tid.getId(), 28).finish();
+        long start;
+        synchronized (this) {
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.printf("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            start = reserve(rec);
+            tidToFirstLogRecord.put(tid.getId(), start);
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        rec.putAt(buffer, start);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + start);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+    /** Note that a page is about to be dirtied in the buffer pool. If it
+        is not in the dirty page table, it enters with the current end of
+        the log as its recLSN: every record of its changes from now on is
+        at or after it. */
+    public synchronized void pageDirtied(Page p) {
+        if (dirtyPages.containsKey(p.getId()))
+            return;
+        PageRegistry.PageType type;
+        try {
+            type = PageRegistry.forPage(p);
+        } catch (IllegalArgumentException e) {
+            // pages that cannot be logged have nothing to redo
+            return;
         }
-
-        logTruncate();
+        // startLog moves it forward if the log has not started yet
+        long recLSN = (recoveryUndecided || currentOffset < LONG_SIZE) ? LONG_SIZE : currentOffset;
+        dirtyPages.put(p.getId(), new DirtyPage(type, recLSN));
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
+    /** Remove a page from the dirty page table once it is written to disk
+        (or dropped from the buffer pool) */
+    public synchronized void pageFlushed(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+    /** Take a fuzzy checkpoint: write a checkpoint record with the active
+        transaction and dirty page tables, then have the buffer pool write
+        the dirty pages in the background. Only the log's monitor is held,
+        and only while the record is written, so running transactions do not
+        wait for any page to be written; recovery starts at the earliest
+        recLSN instead. */
+    public void logCheckpoint() throws IOException {
+        ArrayList<PageId> dirty;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            long startCpOffset;
+            RecordBytes rec = checkpointRecord();
+            startCpOffset = reserve(rec);
+            rec.putAt(buffer, startCpOffset);
+
+            //once the CP is on disk, make sure the CP location in the
+            // log file is updated, and on disk before any segment it
+            // no longer needs is deleted
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.getChannel().force(true);
+            oldestNeeded = startCpOffset;
+            for (long first : tidToFirstLogRecord.values())
+                oldestNeeded = Math.min(oldestNeeded, first);
+            for (DirtyPage dp : dirtyPages.values())
+                oldestNeeded = Math.min(oldestNeeded, dp.recLSN);
+            //Debug.log("CP OFFSET = " + currentOffset);
+            dirty = new ArrayList<PageId>(dirtyPages.keySet());
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        if (checkpointWrites)
+            Database.getBufferPool().writePagesInBackground(dirty);
+        logTruncate();
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /** @return a checkpoint record of the current active transaction and
+        dirty page tables */
+    private RecordBytes checkpointRecord() throws IOException {
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+        Iterator<Long> els = keys.iterator();
+        //no tid , but leave space for convenience
+        RecordBytes rec = new RecordBytes(CHECKPOINT_RECORD, -1,
+                                          36 + 16 * keys.size() + 24 * dirtyPages.size());
+
+        //write list of outstanding transactions
+        rec.out.writeInt(keys.size());
+        while (els.hasNext()) {
+            Long key = els.next();
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+            rec.out.writeLong(key);
+            //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+            rec.out.writeLong(tidToFirstLogRecord.get(key));
         }
+        writeDirtyPages(rec.out, dirtyPages);
+        return rec.finish();
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Write a dirty page table */
+    private void writeDirtyPages(DataOutput out, Map<PageId, DirtyPage> pages)
+        throws IOException {
+        out.writeInt(pages.size());
+        for (Map.Entry<PageId, DirtyPage> e : pages.entrySet()) {
+            PageRegistry.writeId(out, e.getValue().type, e.getKey());
+            out.writeLong(e.getValue().recLSN);
+        }
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Read the dirty page table of a checkpoint record */
+    private LinkedHashMap<PageId, DirtyPage> readDirtyPages(DataInput in) throws IOException {
+        LinkedHashMap<PageId, DirtyPage> pages = new LinkedHashMap<PageId, DirtyPage>();
+        int numPages = in.readInt();
+        while (numPages-- > 0) {
+            PageRegistry.PageType type = PageRegistry.readType(in);
+            PageId pid = PageRegistry.readId(in, type);
+            pages.put(pid, new DirtyPage(type, in.readLong()));
+        }
+        return pages;
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption. Everything before the first record recovery from the
+        last checkpoint reads (the checkpoint, or the first record of a
+        transaction active then or the recLSN of a page dirty then) is
+        unneeded, and the segments that lie wholly before it are deleted.
+        No record is copied, so this takes time proportional to the number
+        of segments deleted, not to the size of the log, and appends and
+        forces go on meanwhile. */
+    public synchronized void logTruncate() throws IOException {
+        noRecovery();
+        int deleted = segments.deleteBefore(oldestNeeded);
+        Debug.log("TRUNCATING LOG; DELETED " + deleted + " SEGMENTS BEFORE " + oldestNeeded);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -458,6 +1027,13 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        Only pages the transaction logged (because they were stolen from
+        the buffer pool) can have reached disk; the transaction's records
+        are found by walking its chain of records back from its last, so
+        only its own records are read, and those of each page are undone,
+        latest first. The page is written back and discarded from the
+        buffer pool.
 
         @param tid The transaction to rollback
     */
@@ -465,46 +1041,531 @@ public class LogFile {
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
-                preAppend();
+                noRecovery();
                 // some code goes here
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+                undo(Collections.singletonMap(tid.getId(), last), tid);
             }
         }
     }
 
+    /** Undo, latest first, every UPDATE and slot record of the specified
+        transactions, following each one's chain of records back from the
+        last, write back the pages they changed and discard those pages
+        from the buffer pool. Compensation records are skipped: the slots
+        they restored are restored again by undoing the records before
+        them.
+        <p>
+        A cached page whose records a rolled back transaction locked one at
+        a time (see BufferPool#lockRecord) may hold other transactions'
+        changes that are not on disk: it is kept, and only the transaction's
+        slots are undone in it (see #compensate).
+        @param lastRecords the offset of the last record of each transaction
+        @param tid the transaction being rolled back, or null when recovery
+        undoes the losers */
+    private void undo(Map<Long, Long> lastRecords, TransactionId tid) throws IOException {
+        LinkedHashMap<PageId, List<Long>> records = new LinkedHashMap<PageId, List<Long>>();
+        // slots changed by slot records, for pages with no UPDATE records
+        HashMap<PageId, Set<Integer>> slots = new HashMap<PageId, Set<Integer>>();
+        HashSet<PageId> wholePages = new HashSet<PageId>();
+        buffer.flush();
+        LogSegments.Reader in = segments.reader();
+        try {
+            undoRecordsRead = 0;
+            for (long offset : lastRecords.values()) {
+                while (offset != NO_PREV_RECORD) {
+                    in.seek(offset);
+                    int type = in.readInt();
+                    in.readLong();
+                    long prev = in.readLong();
+                    if (type == UPDATE_RECORD || (isSlotRecord(type) && !isCompensation(type))) {
+                        PageId pid;
+                        if (type == UPDATE_RECORD) {
+                            pid = readUpdatePageId(in, type);
+                            wholePages.add(pid);
+                        } else {
+                            SlotChange c = readSlotChange(in, type);
+                            pid = c.pid;
+                            if (!slots.containsKey(pid))
+                                slots.put(pid, new HashSet<Integer>());
+                            slots.get(pid).add(c.slot);
+                        }
+                        List<Long> offsets = records.get(pid);
+                        if (offsets == null) {
+                            offsets = new ArrayList<Long>();
+                            records.put(pid, offsets);
+                        }
+                        offsets.add(offset);
+                    }
+                    undoRecordsRead++;
+                    offset = prev;
+                }
+            }
+            for (Map.Entry<PageId, List<Long>> e : records.entrySet()) {
+                Page image = null;
+                List<Long> offsets = e.getValue();
+                // latest first, whichever transaction wrote them
+                Collections.sort(offsets, Collections.reverseOrder());
+                for (long offset : offsets)
+                    image = applyRecord(in, offset, image, false);
+                if (tid != null && !wholePages.contains(e.getKey())) {
+                    HeapPage cached = Database.getBufferPool().recordLockedPage(tid, e.getKey());
+                    if (cached != null) {
+                        compensate(tid, cached, (HeapPage) image, slots.get(e.getKey()));
+                        continue;
+                    }
+                }
+                // the undone page reflects every record before the end
+                image.setLSN(currentOffset);
+                Database.getCatalog().getDatabaseFile(e.getKey().getTableId()).writePage(image);
+                Database.getBufferPool().discardPage(e.getKey());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Undo tid's changes to the specified slots of a cached page in
+        place, logging the undo as compensation records of tid: redoing
+        them after tid's own records leaves the slots as they were before
+        tid, and they are never undone.
+        @param undone the page with tid's logged changes undone */
+    private void compensate(TransactionId tid, HeapPage cached, HeapPage undone,
+                            Set<Integer> slots) throws IOException {
+        byte[] data = cached.getPageData();
+        byte[] undoneData = undone.getPageData();
+        byte[] after = data.clone();
+        SlotLayout layout = SlotLayout.of(cached);
+        for (int slot : slots)
+            layout.copySlot(undoneData, after, slot);
+        List<RecordBytes> recs = slotRecords(tid, cached, data, after, false, COMPENSATION_FLAG);
+        long last = -1;
+        for (RecordBytes rec : recs) {
+            last = reserve(rec);
+            rec.putAt(buffer, last);
+        }
+        cached.setSlots(undone, slots);
+        cached.setBeforeImage(slots);
+        if (last >= 0) {
+            cached.setLSN(last);
+            if (cached.isPageDirty() == null) {
+                pageDirtied(cached);
+                cached.markPageDirty(true, tid);
+            }
+        }
+    }
+
+    /** Redo or undo the UPDATE or slot record at the specified offset.
+        @param image the page the records before (when redoing) or after
+        (when undoing) this one left, or null for the page as it is on disk
+        @return the page this record leaves */
+    private Page applyRecord(LogSegments.Reader in, long offset, Page image, boolean redo)
+        throws IOException {
+        in.seek(offset);
+        int type = in.readInt();
+        in.readLong();
+        in.readLong();
+        if (type == UPDATE_RECORD) {
+            PageRegistry.PageType pageType = PageRegistry.readType(in);
+            PageId pid = PageRegistry.readId(in, pageType);
+            byte[] before = readImage(in, null);
+            return redo ? readPageData(in, before) : pageType.newPage(pid, before);
+        }
+        SlotChange c = readSlotChange(in, type);
+        if (image == null)
+            image = readFromDisk(c);
+        byte[] data = image.getPageData();
+        SlotLayout.of(image).setSlot(data, c.slot, redo ? c.after : c.before);
+        return PageRegistry.forPage(image).newPage(c.pid, data);
+    }
+
+    /** @return the page a slot record changes, as it is on disk, or empty
+        if it is not in the file */
+    private Page readFromDisk(SlotChange c) throws IOException {
+        Page p = readFromDisk(c.pid);
+        if (p != null)
+            return p;
+        DbFile f = Database.getCatalog().getDatabaseFile(c.pid.getTableId());
+        return c.pageType.newPage(c.pid, new byte[f.getPageSize()]);
+    }
+
+    /** @return the specified page as it is on disk, or null if it is not in
+        its file */
+    private Page readFromDisk(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (IllegalArgumentException e) {
+            // past the end of the file
+            return null;
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write every page first, so that start up redoes nothing
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** An UPDATE or slot record found by analysis */
+    private static class UpdateRef {
+        final long offset;
+        final int type;
+        final long tid;
+
+        UpdateRef(long offset, int type, long tid) {
+            this.offset = offset;
+            this.type = type;
+            this.tid = tid;
+        }
+
+        boolean isCompensation() {
+            return LogFile.isCompensation(type);
+        }
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery runs in three passes, ARIES style:
+        <ul>
+        <li> Analysis reads the log forward from the last checkpoint, or
+        from the first record of a transaction that was active at the
+        checkpoint or the recLSN of a page that was dirty then, if that is
+        earlier. It sorts transactions into committed, aborted and losers
+        (neither), and collects the UPDATE and slot records of each page.
+        A record before the checkpoint is only needed if its transaction
+        was active then, or its page was dirty then and the record is not
+        before the page's recLSN: any other change was on disk. A torn
+        record at the end of the log is cut off.
+        <li> Redo partitions the pages across REDO_THREADS workers. A worker
+        reads each page from disk and skips the records at or before its
+        LSN, which the page already reflects. It starts from the after
+        image of the last committed UPDATE record after that (or from the
+        page on disk) and redoes the committed records that follow in log
+        order. The records of an aborted transaction on a page, whose
+        rollback may not have reached disk, are undone together, latest
+        first, where its last record on the page appears; its compensation
+        records (see #compensate) are not undone.
+        Only pages that a record changed are written back, stamped with the
+        LSN of the last record applied.
+        <li> Undo follows the chain of records of each loser back from the
+        last one analysis saw, undoes them latest first, then an ABORT
+        record is written for each loser.
+        </ul>
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                pagesRedone.set(0);
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                unreleased.clear();
+                loggedImages.clear();
+                dirtyPages.clear();
+                buffer.flush();
+                if (raf.length() < LONG_SIZE) {
+                    startLog();
+                    return;
+                }
+
+                // analysis
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                LogSegments.Reader in = segments.reader();
+                HashMap<Long,Long> losers = new HashMap<Long,Long>();
+                HashSet<Long> committed = new HashSet<Long>();
+                HashSet<Long> aborted = new HashSet<Long>();
+                long start = LONG_SIZE;
+                Map<PageId, DirtyPage> dirtyAtCp = Collections.emptyMap();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    in.seek(cpLoc);
+                    if (in.readInt() != CHECKPOINT_RECORD)
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    in.readLong();
+                    in.readLong();
+                    int numXactions = in.readInt();
+                    start = cpLoc;
+                    while (numXactions-- > 0) {
+                        long xid = in.readLong();
+                        long first = in.readLong();
+                        losers.put(xid, first);
+                        start = Math.min(start, first);
+                    }
+                    dirtyAtCp = readDirtyPages(in);
+                    for (DirtyPage dp : dirtyAtCp.values())
+                        start = Math.min(start, dp.recLSN);
+                }
+                LinkedHashMap<PageId, List<UpdateRef>> updates = new LinkedHashMap<PageId, List<UpdateRef>>();
+                HashMap<Long,Long> lastRecords = new HashMap<Long,Long>();
+                long end = start;
+                in.seek(start);
+                try {
+                    while (true) {
+                        long recordStart = in.getFilePointer();
+                        boolean afterCp = recordStart >= cpLoc;
+                        int type = in.readInt();
+                        long recordTid = in.readLong();
+                        in.readLong();
+                        if (type != CHECKPOINT_RECORD)
+                            lastRecords.put(recordTid, recordStart);
+                        switch (type & ~COMPENSATION_FLAG) {
+                        case UPDATE_RECORD:
+                        case TUPLE_INSERT_RECORD:
+                        case TUPLE_DELETE_RECORD:
+                        case TUPLE_UPDATE_RECORD:
+                            PageId pid = readUpdatePageId(in, type);
+                            if (!afterCp && !losers.containsKey(recordTid)) {
+                                // before the checkpoint, only changes to
+                                // pages that were dirty then may be missing
+                                DirtyPage dp = dirtyAtCp.get(pid);
+                                if (dp == null || recordStart < dp.recLSN)
+                                    break;
+                            }
+                            if (!losers.containsKey(recordTid) && !committed.contains(recordTid)
+                                && !aborted.contains(recordTid))
+                                losers.put(recordTid, recordStart);
+                            List<UpdateRef> refs = updates.get(pid);
+                            if (refs == null) {
+                                refs = new ArrayList<UpdateRef>();
+                                updates.put(pid, refs);
+                            }
+                            refs.add(new UpdateRef(recordStart, type, recordTid));
+                            break;
+                        case BEGIN_RECORD:
+                            if (afterCp)
+                                losers.put(recordTid, recordStart);
+                            break;
+                        case COMMIT_RECORD:
+                            if (losers.remove(recordTid) != null)
+                                committed.add(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            if (losers.remove(recordTid) != null)
+                                aborted.add(recordTid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            int numXactions = in.readInt();
+                            in.skipBytes(numXactions * 2 * LONG_SIZE);
+                            readDirtyPages(in);
+                            break;
+                        }
+                        in.readLong();
+                        end = in.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    // the last record was torn by the crash; forget it
+                }
+                in.close();
+                segments.truncate(end);
+                currentOffset = forcedOffset = end;
+                oldestNeeded = start;
+                buffer.reset(segments, currentOffset);
+
+                redo(updates, committed, aborted);
+
+                // undo
+                if (!losers.isEmpty()) {
+                    HashMap<Long,Long> loserLasts = new HashMap<Long,Long>();
+                    for (Long xid : losers.keySet())
+                        if (lastRecords.containsKey(xid))
+                            loserLasts.put(xid, lastRecords.get(xid));
+                    undo(loserLasts, null);
+                    for (Long xid : losers.keySet()) {
+                        if (loserLasts.containsKey(xid))
+                            tidToLastLogRecord.put(xid, loserLasts.get(xid));
+                        RecordBytes rec = new RecordBytes(ABORT_RECORD, xid, 28).finish();
+                        rec.putAt(buffer, reserve(rec));
+                        tidToLastLogRecord.remove(xid);
+                    }
+                    force();
+                }
             }
          }
     }
 
+    /** The redo pass of recover(): install the final image of each page,
+        with the pages partitioned by PageId across a pool of workers that
+        read the log through their own readers */
+    private void redo(Map<PageId, List<UpdateRef>> updates, final Set<Long> committed,
+                      final Set<Long> aborted) throws IOException {
+        int nThreads = Math.max(1, Math.min(REDO_THREADS, updates.size()));
+        final List<List<PageId>> partitions = new ArrayList<List<PageId>>();
+        for (int i = 0; i < nThreads; i++)
+            partitions.add(new ArrayList<PageId>());
+        for (PageId pid : updates.keySet())
+            partitions.get((pid.hashCode() & Integer.MAX_VALUE) % nThreads).add(pid);
+
+        final Map<PageId, List<UpdateRef>> pageUpdates = updates;
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final List<PageId> partition : partitions) {
+                done.add(workers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        LogSegments.Reader in = segments.reader();
+                        try {
+                            for (PageId pid : partition)
+                                redoPage(in, pid, pageUpdates.get(pid), committed, aborted);
+                        } finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("redo failed", e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException("redo interrupted", e);
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+        for (PageId pid : updates.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
+
+    /** Write the image a page's records (in log order) leave it in;
+        records the page on disk already reflects are skipped, and records
+        of losers are left to undo */
+    private void redoPage(LogSegments.Reader in, PageId pid, List<UpdateRef> refs,
+                          Set<Long> committed, Set<Long> aborted) throws IOException {
+        Page image = readFromDisk(pid);
+        long pageLSN = image == null ? 0 : image.getLSN();
+        // a committed UPDATE record sets the whole page, so nothing
+        // before the last one matters
+        int from = 0;
+        for (int i = refs.size() - 1; i >= 0 && refs.get(i).offset > pageLSN; i--) {
+            if (refs.get(i).type == UPDATE_RECORD && committed.contains(refs.get(i).tid)) {
+                from = i;
+                break;
+            }
+        }
+        // the last record of each aborted transaction on the page
+        HashMap<Long, Integer> lastAborted = new HashMap<Long, Integer>();
+        for (int i = 0; i < refs.size(); i++)
+            if (aborted.contains(refs.get(i).tid))
+                lastAborted.put(refs.get(i).tid, i);
+        long lsn = 0;
+        for (int i = from; i < refs.size(); i++) {
+            UpdateRef r = refs.get(i);
+            if (r.offset <= pageLSN)
+                continue;
+            if (committed.contains(r.tid)) {
+                image = applyRecord(in, r.offset, image, true);
+                lsn = r.offset;
+            } else if (aborted.contains(r.tid) && lastAborted.get(r.tid) == i) {
+                // records of others on the page in between changed other
+                // slots, and only later ones may reuse the transaction's
+                // slots, so all of its changes are undone here, latest
+                // first, whether or not its rollback reached disk
+                for (int j = i; j >= 0; j--) {
+                    UpdateRef u = refs.get(j);
+                    if (u.tid == r.tid && !u.isCompensation())
+                        image = applyRecord(in, u.offset, image, false);
+                }
+                lsn = r.offset;
+            }
+        }
+        if (lsn == 0)
+            return;
+        image.setLSN(lsn);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+        pagesRedone.incrementAndGet();
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            buffer.flush();
+            raf.seek(0);
+            System.out.println("checkpoint at " + raf.readLong());
+            // records before oldestNeeded may be in deleted segments
+            LogSegments.Reader in = segments.reader();
+            in.seek(oldestNeeded);
+            try {
+                while (true) {
+                    long recordStart = in.getFilePointer();
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    long prev = in.readLong();
+                    String desc;
+                    switch (type & ~COMPENSATION_FLAG) {
+                    case ABORT_RECORD:
+                        desc = "ABORT";
+                        break;
+                    case COMMIT_RECORD:
+                        desc = "COMMIT";
+                        break;
+                    case BEGIN_RECORD:
+                        desc = "BEGIN";
+                        break;
+                    case UPDATE_RECORD:
+                        desc = "UPDATE " + readPageId(in);
+                        readPageId(in);
+                        break;
+                    case TUPLE_INSERT_RECORD:
+                    case TUPLE_DELETE_RECORD:
+                    case TUPLE_UPDATE_RECORD:
+                        SlotChange c = readSlotChange(in, type);
+                        int slotType = type & ~COMPENSATION_FLAG;
+                        desc = (isCompensation(type) ? "CLR " : "")
+                            + (slotType == TUPLE_INSERT_RECORD ? "TUPLE_INSERT "
+                               : slotType == TUPLE_DELETE_RECORD ? "TUPLE_DELETE " : "TUPLE_UPDATE ")
+                            + c.pid + " slot " + c.slot;
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = in.readInt();
+                        desc = "CHECKPOINT active:";
+                        while (numXactions-- > 0)
+                            desc += " " + in.readLong() + "@" + in.readLong();
+                        desc += " dirty:";
+                        for (Map.Entry<PageId, DirtyPage> e : readDirtyPages(in).entrySet())
+                            desc += " " + e.getKey() + "@" + e.getValue().recLSN;
+                        break;
+                    default:
+                        desc = "UNKNOWN TYPE " + type;
+                    }
+                    in.readLong();
+                    System.out.println(recordStart + ": " + desc + " tid " + recordTid
+                                       + (prev == NO_PREV_RECORD ? "" : " prev " + prev));
+                }
+            } catch (EOFException e) {
+            } finally {
+                in.close();
+            }
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        buffer.flush();
+        segments.force();
+        forcedRecords = totalRecords;
+        forcedOffset = currentOffset;
+        notifyAll();
     }
 
 }
@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of a {@link LogFile} in a series of
+ * fixed-size segment files, addressed by log sequence number (LSN): the
+ * byte at LSN n lives in segment n / SEGMENT_SIZE, a file named after the
+ * log with the segment number appended (log.0, log.1, ...), at offset
+ * n % SEGMENT_SIZE. Records may straddle segments.
+ * <p>
+ * LSNs only ever grow, so truncating the log does not move any record: it
+ * deletes the segments that lie wholly before the oldest LSN recovery still
+ * needs, whatever the size of the rest of the log.
+ * <p>
+ * Writes come from a {@link LogBuffer}; reads go through a {@link Reader},
+ * which sees only what has been written, so readers must flush the buffer
+ * first.
+ */
+public class LogSegments implements LogBuffer.Sink {
+
+    /** Size of each segment file, in bytes */
+    static long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    // all protected by this
+    /** segment number -> open segment file */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    /** segments written to since they were last forced */
+    private final HashSet<Long> unforced = new HashSet<Long>();
+
+    /**
+     * Open the segments of the specified log, including any already on
+     * disk.
+     */
+    public LogSegments(File logFile) throws IOException {
+        File abs = logFile.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = SEGMENT_SIZE;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                long seg = segmentNumber(name);
+                if (seg >= 0)
+                    segments.put(seg, new RandomAccessFile(new File(dir, name), "rw"));
+            }
+        }
+    }
+
+    /** @return the number of the segment file with the specified name, or
+        -1 if it is not one of this log's */
+    private long segmentNumber(String name) {
+        if (!name.startsWith(prefix) || name.length() == prefix.length())
+            return -1;
+        String suffix = name.substring(prefix.length());
+        for (int i = 0; i < suffix.length(); i++)
+            if (!Character.isDigit(suffix.charAt(i)))
+                return -1;
+        try {
+            return Long.parseLong(suffix);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File segmentFile(long seg) {
+        return new File(dir, prefix + seg);
+    }
+
+    private synchronized RandomAccessFile segment(long seg) throws IOException {
+        RandomAccessFile f = segments.get(seg);
+        if (f == null) {
+            f = new RandomAccessFile(segmentFile(seg), "rw");
+            segments.put(seg, f);
+        }
+        return f;
+    }
+
+    /** @return the number of segment files, for tests */
+    public synchronized int numSegments() {
+        return segments.size();
+    }
+
+    /** @return the LSN just past the last byte written */
+    public synchronized long length() throws IOException {
+        if (segments.isEmpty())
+            return 0;
+        long last = segments.lastKey();
+        return last * segmentSize + segments.get(last).length();
+    }
+
+    /**
+     * Write the specified buffers at the specified LSN, splitting them at
+     * segment boundaries, with one gathering write per segment.
+     */
+    public void write(ByteBuffer[] srcs, long offset) throws IOException {
+        ArrayList<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+        long pos = offset;
+        long seg = pos / segmentSize;
+        long segStart = pos;
+        for (ByteBuffer src : srcs) {
+            ByteBuffer rest = src.duplicate();
+            while (rest.hasRemaining()) {
+                long n = Math.min(rest.remaining(), (seg + 1) * segmentSize - pos);
+                ByteBuffer slice = rest.duplicate();
+                slice.limit(slice.position() + (int) n);
+                slices.add(slice);
+                rest.position(slice.limit());
+                pos += n;
+                if (pos == (seg + 1) * segmentSize) {
+                    writeSegment(seg, segStart, slices);
+                    slices.clear();
+                    seg++;
+                    segStart = pos;
+                }
+            }
+            src.position(src.limit());
+        }
+        if (!slices.isEmpty())
+            writeSegment(seg, segStart, slices);
+    }
+
+    private void writeSegment(long seg, long start, List<ByteBuffer> slices) throws IOException {
+        ByteBuffer[] srcs = slices.toArray(new ByteBuffer[slices.size()]);
+        long len = 0;
+        for (ByteBuffer b : srcs)
+            len += b.remaining();
+        FileChannel channel = segment(seg).getChannel();
+        synchronized (channel) {
+            channel.position(start - seg * segmentSize);
+            long written = 0;
+            while (written < len)
+                written += channel.write(srcs);
+        }
+        synchronized (this) {
+            unforced.add(seg);
+        }
+    }
+
+    /**
+     * Force every segment written to since it was last forced to disk. The
+     * forces happen outside the monitor, so writes are never held up by
+     * them.
+     */
+    public void force() throws IOException {
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            for (Long seg : unforced) {
+                RandomAccessFile f = segments.get(seg);
+                if (f != null)
+                    channels.add(f.getChannel());
+            }
+            unforced.clear();
+        }
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // deleted meanwhile: nothing in it is needed any more
+            }
+        }
+    }
+
+    /**
+     * Delete every segment that lies wholly before the specified LSN.
+     *
+     * @return the number of segments deleted
+     */
+    public synchronized int deleteBefore(long lsn) throws IOException {
+        int deleted = 0;
+        while (!segments.isEmpty() && (segments.firstKey() + 1) * segmentSize <= lsn) {
+            delete(segments.firstKey());
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Cut the log off at the specified LSN, dropping everything after it */
+    public synchronized void truncate(long lsn) throws IOException {
+        while (!segments.isEmpty() && segments.lastKey() * segmentSize > lsn)
+            delete(segments.lastKey());
+        if (!segments.isEmpty()) {
+            long last = segments.lastKey();
+            RandomAccessFile f = segments.get(last);
+            if (last * segmentSize + f.length() > lsn)
+                f.setLength(lsn - last * segmentSize);
+        }
+    }
+
+    /** Delete every segment */
+    public synchronized void reset() throws IOException {
+        while (!segments.isEmpty())
+            delete(segments.lastKey());
+    }
+
+    private void delete(long seg) throws IOException {
+        segments.remove(seg).close();
+        unforced.remove(seg);
+        segmentFile(seg).delete();
+    }
+
+    /** Close every segment file */
+    public synchronized void close() throws IOException {
+        for (RandomAccessFile f : segments.values())
+            f.close();
+        segments.clear();
+        unforced.clear();
+    }
+
+    /** @return a new reader, positioned at LSN 0 */
+    public Reader reader() {
+        return new Reader(new SegmentInput());
+    }
+
+    /**
+     * Reads the log by LSN across segments. Reading a missing segment, or
+     * past the end of the log, throws EOFException.
+     */
+    public static class Reader extends DataInputStream {
+        private final SegmentInput input;
+
+        private Reader(SegmentInput input) {
+            super(input);
+            this.input = input;
+        }
+
+        /** Move to the specified LSN */
+        public void seek(long lsn) {
+            input.pos = lsn;
+        }
+
+        /** @return the LSN of the next byte to be read */
+        public long getFilePointer() {
+            return input.pos;
+        }
+    }
+
+    /** A buffered stream over the segments, starting at any LSN */
+    private class SegmentInput extends InputStream {
+        long pos;
+        private final byte[] buf = new byte[LogBuffer.BLOCK_SIZE];
+        private long bufStart;
+        private int bufLen;
+
+        /** Make sure pos is in the buffer, if it is in the log.
+            @return false at the end of the log */
+        private boolean fill() throws IOException {
+            if (pos >= bufStart && pos < bufStart + bufLen)
+                return true;
+            long seg = pos / segmentSize;
+            RandomAccessFile f;
+            synchronized (LogSegments.this) {
+                f = segments.get(seg);
+            }
+            bufStart = pos;
+            bufLen = 0;
+            if (f == null)
+                return false;
+            int n = (int) Math.min(buf.length, (seg + 1) * segmentSize - pos);
+            FileChannel channel = f.getChannel();
+            ByteBuffer dst = ByteBuffer.wrap(buf, 0, n);
+            long at = pos - seg * segmentSize;
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, at + dst.position());
+                if (read < 0)
+                    break;
+            }
+            bufLen = dst.position();
+            return bufLen > 0;
+        }
+
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buf[(int) (pos++ - bufStart)] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = (int) Math.min(len, bufStart + bufLen - pos);
+            System.arraycopy(buf, (int) (pos - bufStart), b, off, n);
+            pos += n;
+            return n;
+        }
+
+        public long skip(long n) {
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -271,6 +272,47 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Compute the fields of the table scanned as alias that are referenced anywhere in
+     *  this plan (select list, filters, joins, aggregate, group by and order by).
+     *  @param alias the alias of the scanned table
+     *  @param td the TupleDesc of the scanned table
+     *  @return the indexes of the referenced fields in table order, or null if every
+     *    field is needed
+     */
+    int[] referencedColumns(String alias, TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            names.add(si.fname);
+        }
+        if (aggField != null) names.add(aggField);
+        if (groupByField != null) names.add(groupByField);
+        if (oByField != null) names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+
+        ArrayList<Integer> columns = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(alias + "." + td.getFieldName(i)))
+                columns.add(i);
+        }
+        if (columns.size() == td.numFields())
+            return null;
+        if (columns.isEmpty())
+            columns.add(0); // still need something to count rows with
+
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = columns.get(i);
+        return result;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -289,17 +331,23 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scanMap = new HashMap<String,SeqScan>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 // column stores only read the columns the query touches
+                 int[] columns = (file instanceof ColumnFile) ?
+                     referencedColumns(table.alias, file.getTupleDesc()) : null;
+                 ss = new SeqScan(t, file.getId(), table.alias, columns);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
+            scanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -335,10 +383,17 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // filters don't change the TupleDesc, so p's field numbers are
+            // the scan's, and the scan may skip pages that p rules out
+            scanMap.get(lf.tableAlias).addPageFilter(p);
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            int tableId = this.getTableId(lf.tableAlias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // stats are kept by the table's own field numbers, which a
+            // scan of a column subset does not use
+            TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableId);
+            double sel= s.estimateSelectivity(tableTd.fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OccBenchmark compares two-phase locking with optimistic concurrency
+ * control (see BufferPool#beginOptimistic) as the fraction of transactions
+ * that write grows. Each transaction reads a few random pages of a shared
+ * table and, with the given probability, then updates a tuple on one of
+ * them in place and commits. Under locking, readers that go on to write
+ * must upgrade their shared locks, so deadlock detection is turned on for
+ * those runs; optimistic readers take no locks and are aborted only when
+ * they fail validation.
+ * <p>
+ * Run it with
+ * <pre>
+ *     java -cp ... simpledb.SimpleDb occbench [seconds] [threads] [reads] [write % ...]
+ * </pre>
+ * where reads is the number of pages each transaction reads. It uses the
+ * database's log file in the current directory.
+ */
+public class OccBenchmark {
+
+    private static final int[] DEFAULT_WRITE_PERCENT = { 0, 1, 5, 10, 25, 50 };
+    private static final int PAGES = 16;
+
+    public static void main(String[] args) throws IOException {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int nThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int reads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int[] writePercent = DEFAULT_WRITE_PERCENT;
+        if (args.length > 3) {
+            writePercent = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++)
+                writePercent[i - 3] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println(nThreads + " threads, " + reads + " of " + PAGES + " pages read, "
+                           + seconds + " s per run");
+        System.out.println("write %\t2PL commits/sec\t2PL abort %\tOCC commits/sec\tOCC abort %");
+        for (int w : writePercent) {
+            double[] locking = run(false, nThreads, seconds, reads, w);
+            double[] optimistic = run(true, nThreads, seconds, reads, w);
+            System.out.printf("%d\t%.1f\t%.1f\t%.1f\t%.1f%n", w,
+                              locking[0], locking[1], optimistic[0], optimistic[1]);
+        }
+    }
+
+    /**
+     * Run the benchmark once on a fresh database.
+     *
+     * @param optimistic true to run optimistic transactions, false to lock
+     * @param writePercent the percentage of transactions that write
+     * @return the number of commits per second over all threads, and the
+     *   percentage of transactions that aborted
+     */
+    public static double[] run(final boolean optimistic, int nThreads, int seconds,
+                               final int reads, final int writePercent) throws IOException {
+        Database.reset();
+        File f = File.createTempFile("occbench", ".dat");
+        f.deleteOnExit();
+        ZoneMap.getMapFile(f).deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(2);
+        final HeapFile table = new HeapFile(f, td);
+        Database.getCatalog().addTable(table, "occbench");
+        int perPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < PAGES * perPage; i++)
+                Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                                     Utility.getHeapTuple(i, 2));
+            t.commit();
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        }
+
+        boolean detect = BufferPool.DETECT_DEADLOCK;
+        BufferPool.DETECT_DEADLOCK = !optimistic;
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final Random rand = new Random(i);
+            workers[i] = new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < deadline) {
+                        Transaction t = new Transaction();
+                        t.setOptimistic(optimistic);
+                        t.start();
+                        try {
+                            try {
+                                transaction(t.getId(), table, rand, reads,
+                                            rand.nextInt(100) < writePercent);
+                                t.commit();
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                t.abort();
+                                aborts.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            for (Thread w : workers)
+                w.start();
+            for (Thread w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for benchmark threads");
+                }
+            }
+        } finally {
+            BufferPool.DETECT_DEADLOCK = detect;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        long total = commits.get() + aborts.get();
+        return new double[] { commits.get() * 1000.0 / elapsed,
+                              (total == 0) ? 0 : aborts.get() * 100.0 / total };
+    }
+
+    /**
+     * Read some random pages of the table and, if write is set, replace
+     * a random tuple of the last one read with a new one in the same slot.
+     */
+    private static void transaction(TransactionId tid, HeapFile table, Random rand,
+                                    int reads, boolean write)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = null;
+        long sum = 0;
+        for (int i = 0; i < reads; i++) {
+            pid = new HeapPageId(table.getId(), rand.nextInt(PAGES));
+            Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+            while (it.hasNext())
+                sum += ((IntField) it.next().getField(0)).getValue();
+        }
+        if (!write)
+            return;
+        HeapPage hp = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        hp.getLatch().writeLock().lock();
+        try {
+            int slot = rand.nextInt(hp.numSlots);
+            hp.deleteTuple(hp.getTuple(slot));
+            hp.insertTuple(Utility.getHeapTuple((int) sum, 2), slot);
+        } finally {
+            hp.getLatch().writeLock().unlock();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.concurrent.locks.ReadWriteLock;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -12,6 +14,9 @@ package simpledb;
  */
 public interface Page {
 
+    /** Number of bytes at the end of every page that hold its LSN */
+    public static final int LSN_SIZE = 8;
+
     /**
      * Return the id of this page.  The id is a unique identifier for a page
      * that can be used to look up the page on disk or determine if the page
@@ -33,6 +38,19 @@ public interface Page {
    */
     public void markPageDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * Return the page's LSN: the offset in the log of the last logged change
+     * that this page reflects, or 0 if none is. It is stored in the last
+     * LSN_SIZE bytes of the page data, so recovery can tell which records
+     * are already on disk.
+     */
+    public long getLSN();
+
+    /**
+     * Set the page's LSN
+     */
+    public void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
@@ -56,4 +74,17 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return this page's latch: a reader/writer lock a thread holds only
+     * while it reads or changes this page object, so that it sees the page
+     * in a consistent state. Latches are independent of the transactional
+     * locks of BufferPool: they belong to threads, are never held until
+     * commit, and are not checked for deadlocks. The methods that read the
+     * whole page or change it take the latch themselves; callers that must
+     * see the page unchanged across several calls, or change it in several
+     * steps, hold it meanwhile. A thread holding a latch must not wait for
+     * the buffer pool's monitor, which is held while pages are written out.
+     */
+    public ReadWriteLock getLatch();
 }
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+/**
+ * PageCompressor compresses and decompresses page images with the zlib
+ * implementation bundled in lib/jzlib-1.0.7.jar.
+ * <p>
+ * Pages are mostly zero padding and repeated field values, so even the
+ * fastest compression level usually shrinks them several times over.
+ */
+public class PageCompressor {
+
+    /** Compression level used for page images. */
+    private static final int LEVEL = JZlib.Z_BEST_SPEED;
+
+    private PageCompressor() {
+    }
+
+    /**
+     * Compress the specified bytes.
+     *
+     * @param data the bytes to compress
+     * @return the compressed bytes
+     * @throws IOException if zlib reports an error
+     */
+    public static byte[] compress(byte[] data) throws IOException {
+        ZStream z = new ZStream();
+        if (z.deflateInit(LEVEL) != JZlib.Z_OK)
+            throw new IOException("deflateInit failed: " + z.msg);
+        // worst case zlib expansion is a few bytes per 16 KB block
+        byte[] out = new byte[data.length + data.length / 1000 + 64];
+        z.next_in = data;
+        z.next_in_index = 0;
+        z.avail_in = data.length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err = z.deflate(JZlib.Z_FINISH);
+        int len = (int) z.total_out;
+        z.deflateEnd();
+        if (err != JZlib.Z_STREAM_END)
+            throw new IOException("deflate failed: " + z.msg);
+        return Arrays.copyOf(out, len);
+    }
+
+    /**
+     * Decompress the specified bytes.
+     *
+     * @param data buffer holding the compressed bytes
+     * @param offset offset of the first compressed byte in data
+     * @param length number of compressed bytes
+     * @param uncompressedLength exact length of the original bytes
+     * @return the original bytes
+     * @throws IOException if the data is corrupt or has the wrong length
+     */
+    public static byte[] decompress(byte[] data, int offset, int length, int uncompressedLength)
+        throws IOException {
+        ZStream z = new ZStream();
+        if (z.inflateInit() != JZlib.Z_OK)
+            throw new IOException("inflateInit failed: " + z.msg);
+        byte[] out = new byte[uncompressedLength];
+        z.next_in = data;
+        z.next_in_index = offset;
+        z.avail_in = length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err = z.inflate(JZlib.Z_FINISH);
+        long len = z.total_out;
+        z.inflateEnd();
+        if (err != JZlib.Z_STREAM_END || len != uncompressedLength)
+            throw new IOException("inflate failed: " + z.msg);
+        return out;
+    }
+
+    public static byte[] decompress(byte[] data, int uncompressedLength) throws IOException {
+        return decompress(data, 0, data.length, uncompressedLength);
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageRegistry gives every kind of page that can be logged a small integer
+ * tag, so that {@link LogFile} writes a page's type in one byte and builds
+ * pages from log records with a direct factory call rather than by
+ * reflection.
+ * <p>
+ * A page's type also fixes the kind of its PageId, so a logged page id is
+ * just the tag followed by the ints of PageId#serialize. New kinds of page
+ * must be registered before they are logged; tags are part of the log
+ * format and must never be reused.
+ */
+public class PageRegistry {
+
+    /** Builds the ids and pages of one kind of page. */
+    public static abstract class PageType {
+        final int tag;
+        final Class<? extends Page> pageClass;
+        final int idSize;
+
+        /**
+         * @param tag the page type's tag, from 1 to 255
+         * @param pageClass the exact class of its pages
+         * @param idSize the number of ints in the serialized page id
+         */
+        protected PageType(int tag, Class<? extends Page> pageClass, int idSize) {
+            this.tag = tag;
+            this.pageClass = pageClass;
+            this.idSize = idSize;
+        }
+
+        /** @return the page id serialized as the specified ints */
+        public abstract PageId newId(int[] id);
+
+        /** @return the page with the specified id and data */
+        public abstract Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    /** B+ tree pages: BTreePageIds, and the key field of their file */
+    private static abstract class BTreePageType extends PageType {
+        BTreePageType(int tag, Class<? extends Page> pageClass) {
+            super(tag, pageClass, 3);
+        }
+
+        public PageId newId(int[] id) {
+            return new BTreePageId(id[0], id[1], id[2]);
+        }
+
+        int keyField(PageId pid) {
+            return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+        }
+    }
+
+    private static final AtomicReferenceArray<PageType> byTag = new AtomicReferenceArray<PageType>(256);
+    private static final ConcurrentHashMap<Class<?>, PageType> byClass =
+        new ConcurrentHashMap<Class<?>, PageType>();
+
+    static {
+        register(new PageType(1, HeapPage.class, 2) {
+            public PageId newId(int[] id) {
+                return new HeapPageId(id[0], id[1]);
+            }
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+        register(new PageType(2, ColumnPage.class, 3) {
+            public PageId newId(int[] id) {
+                return new ColumnPageId(id[0], id[1], id[2]);
+            }
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new ColumnPage((ColumnPageId) pid, data);
+            }
+        });
+        register(new BTreePageType(3, BTreeRootPtrPage.class) {
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeRootPtrPage((BTreePageId) pid, data);
+            }
+        });
+        register(new BTreePageType(4, BTreeHeaderPage.class) {
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeHeaderPage((BTreePageId) pid, data);
+            }
+        });
+        register(new BTreePageType(5, BTreeInternalPage.class) {
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeInternalPage((BTreePageId) pid, data, keyField(pid));
+            }
+        });
+        register(new BTreePageType(6, BTreeLeafPage.class) {
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new BTreeLeafPage((BTreePageId) pid, data, keyField(pid));
+            }
+        });
+        register(new BTreePageType(7, BLinkTreeInternalPage.class) {
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new BLinkTreeInternalPage((BTreePageId) pid, data, keyField(pid));
+            }
+        });
+        register(new BTreePageType(8, BLinkTreeLeafPage.class) {
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new BLinkTreeLeafPage((BTreePageId) pid, data, keyField(pid));
+            }
+        });
+    }
+
+    /**
+     * Add a kind of page to the registry.
+     *
+     * @throws IllegalArgumentException if its tag or class is already taken
+     */
+    public static synchronized void register(PageType type) {
+        if (type.tag < 1 || type.tag >= byTag.length())
+            throw new IllegalArgumentException("page type tag out of range: " + type.tag);
+        if (byTag.get(type.tag) != null || byClass.containsKey(type.pageClass))
+            throw new IllegalArgumentException("page type already registered: " + type.pageClass.getName());
+        byTag.set(type.tag, type);
+        byClass.put(type.pageClass, type);
+    }
+
+    /**
+     * @return the type of the specified page
+     * @throws IllegalArgumentException if its class is not registered
+     */
+    public static PageType forPage(Page p) {
+        PageType type = byClass.get(p.getClass());
+        if (type == null)
+            throw new IllegalArgumentException("unregistered page type: " + p.getClass().getName());
+        return type;
+    }
+
+    /** @return the type with the specified tag, or null if there is none */
+    public static PageType forTag(int tag) {
+        return byTag.get(tag);
+    }
+
+    /** Write the type and id of a page */
+    static void writeId(DataOutput out, PageType type, PageId pid) throws IOException {
+        int[] id = pid.serialize();
+        out.writeByte(type.tag);
+        for (int i = 0; i < type.idSize; i++)
+            out.writeInt(id[i]);
+    }
+
+    /**
+     * Read the type written by writeId.
+     *
+     * @throws IOException if the tag is not registered
+     */
+    static PageType readType(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        PageType type = forTag(tag);
+        if (type == null)
+            throw new IOException("unknown page type tag " + tag);
+        return type;
+    }
+
+    /** Read the id written by writeId, after its type */
+    static PageId readId(DataInput in, PageType type) throws IOException {
+        int[] id = new int[type.idSize];
+        for (int i = 0; i < id.length; i++)
+            id[i] = in.readInt();
+        return type.newId(id);
+    }
+}
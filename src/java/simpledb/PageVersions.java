@@ -0,0 +1,229 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * PageVersions keeps the committed versions of pages that snapshot
+ * transactions may still read (see BufferPool#beginSnapshot).
+ * <p>
+ * Every commit is given a timestamp from a counter, and a snapshot reads
+ * the pages as of the timestamp of the last commit before it began. The
+ * committed version of a cached page is its before image, which commits
+ * move forward; when a commit replaces it while a snapshot is running, the
+ * replaced image is kept here, stamped with the timestamp of the commit
+ * that wrote it. Old versions are dropped as soon as no running snapshot
+ * can read them, and none are kept while there are no snapshots.
+ * <p>
+ * The before image of a page whose uncommitted changes were stolen to disk
+ * and then read back is not its committed version, so the committed
+ * version of stolen pages is kept until their writers finish.
+ * <p>
+ * Not thread-safe: it is protected by the buffer pool's monitor.
+ */
+class PageVersions {
+
+    /** A committed image of a page and the timestamp of its commit */
+    private static class Version {
+        final long ts;
+        final Page image;
+
+        Version(long ts, Page image) {
+            this.ts = ts;
+            this.image = image;
+        }
+    }
+
+    /** timestamp of the last commit */
+    private long clock = 0;
+    /** running snapshot -> its timestamp */
+    private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    /** timestamp of the last commit of each page committed during a
+        snapshot; pages not here were last committed before every snapshot */
+    private final HashMap<PageId, Long> commitTs = new HashMap<PageId, Long>();
+    /** older committed versions of each page in commitTs, oldest first */
+    private final HashMap<PageId, ArrayList<Version>> older = new HashMap<PageId, ArrayList<Version>>();
+    /** committed version of each page stolen by an uncommitted writer */
+    private final HashMap<PageId, Page> stolen = new HashMap<PageId, Page>();
+    private final HashMap<TransactionId, Set<PageId>> stolenBy = new HashMap<TransactionId, Set<PageId>>();
+    /** committed images already handed out, so they are built only once */
+    private final HashMap<PageId, Page> current = new HashMap<PageId, Page>();
+
+    /** Start a snapshot of the pages as of the last commit */
+    void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** @return true if the specified transaction reads a snapshot */
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** End a snapshot, dropping the versions only it could read */
+    void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            collect();
+    }
+
+    /**
+     * @return true if the specified page was committed after the specified
+     *   snapshot began, so the snapshot must not write it
+     */
+    boolean changedSince(TransactionId tid, PageId pid) {
+        Long ts = commitTs.get(pid);
+        return ts != null && ts > snapshots.get(tid);
+    }
+
+    /**
+     * @return the version of a page the specified snapshot reads
+     * @param p the cached page
+     * @throws DbException if the page did not exist when the snapshot began
+     */
+    Page read(TransactionId tid, Page p) throws DbException {
+        PageId pid = p.getId();
+        long snapshot = snapshots.get(tid);
+        Long ts = commitTs.get(pid);
+        if (ts == null || ts <= snapshot) {
+            Page image = current.get(pid);
+            if (image == null) {
+                image = stolen.get(pid);
+                if (image == null)
+                    image = p.getBeforeImage();
+                current.put(pid, image);
+            }
+            return image;
+        }
+        ArrayList<Version> versions = older.get(pid);
+        if (versions != null) {
+            for (int i = versions.size() - 1; i >= 0; i--)
+                if (versions.get(i).ts <= snapshot)
+                    return versions.get(i).image;
+        }
+        throw new DbException("no version of page " + pid + " visible to snapshot of " + tid);
+    }
+
+    /**
+     * Note that uncommitted changes to a page are about to be written to
+     * disk.
+     *
+     * @param committed the page's committed version
+     */
+    void pageStolen(TransactionId tid, PageId pid, Page committed) {
+        if (!stolen.containsKey(pid))
+            stolen.put(pid, committed);
+        Set<PageId> pids = stolenBy.get(tid);
+        if (pids == null) {
+            pids = new HashSet<PageId>();
+            stolenBy.put(tid, pids);
+        }
+        pids.add(pid);
+    }
+
+    /** @return true if a transaction other than tid stole the page */
+    private boolean stolenByOthers(TransactionId tid, PageId pid) {
+        for (Map.Entry<TransactionId, Set<PageId>> e : stolenBy.entrySet())
+            if (!e.getKey().equals(tid) && e.getValue().contains(pid))
+                return true;
+        return false;
+    }
+
+    /**
+     * Commit the specified pages, before their before images move forward.
+     *
+     * @param pages the cached pages tid changed
+     * @param shared the cached pages tid changed some records of, while
+     *   other transactions may have changed others (see
+     *   BufferPool#lockRecord), with the slots tid changed
+     */
+    void committed(TransactionId tid, Collection<Page> pages, Map<HeapPage, List<Integer>> shared) {
+        long ts = ++clock;
+        HashMap<PageId, Page> before = new HashMap<PageId, Page>();
+        HashMap<PageId, HeapPage> sharedById = new HashMap<PageId, HeapPage>();
+        for (HeapPage p : shared.keySet())
+            sharedById.put(p.getId(), p);
+        Set<PageId> pids = stolenBy.remove(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                Page image = stolen.get(pid);
+                before.put(pid, image);
+                HeapPage p = sharedById.get(pid);
+                if (p != null && stolenByOthers(tid, pid)) {
+                    // the others' changes are still uncommitted
+                    HeapPage committed = ((HeapPage) image).getBeforeImage();
+                    committed.setSlots(p, shared.get(p));
+                    stolen.put(pid, committed);
+                } else {
+                    stolen.remove(pid);
+                }
+            }
+        }
+        ArrayList<Page> changed = new ArrayList<Page>(pages);
+        changed.addAll(shared.keySet());
+        for (Page p : changed) {
+            if (!before.containsKey(p.getId()))
+                before.put(p.getId(), snapshots.isEmpty() ? null : p.getBeforeImage());
+        }
+        for (Map.Entry<PageId, Page> e : before.entrySet()) {
+            PageId pid = e.getKey();
+            current.remove(pid);
+            if (snapshots.isEmpty())
+                continue;
+            Long last = commitTs.put(pid, ts);
+            ArrayList<Version> versions = older.get(pid);
+            if (versions == null) {
+                versions = new ArrayList<Version>();
+                older.put(pid, versions);
+            }
+            versions.add(new Version(last == null ? 0 : last, e.getValue()));
+        }
+    }
+
+    /** Forget the pages an aborted transaction stole */
+    void aborted(TransactionId tid) {
+        Set<PageId> pids = stolenBy.remove(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                if (!stolenByOthers(tid, pid))
+                    stolen.remove(pid);
+                current.remove(pid);
+            }
+        }
+    }
+
+    /** Forget the committed image built for a page that left the pool */
+    void uncached(PageId pid) {
+        current.remove(pid);
+    }
+
+    /** Drop the versions no running snapshot can read */
+    private void collect() {
+        if (snapshots.isEmpty()) {
+            commitTs.clear();
+            older.clear();
+            return;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<Map.Entry<PageId, Long>> it = commitTs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, Long> e = it.next();
+            if (e.getValue() <= oldest) {
+                older.remove(e.getKey());
+                it.remove();
+                continue;
+            }
+            // keep the newest version the oldest snapshot reads, and later ones
+            ArrayList<Version> versions = older.get(e.getKey());
+            int keep = versions.size() - 1;
+            while (keep > 0 && versions.get(keep).ts > oldest)
+                keep--;
+            versions.subList(0, keep).clear();
+        }
+    }
+
+    /** @return the number of old versions kept, for tests */
+    int numVersions() {
+        int n = 0;
+        for (ArrayList<Version> versions : older.values())
+            n += versions.size();
+        return n;
+    }
+}
@@ -4,6 +4,14 @@ package simpledb;
  * Class representing requested permissions to a relation/file.
  * Private constructor with two static objects READ_ONLY and READ_WRITE that
  * represent the two levels of permission.
+ * <p>
+ * INTENTION_SHARED and INTENTION_EXCLUSIVE lock a page whose records are
+ * locked one at a time (see BufferPool#lockRecord): many transactions may
+ * read and write different records of the page at once, but not while
+ * another one holds a READ_ONLY or READ_WRITE lock on the whole page.
+ * <p>
+ * NO_LOCK takes no transactional lock at all: callers protect what they
+ * read from concurrent changes with the page's latch (see Page#getLatch).
  */
 public class Permissions {
   int permLevel;
@@ -17,12 +25,18 @@ public class Permissions {
       return "READ_ONLY";
     if (permLevel == 1)
       return "READ_WRITE";
+    if (permLevel == 3)
+      return "INTENTION_SHARED";
+    if (permLevel == 4)
+      return "INTENTION_EXCLUSIVE";
     return "UNKNOWN";
   }
 
   public static final Permissions READ_ONLY = new Permissions(0);
   public static final Permissions READ_WRITE = new Permissions(1);
-  public static final Permissions NO_LOCK = new Permissions(2); // Temperory set to same as READ_ONLY FIXME
+  public static final Permissions NO_LOCK = new Permissions(2);
+  public static final Permissions INTENTION_SHARED = new Permissions(3);
+  public static final Permissions INTENTION_EXCLUSIVE = new Permissions(4);
 
 	@Override
 	public boolean equals(Object obj) {
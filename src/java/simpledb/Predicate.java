@@ -13,6 +13,10 @@ public class Predicate implements Serializable {
     private Op op;
     private Field operand;
 
+    /** the dictionary operandCode was looked up in, and the code found */
+    private transient StringDictionary codedDictionary;
+    private transient int operandCode;
+
     /** Constants used for return codes in Field.compare */
     public enum Op implements Serializable {
         EQUALS, GREATER_THAN, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN_OR_EQ, LIKE, NOT_EQUALS;
@@ -105,7 +109,30 @@ public class Predicate implements Serializable {
     public boolean filter(Tuple t) {
         // some code goes here
         if (t == null) return false;
-        return t.getField(fieldNo).compare(op, operand);
+        Field f = t.getField(fieldNo);
+        if (f instanceof DictionaryField && operand instanceof StringField
+                && (op == Op.EQUALS || op == Op.NOT_EQUALS)) {
+            // dictionary-encoded column: compare codes, not strings
+            DictionaryField df = (DictionaryField) f;
+            boolean equal = (df.getCode() == getOperandCode(df.getDictionary()));
+            return (op == Op.EQUALS) == equal;
+        }
+        return f.compare(op, operand);
+    }
+
+    /**
+     * @return the code of the operand in the specified dictionary, or -1 if
+     *   it is not there. Codes never change once assigned, so a code found
+     *   is cached; a miss is not, since the string may be added later.
+     */
+    private synchronized int getOperandCode(StringDictionary dictionary) {
+        if (dictionary == codedDictionary) return operandCode;
+        int code = dictionary.lookup(((StringField) operand).getValue());
+        if (code >= 0) {
+            codedDictionary = dictionary;
+            operandCode = code;
+        }
+        return code;
     }
 
     /**
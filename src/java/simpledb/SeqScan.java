@@ -15,7 +15,12 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
 
+    private int[] columns;
+    private List<Predicate> pageFilters = new ArrayList<Predicate>();
+
     private DbFileIterator fIter;
+    private boolean fIterProjects;
+    private TupleDesc projectedTd;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -35,12 +40,48 @@ public class SeqScan implements DbIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that only returns the specified columns of
+     * the table, in the specified order. If the table is stored in a
+     * {@link ColumnFile}, only the pages of those columns are read.
+     *
+     * @param columns
+     *            the field indexes to return, or null for all fields
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.columns = (columns == null) ? null : columns.clone();
         fIter = null;
     }
 
+    /**
+     * @return the field indexes this scan returns, or null if it returns
+     *       every field of the table
+     */
+    public int[] getColumns() {
+        return (columns == null) ? null : columns.clone();
+    }
+
+    /**
+     * Tells this scan that only tuples satisfying p will be used, so pages
+     * that provably hold none may be skipped. The scan still returns every
+     * tuple of the pages it reads; filtering remains the caller's job.
+     * Takes effect on the next open(). The planner calls this for each
+     * filter it puts over this scan (see LogicalPlan#physicalPlan).
+     *
+     * @param p
+     *            a predicate over the fields returned by this scan
+     * @see HeapFile#iterator(TransactionId, List)
+     */
+    public void addPageFilter(Predicate p) {
+        if (!pageFilters.contains(p)) pageFilters.add(p);
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -75,6 +116,8 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.columns = null;
+        this.pageFilters.clear();
         this.fIter = null;
     }
 
@@ -85,13 +128,30 @@ public class SeqScan implements DbIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         try {
-            fIter = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            fIterProjects = (columns != null && file instanceof ColumnFile);
+            projectedTd = (columns != null && !fIterProjects) ? getTupleDesc() : null;
+            if (fIterProjects)
+                fIter = ((ColumnFile) file).iterator(tid, columns);
+            else if (file instanceof HeapFile && !pageFilters.isEmpty())
+                fIter = ((HeapFile) file).iterator(tid, tablePageFilters());
+            else
+                fIter = file.iterator(tid);
             fIter.open();
         } catch (Exception e) {
             throw (DbException) e;
         }
     }
 
+    /** @return the page filters, with fields numbered as in the table */
+    private List<Predicate> tablePageFilters() {
+        if (columns == null) return pageFilters;
+        List<Predicate> mapped = new ArrayList<Predicate>();
+        for (Predicate p : pageFilters)
+            mapped.add(new Predicate(columns[p.getField()], p.getOp(), p.getOperand()));
+        return mapped;
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor. This prefix
@@ -104,12 +164,13 @@ public class SeqScan implements DbIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
-        int numFields = td.numFields();
+        int numFields = (columns == null) ? td.numFields() : columns.length;
         Type[] typeAr = new Type[numFields];
         String[] fieldAr = new String[numFields];
         for (int i = 0; i < numFields; i ++) {
-            typeAr[i] = td.getFieldType(i);
-            fieldAr[i] = tableAlias + "." + td.getFieldName(i);
+            int field = (columns == null) ? i : columns[i];
+            typeAr[i] = td.getFieldType(field);
+            fieldAr[i] = tableAlias + "." + td.getFieldName(field);
         }
         return new TupleDesc(typeAr, fieldAr);
     }
@@ -124,6 +185,14 @@ public class SeqScan implements DbIterator {
         // some code goes here
         if (!hasNext()) throw new NoSuchElementException("File Iterator is null.");
         Tuple n = fIter.next();
+        if (columns != null && !fIterProjects) {
+            // row store: read the whole tuple, then drop the unwanted fields
+            Tuple projected = new Tuple(projectedTd);
+            for (int i = 0; i < columns.length; i ++)
+                projected.setField(i, n.getField(columns[i]));
+            projected.setRecordId(n.getRecordId());
+            n = projected;
+        }
         //System.out.println("Tid is" + tid.toString() + " Seq Tuple is" + ((IntField)(n.getField(0))).getValue());
         return n;
     }
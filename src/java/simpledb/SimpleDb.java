@@ -90,6 +90,12 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("commitbench")) {
+            CommitBenchmark.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+        }
+        else if (args[0].equals("occbench")) {
+            OccBenchmark.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
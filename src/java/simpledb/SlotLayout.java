@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * SlotLayout describes where the tuple slots of a slotted page are in its
+ * serialized form (see Page#getPageData): a bitmap with one bit per slot,
+ * followed by numSlots slots of slotSize bytes each. An empty slot is all
+ * zeroes. {@link LogFile} uses it to log and replay changes to single
+ * slots instead of whole page images.
+ * <p>
+ * HeapPage and BTreeLeafPage are laid out this way; a BTreeLeafPage has
+ * its parent and sibling pointers in front of the bitmap. Bytes outside the
+ * bitmap and the slots (those pointers, and the padding at the end of the
+ * page) are the page's frame, except for the page's LSN in the last
+ * Page.LSN_SIZE bytes, which changes with every logged change.
+ */
+class SlotLayout {
+
+    final int bitmapOffset;
+    final int numSlots;
+    final int slotsOffset;
+    final int slotSize;
+
+    private SlotLayout(int bitmapOffset, int numSlots, int bitmapSize, int slotSize) {
+        this.bitmapOffset = bitmapOffset;
+        this.numSlots = numSlots;
+        this.slotsOffset = bitmapOffset + bitmapSize;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * @return the layout of the specified page, or null if the page is not
+     *   a plain HeapPage or BTreeLeafPage
+     */
+    static SlotLayout of(Page p) {
+        if (p.getClass() == HeapPage.class) {
+            HeapPage hp = (HeapPage) p;
+            return new SlotLayout(0, hp.numSlots, hp.header.length, hp.tupleSize);
+        }
+        if (p.getClass() == BTreeLeafPage.class) {
+            BTreeLeafPage lp = (BTreeLeafPage) p;
+            return new SlotLayout(3 * BTreePage.INDEX_SIZE, lp.numSlots, lp.header.length,
+                                  lp.td.getSize());
+        }
+        return null;
+    }
+
+    boolean isUsed(byte[] data, int slot) {
+        return (data[bitmapOffset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private int offset(int slot) {
+        return slotsOffset + slot * slotSize;
+    }
+
+    /** @return true if the slot holds the same bytes in both images */
+    boolean sameSlot(byte[] a, byte[] b, int slot) {
+        int off = offset(slot);
+        for (int i = off; i < off + slotSize; i++)
+            if (a[i] != b[i]) return false;
+        return true;
+    }
+
+    /** @return true if both images have the same frame */
+    boolean sameFrame(byte[] a, byte[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < bitmapOffset; i++)
+            if (a[i] != b[i]) return false;
+        for (int i = offset(numSlots); i < a.length - Page.LSN_SIZE; i++)
+            if (a[i] != b[i]) return false;
+        return true;
+    }
+
+    /** Write the bytes of a slot of the specified image */
+    void writeSlot(DataOutput out, byte[] data, int slot) throws IOException {
+        out.write(data, offset(slot), slotSize);
+    }
+
+    /** Copy a slot, and its bit in the bitmap, from one image to another */
+    void copySlot(byte[] from, byte[] to, int slot) {
+        int off = offset(slot);
+        int bit = 1 << (slot % 8);
+        int b = bitmapOffset + slot / 8;
+        to[b] = (byte) ((to[b] & ~bit) | (from[b] & bit));
+        System.arraycopy(from, off, to, off, slotSize);
+    }
+
+    /**
+     * Fill a slot of the specified image with a tuple's bytes, or empty it.
+     *
+     * @param tuple the slotSize bytes of the tuple, or null to empty the slot
+     */
+    void setSlot(byte[] data, int slot, byte[] tuple) {
+        int off = offset(slot);
+        int bit = 1 << (slot % 8);
+        if (tuple == null) {
+            data[bitmapOffset + slot / 8] &= ~bit;
+            Arrays.fill(data, off, off + slotSize, (byte) 0);
+        } else {
+            data[bitmapOffset + slot / 8] |= bit;
+            System.arraycopy(tuple, 0, data, off, slotSize);
+        }
+    }
+}
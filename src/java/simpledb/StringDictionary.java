@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * StringDictionary maps the distinct strings of a table to small integer
+ * codes, so that a {@link DictionaryHeapFile} can store a 4-byte code in
+ * place of each STRING_TYPE field.
+ * <p>
+ * Codes are handed out densely from 0 in order of first use and are never
+ * reassigned, so a code written to a page stays valid forever. The
+ * dictionary is persisted in a side file next to the data file, named with
+ * a ".dict" suffix, holding the strings in code order. The side file is
+ * not covered by the log: instead each new string is appended to it and
+ * forced to disk before its code is returned, so neither a page nor a log
+ * record can refer to a code the dictionary has lost in a crash. A crash
+ * during an append can only tear the entry being added, whose code was
+ * never returned; loading the dictionary cuts that entry off.
+ */
+public class StringDictionary {
+
+    private final File dictFile;
+    /** code -> string; the strings are shared by every field decoded */
+    private final ArrayList<String> strings;
+    /** string -> code */
+    private final HashMap<String, Integer> codes;
+
+    /**
+     * Create the dictionary of the specified data file, loading its side
+     * file if there is one.
+     */
+    public StringDictionary(File dataFile) {
+        this.dictFile = getDictionaryFile(dataFile);
+        this.strings = new ArrayList<String>();
+        this.codes = new HashMap<String, Integer>();
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read dictionary " + dictFile, e);
+        }
+    }
+
+    /** @return the side file holding the dictionary of the specified data file */
+    public static File getDictionaryFile(File f) {
+        return new File(f.getPath() + ".dict");
+    }
+
+    private void load() throws IOException {
+        if (!dictFile.exists()) return;
+        RandomAccessFile raf = new RandomAccessFile(dictFile, "rw");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            ByteArrayInputStream bis = new ByteArrayInputStream(data);
+            DataInputStream dis = new DataInputStream(bis);
+            // the length of the complete entries read so far
+            int end = 0;
+            while (end < data.length) {
+                String s;
+                try {
+                    s = dis.readUTF();
+                } catch (EOFException e) {
+                    break;
+                } catch (UTFDataFormatException e) {
+                    break;
+                }
+                codes.put(s, strings.size());
+                strings.add(s);
+                end = data.length - bis.available();
+            }
+            if (end < data.length) {
+                // an append torn by a crash; new entries go in its place
+                raf.setLength(end);
+                raf.getFD().sync();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** @return the number of strings in this dictionary */
+    public synchronized int size() {
+        return strings.size();
+    }
+
+    /**
+     * @return the string with the specified code
+     * @throws NoSuchElementException if no string has that code
+     */
+    public synchronized String decode(int code) {
+        if (code < 0 || code >= strings.size())
+            throw new NoSuchElementException("No string with code " + code);
+        return strings.get(code);
+    }
+
+    /**
+     * @return the code of the specified string, or -1 if it is not in the
+     *   dictionary (so no stored field can be equal to it)
+     */
+    public synchronized int lookup(String s) {
+        Integer code = codes.get(s);
+        return (code == null) ? -1 : code;
+    }
+
+    /**
+     * @return the code of the specified string, adding it to the dictionary
+     *   (and forcing it to its side file) if it is new
+     */
+    public synchronized int encode(String s) throws IOException {
+        Integer code = codes.get(s);
+        if (code != null) return code;
+        FileOutputStream fos = new FileOutputStream(dictFile, true);
+        try {
+            DataOutputStream dos = new DataOutputStream(fos);
+            dos.writeUTF(s);
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        code = strings.size();
+        codes.put(s, code);
+        strings.add(s);
+        return code;
+    }
+
+    /**
+     * @return the field holding the string with the specified code
+     */
+    public DictionaryField getField(int code) {
+        return new DictionaryField(this, code);
+    }
+}
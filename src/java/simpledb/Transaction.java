@@ -10,6 +10,9 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean asyncCommit = false;
+    private volatile boolean snapshot = false;
+    private volatile boolean optimistic = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -18,6 +21,10 @@ public class Transaction {
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (optimistic)
+            Database.getBufferPool().beginOptimistic(tid);
+        else if (snapshot)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,9 +36,50 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
-        transactionComplete(false);
+    /**
+     * Commit asynchronously: commit returns once the commit record is in
+     * the log buffer, and a crash may lose this transaction if it comes
+     * before the log is next forced (see LogFile#logCommit(TransactionId,
+     * boolean)).
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    /**
+     * Read a snapshot of the database as of when the transaction starts,
+     * without taking shared locks (see BufferPool#beginSnapshot). Must be
+     * called before start.
+     */
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Set how long READ_ONLY locks are held (see IsolationLevel); the
+     * default is SERIALIZABLE. Must be called before start.
+     */
+    public void setIsolationLevel(IsolationLevel isolation) {
+        tid.setIsolationLevel(isolation);
+    }
+
+    /**
+     * Run optimistically: read without shared locks, and be validated at
+     * commit (see BufferPool#beginOptimistic). Must be called before start.
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if it is optimistic and failed
+     *   validation, so it was aborted instead
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (!transactionComplete(false))
+            throw new TransactionAbortedException();
     }
 
     /** Finish the transaction */
@@ -39,27 +87,22 @@ public class Transaction {
         transactionComplete(true);
     }
 
-    /** Handle the details of transaction commit / abort */
-    public void transactionComplete(boolean abort) throws IOException {
+    /**
+     * Handle the details of transaction commit / abort
+     *
+     * @return false if the transaction was aborted
+     */
+    public boolean transactionComplete(boolean abort) throws IOException {
 
+        boolean committed = !abort;
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // the buffer pool writes the commit / abort record (rolling
+            // back on abort) before it releases locks
+            committed = Database.getBufferPool().transactionComplete(tid, !abort, asyncCommit);
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
+        return committed;
     }
 }
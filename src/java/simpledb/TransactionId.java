@@ -12,6 +12,7 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    private volatile IsolationLevel isolation = IsolationLevel.SERIALIZABLE;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
@@ -21,6 +22,15 @@ public class TransactionId implements Serializable {
         return myid;
     }
 
+    public IsolationLevel getIsolationLevel() {
+        return isolation;
+    }
+
+    /** Set the isolation level; see Transaction#setIsolationLevel */
+    public void setIsolationLevel(IsolationLevel isolation) {
+        this.isolation = isolation;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
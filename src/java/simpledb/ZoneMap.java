@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ZoneMap keeps a per-page min/max summary of every INT column of a
+ * HeapFile, so scans with a range or equality predicate can skip pages that
+ * cannot contain a matching tuple without reading them.
+ * <p>
+ * An entry describes at least the tuples of the on-disk image of its page:
+ * it is recomputed exactly whenever the page is read or written by the
+ * HeapFile, and widened when a tuple is inserted. Deleting tuples never
+ * narrows an entry until the page is written again, so entries are always
+ * conservative. Pages resident in the BufferPool may have been changed
+ * behind the file's back, so callers should only skip pages that are not
+ * cached (see {@link BufferPool#isCached}).
+ * <p>
+ * Entries are persisted in a side file next to the data file, named with a
+ * ".zmap" suffix. The side file records the length and modification time of
+ * the data file it describes and is ignored if they no longer match.
+ */
+public class ZoneMap {
+
+    private static final int HEADER_SIZE = 8 + 8;
+
+    private final File dataFile;
+    private final File mapFile;
+    /** the field index of each INT column */
+    private final int[] intFields;
+    /** per page: min and max of each INT column, or null if unknown */
+    private final ArrayList<int[]> zones;
+    /** pages whose entries were learned from reads and not yet saved */
+    private final BitSet unsaved;
+
+    /**
+     * Create the zone map for the specified heap file, loading the side
+     * file if it is still valid.
+     */
+    public ZoneMap(File dataFile, TupleDesc td) {
+        this.dataFile = dataFile;
+        this.mapFile = getMapFile(dataFile);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) fields.add(i);
+        }
+        this.intFields = new int[fields.size()];
+        for (int i = 0; i < intFields.length; i++) intFields[i] = fields.get(i);
+        this.zones = new ArrayList<int[]>();
+        this.unsaved = new BitSet();
+        try {
+            if (!load()) mapFile.delete();
+        } catch (IOException e) {
+            // a corrupt summary is only a lost optimization
+            zones.clear();
+            mapFile.delete();
+        }
+    }
+
+    /** @return the side file holding the zone map of the specified data file */
+    public static File getMapFile(File f) {
+        return new File(f.getPath() + ".zmap");
+    }
+
+    private int entrySize() {
+        return 1 + 8 * intFields.length;
+    }
+
+    /** @return false if the side file describes another version of the data file */
+    private synchronized boolean load() throws IOException {
+        if (intFields.length == 0 || !mapFile.exists()) return true;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+        try {
+            long length = dis.readLong();
+            long lastModified = dis.readLong();
+            if (length != dataFile.length() || lastModified != dataFile.lastModified()) return false;
+            long n = (mapFile.length() - HEADER_SIZE) / entrySize();
+            for (long i = 0; i < n; i++) {
+                boolean known = dis.readBoolean();
+                int[] zone = new int[2 * intFields.length];
+                for (int j = 0; j < zone.length; j++) zone[j] = dis.readInt();
+                zones.add(known ? zone : null);
+            }
+            return true;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /** Persist the entry of the specified page, and any entries learned
+        from reads since the last save, stamping the side file with the
+        current length and modification time of the data file. */
+    private void save(int pgNo) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mapFile, "rw");
+        try {
+            raf.seek(0);
+            raf.writeLong(dataFile.length());
+            raf.writeLong(dataFile.lastModified());
+            if (raf.length() < HEADER_SIZE + (long) pgNo * entrySize()) {
+                // fill the gap with unknown entries
+                for (int i = 0; i < pgNo; i++) {
+                    if (i >= zones.size() || zones.get(i) == null) writeEntry(raf, i, null);
+                }
+            }
+            writeEntry(raf, pgNo, zones.get(pgNo));
+            for (int i = unsaved.nextSetBit(0); i >= 0; i = unsaved.nextSetBit(i + 1))
+                writeEntry(raf, i, zones.get(i));
+            unsaved.clear();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeEntry(RandomAccessFile raf, int pgNo, int[] zone) throws IOException {
+        raf.seek(HEADER_SIZE + (long) pgNo * entrySize());
+        raf.writeBoolean(zone != null);
+        for (int j = 0; j < 2 * intFields.length; j++)
+            raf.writeInt(zone == null ? 0 : zone[j]);
+    }
+
+    private void set(int pgNo, int[] zone) {
+        while (zones.size() <= pgNo) zones.add(null);
+        zones.set(pgNo, zone);
+    }
+
+    /** @return true if the specified page has a known entry */
+    public synchronized boolean isKnown(int pgNo) {
+        return pgNo < zones.size() && zones.get(pgNo) != null;
+    }
+
+    private int[] summarize(HeapPage page) {
+        int[] zone = new int[2 * intFields.length];
+        for (int j = 0; j < intFields.length; j++) {
+            zone[2 * j] = Integer.MAX_VALUE;
+            zone[2 * j + 1] = Integer.MIN_VALUE;
+        }
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) widen(zone, it.next());
+        return zone;
+    }
+
+    private void widen(int[] zone, Tuple t) {
+        for (int j = 0; j < intFields.length; j++) {
+            int v = ((IntField) t.getField(intFields[j])).getValue();
+            if (v < zone[2 * j]) zone[2 * j] = v;
+            if (v > zone[2 * j + 1]) zone[2 * j + 1] = v;
+        }
+    }
+
+    /**
+     * Recompute the entry of a page from an image that was just read from
+     * disk. Only fills in unknown entries; they reach the side file with
+     * the next page write.
+     */
+    public synchronized void pageRead(HeapPage page) {
+        if (intFields.length == 0) return;
+        int pgNo = page.getId().pageNumber();
+        if (!isKnown(pgNo)) {
+            set(pgNo, summarize(page));
+            unsaved.set(pgNo);
+        }
+    }
+
+    /**
+     * Recompute the entry of a page from the image that was just written to
+     * disk, and persist it.
+     */
+    public synchronized void pageWritten(HeapPage page) throws IOException {
+        if (intFields.length == 0) return;
+        int pgNo = page.getId().pageNumber();
+        set(pgNo, summarize(page));
+        unsaved.clear(pgNo);
+        save(pgNo);
+    }
+
+    /**
+     * Widen the entry of the specified page to cover a tuple inserted into
+     * it. Only kept in memory; the page write that makes the insert durable
+     * also persists the exact entry.
+     */
+    public synchronized void tupleInserted(int pgNo, Tuple t) {
+        if (isKnown(pgNo)) widen(zones.get(pgNo), t);
+    }
+
+    /**
+     * @return false if the entry of the specified page proves that no tuple
+     *   on its on-disk image satisfies p; true if it might (including when
+     *   the entry is unknown or p is not on an INT column)
+     */
+    public synchronized boolean mayMatch(int pgNo, Predicate p) {
+        if (!isKnown(pgNo)) return true;
+        int j;
+        for (j = 0; j < intFields.length; j++) {
+            if (intFields[j] == p.getField()) break;
+        }
+        if (j == intFields.length || !(p.getOperand() instanceof IntField)) return true;
+
+        int[] zone = zones.get(pgNo);
+        int min = zone[2 * j], max = zone[2 * j + 1];
+        if (min > max) return false; // no tuples at all
+        int v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            return min <= v && v <= max;
+        case NOT_EQUALS:
+            return !(min == v && max == v);
+        case GREATER_THAN:
+            return max > v;
+        case GREATER_THAN_OR_EQ:
+            return max >= v;
+        case LESS_THAN:
+            return min < v;
+        case LESS_THAN_OR_EQ:
+            return min <= v;
+        }
+        return true;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.*;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -134,6 +135,7 @@ public class BLinkTreeTest extends SimpleDbTestBase {
 	@After
 	public void tearDown() throws Exception {
 		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
 	}
 
 
@@ -245,6 +247,70 @@ public class BLinkTreeTest extends SimpleDbTestBase {
 	
 	}
 
+	/**
+	 * Transactions inserting at once split internal pages under latches, without
+	 * locking them, and no tuple is lost or read twice
+	 */
+	@Test
+	public void concurrentSplits() throws Exception {
+		File f = File.createTempFile("tmp", "txt");
+		f.deleteOnExit();
+		BufferPool.setPageSize(256);
+		final BLinkTreeFile b = new BLinkTreeFile(f, 0, td);
+		Database.getCatalog().addTable(b);
+		// enough for a root over internal pages, so that only those split below
+		final int PRELOAD = 1000;
+		for (int i = 0; i < PRELOAD; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(i * 4));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, b.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		final int THREADS = 4, PER_THREAD = 500;
+		final ArrayList<Exception> errors = new ArrayList<Exception>();
+		Thread[] threads = new Thread[THREADS];
+		for (int n = 0; n < THREADS; n++) {
+			final int id = n;
+			threads[n] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < PER_THREAD; i++) {
+							Transaction t = new Transaction();
+							t.start();
+							Tuple tup = new Tuple(td);
+							tup.setField(0, new IntField((i * THREADS + id) * 4 + 2));
+							tup.setField(1, new IntField(i));
+							Database.getBufferPool().insertTuple(t.getId(), b.getId(), tup);
+							t.commit();
+						}
+					} catch (Exception e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[n].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		DbFileIterator it = b.iterator(tid);
+		it.open();
+		int count = 0, last = -1;
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key > last);
+			last = key;
+			count++;
+		}
+		it.close();
+		assertEquals(PRELOAD + THREADS * PER_THREAD, count);
+	}
 
 	/**
 	 * JUnit suite target
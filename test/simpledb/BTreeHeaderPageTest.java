@@ -92,7 +92,7 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 	 * Unit test for BTreeHeaderPage.numSlots()
 	 */
 	@Test public void numSlots() throws Exception {
-		assertEquals(32704, BTreeHeaderPage.getNumSlots());
+		assertEquals(32640, BTreeHeaderPage.getNumSlots());
 	}
 
 	/**
@@ -128,7 +128,7 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 				assertFalse(page.isSlotUsed(i));
 		}
 
-		for (int i = 20; i < 32704; ++i)
+		for (int i = 20; i < 32640; ++i)
 			assertTrue(page.isSlotUsed(i));
 
 		assertEquals(1, page.getEmptySlot());
@@ -157,7 +157,7 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 				assertFalse(page.isSlotUsed(i));
 		}
 
-		for (int i = 20; i < 32704; ++i)
+		for (int i = 20; i < 32640; ++i)
 			assertTrue(page.isSlotUsed(i));
 
 		assertEquals(1, page.getEmptySlot());
@@ -4,6 +4,7 @@ import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.BTreeUtility.BTreeWriter;
 import simpledb.Predicate.Op;
 
+import java.io.File;
 import java.util.*;
 
 import org.junit.After;
@@ -236,6 +237,61 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	@Test
+	public void distinctRangesOfOneLeaf() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		for (int i = 0; i <= 100; i += 10)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// all the tuples are on the root page
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId leafId = rootPtr.getRootId();
+		assertEquals(BTreePageId.LEAF, leafId.pgcateg());
+
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(30));
+		assertEquals(4, count(bf.indexIterator(tid, ipred)));
+		assertFalse(Database.getBufferPool().holdsLock(tid, leafId));
+
+		// a key past the range read goes in while the reader is running
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bf, 75, 1);
+		bw1.start();
+		bw1.join();
+		assertTrue(bw1.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+
+		// a key in the range waits for the reader
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw2 = new BTreeWriter(tid2, bf, 25, 1);
+		bw2.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertEquals(4, count(bf.indexIterator(tid, ipred)));
+		assertFalse(bw2.succeeded());
+
+		Database.getBufferPool().transactionComplete(tid);
+		bw2.join();
+		assertTrue(bw2.succeeded());
+		Database.getBufferPool().transactionComplete(tid2);
+		tid = new TransactionId();
+		assertEquals(5, count(bf.indexIterator(tid, ipred)));
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
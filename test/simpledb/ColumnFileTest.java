@@ -0,0 +1,135 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private ColumnFile cf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, 2000, null, tuples, "field");
+        tid = new TransactionId();
+
+        File f = File.createTempFile("columns", ".dat");
+        f.deleteOnExit();
+        for (int i = 0; i < 3; i++)
+            ColumnFile.getColumnFile(f, i).deleteOnExit();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        cf = ColumnFile.convert(it, f, hf.getTupleDesc());
+        it.close();
+        Database.getCatalog().addTable(cf, "columns");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for ColumnFile.convert() and ColumnFile.iterator()
+     */
+    @Test
+    public void scanAll() throws Exception {
+        SystemTestUtil.matchTuples(cf, tuples);
+        int n = cf.getNumSlots(0);
+        assertEquals((2000 + n - 1) / n, cf.numPages(0));
+    }
+
+    /**
+     * Unit test for reading a subset of the columns
+     */
+    @Test
+    public void scanColumns() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            expected.add(new ArrayList<Integer>(Arrays.asList(t.get(2), t.get(0))));
+
+        SeqScan ss = new SeqScan(tid, cf.getId(), "c", new int[] { 2, 0 });
+        assertEquals("c.field2", ss.getTupleDesc().getFieldName(0));
+        SystemTestUtil.matchTuples(ss, expected);
+
+        // a projected scan never touches the pages of the other columns
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        ss = new SeqScan(tid, cf.getId(), "c", new int[] { 1 });
+        ss.open();
+        while (ss.hasNext()) ss.next();
+        ss.close();
+        for (int c = 0; c < 3; c++) {
+            boolean locked = Database.getBufferPool().holdsLock(tid, new ColumnPageId(cf.getId(), c, 0));
+            assertEquals(c == 1, locked);
+        }
+
+        // heap files honour the column list too
+        ss = new SeqScan(tid, hf.getId(), "h", new int[] { 2, 0 });
+        SystemTestUtil.matchTuples(ss, expected);
+    }
+
+    /**
+     * Unit test for ColumnFile.insertTuple() and ColumnFile.deleteTuple()
+     */
+    @Test
+    public void insertDelete() throws Exception {
+        Tuple t = Utility.getHeapTuple(new int[] { 6, 830, 42 });
+        cf.insertTuple(tid, t);
+        ArrayList<Integer> row = new ArrayList<Integer>(Arrays.asList(6, 830, 42));
+        tuples.add(row);
+        SystemTestUtil.matchTuples(cf, tid, tuples);
+
+        // delete through a RecordId obtained from a projected scan
+        DbFileIterator it = cf.iterator(tid, new int[] { 1 });
+        it.open();
+        Tuple victim = null;
+        while (it.hasNext()) {
+            Tuple next = it.next();
+            if (((IntField) next.getField(0)).getValue() == 830) victim = next;
+        }
+        it.close();
+        assertNotNull(victim);
+        assertEquals(t.getRecordId(), victim.getRecordId());
+        cf.deleteTuple(tid, victim);
+        tuples.remove(row);
+        SystemTestUtil.matchTuples(cf, tid, tuples);
+    }
+
+    /**
+     * Unit test for LogicalPlan.referencedColumns()
+     */
+    @Test
+    public void referencedColumns() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(cf.getId(), "c");
+        lp.addProjectField("c.field2", null);
+        lp.addFilter("c.field0", Predicate.Op.GREATER_THAN, "5");
+        assertArrayEquals(new int[] { 0, 2 }, lp.referencedColumns("c", cf.getTupleDesc()));
+
+        lp.addProjectField("*", null);
+        assertNull(lp.referencedColumns("c", cf.getTupleDesc()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+    private File heapFile;
+    private File compressedFile;
+    private CompressedHeapFile chf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        heapFile = SystemTestUtil.createRandomHeapFileUnopened(2, 1500, 100, null, tuples);
+        compressedFile = File.createTempFile("compressed", ".dat");
+        compressedFile.deleteOnExit();
+        CompressedHeapFile.getMapFile(compressedFile).deleteOnExit();
+        chf = CompressedHeapFile.convert(heapFile, compressedFile, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(chf, UUID.randomUUID().toString());
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for CompressedHeapFile.convert() and numPages()
+     */
+    @Test
+    public void convert() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        assertEquals((heapFile.length() + pageSize - 1) / pageSize, chf.numPages());
+        assertTrue(compressedFile.length() < heapFile.length() / 2);
+        SystemTestUtil.matchTuples(chf, tuples);
+    }
+
+    /**
+     * Unit test for CompressedHeapFile.readPage()
+     */
+    @Test
+    public void readPage() throws Exception {
+        HeapFile hf = Utility.openHeapFile(2, heapFile);
+        for (int i = 0; i < chf.numPages(); i++) {
+            HeapPage expected = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            HeapPage actual = (HeapPage) chf.readPage(new HeapPageId(chf.getId(), i));
+            assertArrayEquals(expected.getPageData(), actual.getPageData());
+        }
+    }
+
+    /**
+     * Unit test for CompressedHeapFile.writePage(), including pages that
+     * grow past their reserved space and get relocated.
+     */
+    @Test
+    public void writePage() throws Exception {
+        HeapPageId pid = new HeapPageId(chf.getId(), 0);
+        HeapPage page = (HeapPage) chf.readPage(pid);
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            page.deleteTuple(it.next());
+        chf.writePage(page);
+        assertEquals(page.getNumEmptySlots(),
+                ((HeapPage) chf.readPage(pid)).getNumEmptySlots());
+
+        // random values compress worse than an empty page, so this has to move
+        Random r = new Random(6830);
+        while (page.getNumEmptySlots() > 0)
+            page.insertTuple(Utility.getHeapTuple(new int[] { r.nextInt(), r.nextInt() }));
+        long lengthBefore = compressedFile.length();
+        chf.writePage(page);
+        assertTrue(compressedFile.length() > lengthBefore);
+        assertArrayEquals(page.getPageData(), chf.readPage(pid).getPageData());
+
+        // the page map is persistent
+        CompressedHeapFile reopened = new CompressedHeapFile(compressedFile, Utility.getTupleDesc(2));
+        assertEquals(chf.numPages(), reopened.numPages());
+    }
+
+    /**
+     * Unit test for CompressedHeapFile.insertTuple() adding new pages
+     */
+    @Test
+    public void insertTuple() throws Exception {
+        int numPages = chf.numPages();
+        int added = 0;
+        while (chf.numPages() == numPages) {
+            chf.insertTuple(tid, Utility.getHeapTuple(new int[] { 6, 830 }));
+            added++;
+        }
+        assertEquals(numPages + 1, chf.numPages());
+        assertTrue(added > 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
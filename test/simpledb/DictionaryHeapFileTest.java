@@ -0,0 +1,190 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class DictionaryHeapFileTest extends SimpleDbTestBase {
+    private static final String[] STATUS = { "open", "closed", "pending" };
+    private static final int ROWS = 1000;
+
+    private TupleDesc td;
+    private HeapFile hf;
+    private DictionaryHeapFile dhf;
+    private TransactionId tid;
+
+    /**
+     * Set up a plain heap file of (int, string) rows with three distinct
+     * strings, and a dictionary-encoded copy of it.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+        td = new TupleDesc(types, new String[] { "id", "status" });
+
+        File text = File.createTempFile("status", ".txt");
+        text.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(text));
+        for (int i = 0; i < ROWS; i++)
+            bw.write(i + "," + STATUS[i % STATUS.length] + "\n");
+        bw.close();
+        File plain = File.createTempFile("status", ".dat");
+        plain.deleteOnExit();
+        HeapFileEncoder.convert(text, plain, BufferPool.getPageSize(), 2, types);
+        hf = new HeapFile(plain, td);
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+
+        tid = new TransactionId();
+        File encoded = File.createTempFile("status", ".dat");
+        encoded.deleteOnExit();
+        StringDictionary.getDictionaryFile(encoded).deleteOnExit();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        dhf = DictionaryHeapFile.convert(it, encoded, td);
+        it.close();
+        Database.getCatalog().addTable(dhf, UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int count(Predicate p, int tableId) throws Exception {
+        Filter f = new Filter(p, new SeqScan(tid, tableId, "t"));
+        f.open();
+        int n = 0;
+        while (f.hasNext()) {
+            f.next();
+            n++;
+        }
+        f.close();
+        return n;
+    }
+
+    /**
+     * Unit test for DictionaryHeapFile.convert(): same tuples, fewer pages
+     */
+    @Test
+    public void convert() throws Exception {
+        assertEquals(STATUS.length, dhf.getDictionary().size());
+        assertTrue(dhf.numPages() * 10 < hf.numPages());
+
+        DbFileIterator it = dhf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertTrue(t.getField(1) instanceof DictionaryField);
+            assertEquals(STATUS[id % STATUS.length], ((StringField) t.getField(1)).getValue());
+            n++;
+        }
+        it.close();
+        assertEquals(ROWS, n);
+    }
+
+    /**
+     * Predicates on encoded strings give the same answers as on plain ones
+     */
+    @Test
+    public void filter() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                                                    Predicate.Op.LESS_THAN, Predicate.Op.LIKE }) {
+            for (String s : new String[] { "open", "pending", "missing", "en" }) {
+                Predicate p = new Predicate(1, op, new StringField(s, Type.STRING_LEN));
+                assertEquals(op + " " + s, count(p, hf.getId()), count(p, dhf.getId()));
+            }
+        }
+    }
+
+    /**
+     * Unit test for DictionaryField equality and JoinPredicate on codes
+     */
+    @Test
+    public void compareCodes() throws Exception {
+        StringDictionary d = dhf.getDictionary();
+        DictionaryField open = d.getField(d.lookup("open"));
+        DictionaryField open2 = d.getField(d.lookup("open"));
+        DictionaryField closed = d.getField(d.lookup("closed"));
+        StringField plain = new StringField("open", Type.STRING_LEN);
+
+        assertTrue(open.compare(Predicate.Op.EQUALS, open2));
+        assertFalse(open.compare(Predicate.Op.EQUALS, closed));
+        assertTrue(open.compare(Predicate.Op.EQUALS, plain));
+        assertEquals(open, open2);
+        assertEquals(plain.hashCode(), open.hashCode());
+
+        Tuple t1 = new Tuple(td), t2 = new Tuple(td);
+        t1.setField(0, new IntField(1));
+        t1.setField(1, open);
+        t2.setField(0, new IntField(2));
+        t2.setField(1, open2);
+        assertTrue(new JoinPredicate(1, Predicate.Op.EQUALS, 1).filter(t1, t2));
+        t2.setField(1, closed);
+        assertFalse(new JoinPredicate(1, Predicate.Op.EQUALS, 1).filter(t1, t2));
+    }
+
+    /**
+     * New strings are added to the dictionary on insert and survive
+     * reopening the file
+     */
+    @Test
+    public void insertNewString() throws Exception {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(ROWS));
+        t.setField(1, new StringField("archived", Type.STRING_LEN));
+        dhf.insertTuple(tid, t);
+        assertEquals(STATUS.length + 1, dhf.getDictionary().size());
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new StringField("archived", Type.STRING_LEN));
+        assertEquals(1, count(p, dhf.getId()));
+
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+
+        DictionaryHeapFile reopened = new DictionaryHeapFile(dhf.getFile(), td);
+        Database.getCatalog().addTable(reopened, UUID.randomUUID().toString());
+        assertEquals("archived", reopened.getDictionary().decode(STATUS.length));
+        assertEquals(1, count(p, reopened.getId()));
+    }
+
+    /**
+     * A string whose append to the side file was torn by a crash is
+     * dropped on loading, and the next new string takes its place
+     */
+    @Test
+    public void tornEntryDropped() throws Exception {
+        File dictFile = StringDictionary.getDictionaryFile(dhf.getFile());
+        long length = dictFile.length();
+        DataOutputStream dos = new DataOutputStream(new FileOutputStream(dictFile, true));
+        dos.writeShort(20);
+        dos.writeBytes("arch");
+        dos.close();
+
+        StringDictionary d = new StringDictionary(dhf.getFile());
+        assertEquals(STATUS.length, d.size());
+        assertEquals(length, dictFile.length());
+        assertEquals(STATUS.length, d.encode("archived"));
+
+        d = new StringDictionary(dhf.getFile());
+        assertEquals(STATUS.length + 1, d.size());
+        assertEquals("archived", d.decode(STATUS.length));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DictionaryHeapFileTest.class);
+    }
+}
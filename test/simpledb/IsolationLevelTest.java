@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.Predicate.Op;
+
+public class IsolationLevelTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private int perPage;
+    private PageId p0, p1;
+    private RecordId r0;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        perPage = BufferPool.getPageSize() * 8 / (empty.getTupleDesc().getSize() * 8 + 1);
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+        r0 = new RecordId(p0, 0);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < perPage + 10; i++)
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        t.commit();
+    }
+
+    private Transaction begin(IsolationLevel isolation) {
+        Transaction t = new Transaction();
+        t.setIsolationLevel(isolation);
+        t.start();
+        return t;
+    }
+
+    /** Open a scan of the table and read the whole first page, moving it onto the second */
+    private DbFileIterator readFirstPage(Transaction t) throws Exception {
+        DbFileIterator it = empty.iterator(t.getId());
+        it.open();
+        for (int i = 0; i < perPage; i++)
+            it.next();
+        return it;
+    }
+
+    /**
+     * A READ_COMMITTED scan releases the locks on a page and its tuples
+     * once it has moved on to the next page
+     */
+    @Test public void readCommittedReleasesPassedPages() throws Exception {
+        Transaction t = begin(IsolationLevel.READ_COMMITTED);
+        DbFileIterator it = readFirstPage(t);
+        assertFalse(bp.holdsLock(t.getId(), p0));
+        assertFalse(bp.holdsLock(t.getId(), r0));
+        assertTrue(bp.holdsLock(t.getId(), p1));
+        it.close();
+        assertFalse(bp.holdsLock(t.getId(), p1));
+
+        // a writer does not wait for the reader
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(-1, 2));
+        writer.commit();
+        t.commit();
+    }
+
+    /** READ_COMMITTED keeps the locks on the tuples it changed */
+    @Test public void readCommittedKeepsWriteLocks() throws Exception {
+        Transaction t = begin(IsolationLevel.READ_COMMITTED);
+        DbFileIterator it = empty.iterator(t.getId());
+        it.open();
+        Tuple first = it.next();
+        bp.deleteTuple(t.getId(), first);
+        for (int i = 1; i < perPage; i++)
+            it.next();
+        it.close();
+        assertTrue(bp.holdsLock(t.getId(), first.getRecordId()));
+        assertTrue(bp.holdsLock(t.getId(), first.getRecordId().getPageId()));
+        t.abort();
+    }
+
+    /** SERIALIZABLE and REPEATABLE_READ scans hold their locks until commit */
+    @Test public void strongerLevelsHoldLocks() throws Exception {
+        for (IsolationLevel isolation : new IsolationLevel[] {
+                IsolationLevel.REPEATABLE_READ, IsolationLevel.SERIALIZABLE }) {
+            Transaction t = begin(isolation);
+            readFirstPage(t).close();
+            assertTrue(bp.holdsLock(t.getId(), p0));
+            assertTrue(bp.holdsLock(t.getId(), r0));
+            t.commit();
+        }
+    }
+
+    /**
+     * Only a SERIALIZABLE B+ tree scan locks the key following its range,
+     * and a READ_COMMITTED one keeps none of its key locks
+     */
+    @Test public void btreeKeyLocks() throws Exception {
+        File f = File.createTempFile("btree", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i <= 100; i += 10)
+            bp.insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        t.commit();
+
+        IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(30));
+        IndexKey last = new IndexKey(bf.getId(), new IntField(30));
+        IndexKey next = new IndexKey(bf.getId(), new IntField(40));
+        boolean[][] expected = { { false, false }, { true, false }, { true, true } };
+        for (IsolationLevel isolation : IsolationLevel.values()) {
+            t = begin(isolation);
+            DbFileIterator it = bf.indexIterator(t.getId(), ipred);
+            it.open();
+            int n = 0;
+            while (it.hasNext()) {
+                it.next();
+                n++;
+            }
+            it.close();
+            assertEquals(4, n);
+            assertEquals(expected[isolation.ordinal()][0], bp.holdsLock(t.getId(), last));
+            assertEquals(expected[isolation.ordinal()][1], bp.holdsLock(t.getId(), next));
+            t.commit();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IsolationLevelTest.class);
+    }
+}
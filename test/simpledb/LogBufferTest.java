@@ -0,0 +1,158 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private File f;
+    private RandomAccessFile raf;
+    private LogBuffer buffer;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("logbuffer", ".log");
+        f.deleteOnExit();
+        raf = new RandomAccessFile(f, "rw");
+        raf.writeLong(-1);
+        buffer = new LogBuffer(raf.getChannel(), 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        raf.close();
+    }
+
+    private byte[] record(Random r, int len) {
+        byte[] rec = new byte[len];
+        r.nextBytes(rec);
+        return rec;
+    }
+
+    private long append(byte[] rec) throws IOException {
+        long start = buffer.reserve(rec.length);
+        buffer.put(start, rec, rec.length);
+        return start;
+    }
+
+    private byte[] fileContents(long start, int len) throws IOException {
+        byte[] data = new byte[len];
+        raf.seek(start);
+        raf.readFully(data);
+        return data;
+    }
+
+    /**
+     * Records that straddle blocks, more data than the whole ring holds,
+     * and a record larger than the ring all land in the file in order
+     */
+    @Test
+    public void sequentialAppends() throws Exception {
+        Random r = new Random(6830);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            byte[] rec = record(r, 1 + r.nextInt(2 * BufferPool.getPageSize() + 100));
+            assertEquals(8 + expected.size(), append(rec));
+            expected.write(rec);
+        }
+        byte[] huge = record(r, (int) LogBuffer.CAPACITY + 1000);
+        append(huge);
+        expected.write(huge);
+        byte[] last = record(r, 100);
+        append(last);
+        expected.write(last);
+
+        assertTrue(expected.size() > 2 * LogBuffer.CAPACITY);
+        assertEquals(8 + expected.size(), buffer.position());
+        buffer.flush();
+        assertEquals(8 + expected.size(), raf.length());
+        assertTrue(Arrays.equals(expected.toByteArray(), fileContents(8, expected.size())));
+    }
+
+    /**
+     * Threads that reserve and copy at the same time each get their own
+     * range, and every record reaches the file intact
+     */
+    @Test
+    public void concurrentAppends() throws Exception {
+        final int nThreads = 8;
+        final Map<Long, byte[]> written = new ConcurrentHashMap<Long, byte[]>();
+        Thread[] threads = new Thread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final Random r = new Random(i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 300; j++) {
+                            byte[] rec = record(r, 1 + r.nextInt(3 * BufferPool.getPageSize()));
+                            written.put(append(rec), rec);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        buffer.flush();
+
+        assertEquals(nThreads * 300, written.size());
+        long next = 8;
+        for (long start : new TreeSet<Long>(written.keySet())) {
+            assertEquals(next, start);
+            byte[] rec = written.get(start);
+            assertTrue(Arrays.equals(rec, fileContents(start, rec.length)));
+            next += rec.length;
+        }
+        assertEquals(next, raf.length());
+    }
+
+    /**
+     * A flush waits for records reserved before it to be copied in
+     */
+    @Test
+    public void flushWaitsForCopies() throws Exception {
+        final byte[] a = record(new Random(1), 100);
+        byte[] b = record(new Random(2), 100);
+        long startA = buffer.reserve(a.length);
+        long startB = buffer.reserve(b.length);
+        buffer.put(startB, b, b.length);
+
+        Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    buffer.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        flusher.start();
+        flusher.join(200);
+        assertTrue(flusher.isAlive());
+        assertEquals(8, raf.length());
+
+        buffer.put(startA, a, a.length);
+        flusher.join();
+        assertTrue(Arrays.equals(a, fileContents(startA, a.length)));
+        assertTrue(Arrays.equals(b, fileContents(startB, b.length)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,696 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private HeapFile other;
+    private HeapPageId pid;
+    private int emptySlots;
+
+    /**
+     * Set up a one-page heap file with room for more tuples
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+        emptySlots = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+    }
+
+    private int emptySlotsOnDisk() {
+        return ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+    }
+
+    private Transaction insert(HeapFile f, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { value, value }));
+        return t;
+    }
+
+    /** @return the number of tuples on disk with the specified first field */
+    private int countOnDisk(int value) {
+        return countOnDisk(hf, value);
+    }
+
+    private int countOnDisk(HeapFile hf, int value) {
+        int n = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).iterator();
+            while (it.hasNext())
+                if (((IntField) it.next().getField(0)).getValue() == value) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Simulate a crash: lose the buffer pool and everything else in memory,
+     * then recover from the log on disk
+     */
+    private void crashAndRecover() throws Exception {
+        restart();
+        Database.getLogFile().recover();
+    }
+
+    /** Start over with an empty buffer pool and a new log */
+    private void restart() throws Exception {
+        Database.reset();
+        hf = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(hf, "t");
+        other = new HeapFile(other.getFile(), other.getTupleDesc());
+        Database.getCatalog().addTable(other, "other");
+    }
+
+    /**
+     * Committing logs the dirty pages and forces the log, but leaves the
+     * pages themselves in the buffer pool
+     */
+    @Test
+    public void commitDoesNotForce() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 6, 830 }));
+        Database.getBufferPool().transactionComplete(tid, true);
+
+        assertFalse(Database.getLogFile().isActive(tid));
+        assertEquals(emptySlots, emptySlotsOnDisk());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(emptySlots - 1, emptySlotsOnDisk());
+    }
+
+    /**
+     * An uncommitted page that was written to disk is restored from the log
+     * when its transaction aborts
+     */
+    @Test
+    public void abortRollsBackStolenPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 6, 830 }));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getLogFile().isActive(tid));
+        assertEquals(emptySlots - 1, emptySlotsOnDisk());
+
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertFalse(Database.getLogFile().isActive(tid));
+        assertEquals(emptySlots, emptySlotsOnDisk());
+
+        TransactionId tid2 = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid2, pid, Permissions.READ_ONLY);
+        assertEquals(emptySlots, p.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
+    /**
+     * Aborting a transaction does not undo the unflushed changes of one
+     * that committed before it
+     */
+    @Test
+    public void abortKeepsEarlierCommit() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid1, hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        Database.getBufferPool().transactionComplete(tid1, true);
+
+        TransactionId tid2 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid2, hf.getId(), Utility.getHeapTuple(new int[] { 2, 2 }));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid2, false);
+
+        assertEquals(emptySlots - 1, emptySlotsOnDisk());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(emptySlots - 1, emptySlotsOnDisk());
+    }
+
+    /**
+     * Recovery redoes committed changes that never reached disk and undoes
+     * uncommitted ones that did
+     */
+    @Test
+    public void recoverRedoAndUndo() throws Exception {
+        insert(hf, 1).commit();
+        assertEquals(0, countOnDisk(1));
+        insert(hf, 2);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(1, countOnDisk(2));
+
+        crashAndRecover();
+        assertEquals(1, countOnDisk(1));
+        assertEquals(0, countOnDisk(2));
+    }
+
+    /**
+     * Recovery starts at the last checkpoint, still undoes losers that
+     * began before it, and does not replay rolled back transactions
+     */
+    @Test
+    public void recoverFromCheckpoint() throws Exception {
+        insert(hf, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, countOnDisk(1));
+
+        Transaction aborted = insert(other, 3);
+        Database.getBufferPool().flushAllPages();
+        aborted.abort();
+        assertEquals(0, countOnDisk(other, 3));
+        insert(other, 4).commit();
+
+        crashAndRecover();
+        assertEquals(0, countOnDisk(1));
+        assertEquals(emptySlots, emptySlotsOnDisk());
+        assertEquals(0, countOnDisk(other, 3));
+        assertEquals(1, countOnDisk(other, 4));
+    }
+
+    /**
+     * A committed change that was not on disk at a checkpoint is redone
+     * from before the checkpoint, starting at its page's recLSN
+     */
+    @Test
+    public void recoverFromFuzzyCheckpoint() throws Exception {
+        Database.getLogFile().checkpointWrites = false;
+        insert(hf, 1).commit();
+        Database.getLogFile().logCheckpoint();
+        insert(other, 2).commit();
+        assertEquals(0, countOnDisk(1));
+
+        crashAndRecover();
+        assertEquals(1, countOnDisk(1));
+        assertEquals(1, countOnDisk(other, 2));
+    }
+
+    /**
+     * A checkpoint does not wait for the buffer pool; its dirty pages are
+     * written in the background once the pool is free
+     */
+    @Test
+    public void checkpointDoesNotBlockBufferPool() throws Exception {
+        insert(hf, 1).commit();
+        final BufferPool bp = Database.getBufferPool();
+        final CyclicBarrier held = new CyclicBarrier(2);
+        Thread holder = new Thread() {
+            public void run() {
+                synchronized (bp) {
+                    try {
+                        held.await();
+                        Thread.sleep(3000);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        holder.start();
+        held.await();
+        long start = System.currentTimeMillis();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(0, countOnDisk(1));
+
+        holder.join();
+        bp.awaitBackgroundWrites();
+        assertEquals(1, countOnDisk(1));
+    }
+
+    /**
+     * Redo spread over several workers installs every page
+     */
+    @Test
+    public void recoverManyPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 7, i }));
+        t.commit();
+        assertTrue(hf.numPages() > 4);
+
+        int threads = LogFile.REDO_THREADS;
+        LogFile.REDO_THREADS = 4;
+        try {
+            crashAndRecover();
+        } finally {
+            LogFile.REDO_THREADS = threads;
+        }
+        assertEquals(3000, countOnDisk(7));
+    }
+
+    /**
+     * A change to one tuple of a heap page is logged as a slot record, not
+     * as two page images
+     */
+    @Test
+    public void slotRecordsAreSmall() throws Exception {
+        insert(hf, 1).commit();
+        long before = Database.getLogFile().currentOffset;
+        insert(hf, 2).commit();
+        long grown = Database.getLogFile().currentOffset - before;
+        assertTrue(grown > 0);
+        assertTrue(grown < BufferPool.getPageSize() / 8);
+    }
+
+    /**
+     * Rollback walks the aborting transaction's own chain of records,
+     * however many records other transactions logged in between
+     */
+    @Test
+    public void rollbackReadsOnlyOwnRecords() throws Exception {
+        Transaction t = insert(hf, 1);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 0; i < 20; i++)
+            insert(other, 2).commit();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, countOnDisk(1));
+
+        t.abort();
+        // BEGIN and one slot record per flush
+        assertEquals(3, Database.getLogFile().undoRecordsRead);
+        assertEquals(0, countOnDisk(1));
+        assertEquals(emptySlots, emptySlotsOnDisk());
+
+        // a loser's chain is followed by recovery too
+        insert(hf, 3); // never commits
+        for (int i = 0; i < 20; i++)
+            insert(other, 4).commit();
+        Database.getBufferPool().flushAllPages();
+        crashAndRecover();
+        assertEquals(2, Database.getLogFile().undoRecordsRead);
+        assertEquals(0, countOnDisk(3));
+        assertEquals(20, countOnDisk(other, 2));
+        assertEquals(20, countOnDisk(other, 4));
+    }
+
+    /**
+     * A flushed page carries the LSN of its last logged change, and
+     * recovery only redoes pages whose LSN is behind the log
+     */
+    @Test
+    public void redoSkipsFlushedPages() throws Exception {
+        insert(hf, 1).commit();
+        insert(other, 1).commit();
+        Database.getBufferPool().flushAllPages();
+        long pageLSN = hf.readPage(pid).getLSN();
+        assertTrue(pageLSN > 0);
+        assertTrue(pageLSN < Database.getLogFile().currentOffset);
+
+        insert(other, 2).commit();
+        crashAndRecover();
+        assertEquals(1, Database.getLogFile().pagesRedone.get());
+        assertEquals(pageLSN, hf.readPage(pid).getLSN());
+        assertEquals(1, countOnDisk(1));
+        assertEquals(1, countOnDisk(other, 1));
+        assertEquals(1, countOnDisk(other, 2));
+    }
+
+    /** Insert 160 tuples with the specified value in the first page,
+        holding a READ_WRITE lock on the whole page (HeapFile locks tuples
+        one at a time, and so logs only slot records) */
+    private void insertInPage(TransactionId tid, int value) throws Exception {
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        for (int i = 0; i < 160; i++)
+            p.insertTuple(Utility.getHeapTuple(new int[] { value, i }));
+    }
+
+    /** @return the bytes logged by a transaction that inserts 160 tuples
+        with the specified value, which it logs as one UPDATE record */
+    private long logInserts(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        long before = Database.getLogFile().currentOffset;
+        insertInPage(t.getId(), value);
+        t.commit();
+        return Database.getLogFile().currentOffset - before;
+    }
+
+    /**
+     * Page images are logged compressed, the after image as a delta
+     * against the before image, and both redo and undo read them back
+     */
+    @Test
+    public void updateImagesAreCompressed() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setCompressImages(false);
+        long raw = logInserts(1);
+        log.setCompressImages(true);
+        long compressed = logInserts(2);
+        assertTrue(raw > 2 * BufferPool.getPageSize());
+        assertTrue(compressed < raw / 4);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertInPage(t.getId(), 3);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(160, countOnDisk(3));
+
+        crashAndRecover();
+        assertEquals(160, countOnDisk(1));
+        assertEquals(160, countOnDisk(2));
+        assertEquals(0, countOnDisk(3));
+    }
+
+    /**
+     * A new log carries on from the offsets of the one it replaces, so the
+     * LSNs of pages written under the old log do not hide new records
+     * from redo
+     */
+    @Test
+    public void lsnsCarryOnAcrossLogs() throws Exception {
+        insert(hf, 1).commit();
+        Database.getBufferPool().flushAllPages();
+        long pageLSN = hf.readPage(pid).getLSN();
+
+        restart();
+        insert(hf, 2).commit();
+        assertTrue(Database.getLogFile().currentOffset > pageLSN);
+        crashAndRecover();
+        assertEquals(1, countOnDisk(1));
+        assertEquals(1, countOnDisk(2));
+    }
+
+    /**
+     * An asynchronous commit returns before its record is forced, and the
+     * background flusher forces it within the interval
+     */
+    @Test
+    public void asyncCommitForcedByFlusher() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setAsyncCommitInterval(1000);
+        Transaction t = insert(hf, 1);
+        t.setAsyncCommit(true);
+        t.commit();
+        long end;
+        synchronized (log) {
+            end = log.currentOffset;
+            assertTrue(log.forcedOffset < end);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            synchronized (log) {
+                if (log.forcedOffset >= end)
+                    break;
+            }
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * A crash loses only asynchronous commits at the end of the log: a
+     * synchronous commit, or writing a page, forces the ones before it
+     */
+    @Test
+    public void asyncCommitLosesOnlySuffix() throws Exception {
+        // the flusher never gets to run
+        Database.getLogFile().setAsyncCommitInterval(Long.MAX_VALUE);
+        insert(hf, 1).commit();
+        Transaction t = insert(hf, 2);
+        t.setAsyncCommit(true);
+        t.commit();
+        crashAndRecover();
+        assertEquals(1, countOnDisk(1));
+        assertEquals(0, countOnDisk(2));
+
+        Database.getLogFile().setAsyncCommitInterval(Long.MAX_VALUE);
+        t = insert(hf, 3);
+        t.setAsyncCommit(true);
+        t.commit();
+        insert(other, 4).commit();
+        t = insert(hf, 5);
+        t.setAsyncCommit(true);
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        crashAndRecover();
+        assertEquals(1, countOnDisk(3));
+        assertEquals(1, countOnDisk(other, 4));
+        assertEquals(1, countOnDisk(5));
+    }
+
+    /**
+     * A checkpoint deletes the log segments recovery no longer needs, and
+     * recovery reads records that straddle the segments that are left
+     */
+    @Test
+    public void truncateDeletesSegments() throws Exception {
+        long segmentSize = LogSegments.SEGMENT_SIZE;
+        LogSegments.SEGMENT_SIZE = 512;
+        try {
+            restart();
+            for (int i = 0; i < 30; i++)
+                insert(hf, 1).commit();
+            LogSegments segments = Database.getLogFile().segments;
+            int before = segments.numSegments();
+            assertTrue(before > 4);
+
+            Database.getBufferPool().flushAllPages();
+            Database.getLogFile().logCheckpoint();
+            assertTrue(segments.numSegments() <= 2);
+            assertEquals(Database.getLogFile().currentOffset, segments.length());
+
+            for (int i = 0; i < 30; i++)
+                insert(hf, 2).commit();
+            insert(hf, 3); // never commits
+            Database.getBufferPool().flushAllPages();
+            assertTrue(segments.numSegments() > 4);
+
+            crashAndRecover();
+            assertEquals(30, countOnDisk(1));
+            assertEquals(30, countOnDisk(2));
+            assertEquals(0, countOnDisk(3));
+        } finally {
+            LogSegments.SEGMENT_SIZE = segmentSize;
+        }
+    }
+
+    /**
+     * Slot records are diffs against what the transaction logged last, so
+     * a tuple it inserted, stole to disk and then deleted stays deleted
+     * after recovery, and an aborted transaction's stolen changes are all
+     * undone
+     */
+    @Test
+    public void recoverSlotChanges() throws Exception {
+        Transaction t = insert(hf, 1);
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 2, 2 }));
+        Database.getBufferPool().flushAllPages();
+        Iterator<Tuple> it = ((HeapPage) Database.getBufferPool().getPage(
+                t.getId(), pid, Permissions.READ_ONLY)).iterator();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == 1)
+                Database.getBufferPool().deleteTuple(t.getId(), tup);
+        }
+        t.commit();
+
+        Transaction aborted = insert(other, 3);
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().insertTuple(aborted.getId(), other.getId(), Utility.getHeapTuple(new int[] { 3, 3 }));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, countOnDisk(other, 3));
+        aborted.abort();
+        assertEquals(0, countOnDisk(other, 3));
+
+        crashAndRecover();
+        assertEquals(0, countOnDisk(1));
+        assertEquals(1, countOnDisk(2));
+        assertEquals(emptySlots - 1, emptySlotsOnDisk());
+        assertEquals(0, countOnDisk(other, 3));
+    }
+
+    /**
+     * A transaction that aborts after another committed a change to the
+     * same page stays undone after recovery: its rollback's compensation
+     * records are not undone again
+     */
+    @Test
+    public void abortAmongCommittedWriter() throws Exception {
+        Transaction aborted = insert(hf, 7);
+        Database.getBufferPool().flushAllPages();
+        insert(hf, 8).commit();
+        aborted.abort();
+
+        crashAndRecover();
+        assertEquals(0, countOnDisk(7));
+        assertEquals(1, countOnDisk(8));
+        assertEquals(emptySlots - 1, emptySlotsOnDisk());
+    }
+
+    /**
+     * B+ tree pages stolen by a transaction are rebuilt from the log, with
+     * their file's key field, when it aborts
+     */
+    @Test
+    public void abortRestoresBTreePages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, tuples, 0);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, -i }));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId reader = new TransactionId();
+        SystemTestUtil.matchTuples(bf, reader, tuples);
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * Aborts and checkpoints count each record they append once
+     */
+    @Test
+    public void recordsCountedOnce() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = insert(hf, 1);
+        int before = log.getTotalRecords();
+        t.abort();
+        assertEquals(before + 1, log.getTotalRecords());
+        log.logCheckpoint();
+        Database.getBufferPool().awaitBackgroundWrites();
+        assertEquals(before + 2, log.getTotalRecords());
+        log.logTruncate();
+        assertEquals(before + 2, log.getTotalRecords());
+    }
+
+    /**
+     * Concurrent commits wait for a shared force instead of forcing the log
+     * one at a time
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        final int nThreads = 8;
+        final HeapFile[] tables = new HeapFile[nThreads];
+        for (int i = 0; i < nThreads; i++)
+            tables[i] = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(200);
+
+        final CyclicBarrier barrier = new CyclicBarrier(nThreads);
+        final AtomicInteger committed = new AtomicInteger();
+        Thread[] threads = new Thread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final HeapFile table = tables[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = insert(table, 5);
+                        barrier.await();
+                        t.commit();
+                        committed.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(nThreads, committed.get());
+        synchronized (log) {
+            assertTrue(log.groupForces < nThreads);
+            assertEquals(log.getTotalRecords(), log.forcedRecords);
+        }
+    }
+
+    /**
+     * A committing transaction releases its locks once its commit record
+     * is in the log buffer, but a transaction that then reads its changes
+     * does not finish committing until that record is on disk
+     */
+    @Test
+    public void earlyLockRelease() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(500);
+        final Transaction t = insert(hf, 1);
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    t.commit();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        committer.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Database.getBufferPool().holdsLock(t.getId(), pid)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        long record;
+        synchronized (log) {
+            record = log.lastCommitRecord();
+            assertTrue(log.forcedRecords < record);
+        }
+        assertTrue(committer.isAlive());
+
+        // a read-only transaction that logged nothing
+        TransactionId reader = new TransactionId();
+        Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(reader);
+        synchronized (log) {
+            assertTrue(log.forcedRecords >= record);
+        }
+        committer.join();
+
+        crashAndRecover();
+        assertEquals(1, countOnDisk(1));
+    }
+
+    /**
+     * B+ tree internal pages, which are logged whole, that are flushed
+     * after a commit record is appended but before the locks are released
+     * are not logged again, so the transaction stays committed
+     */
+    @Test
+    public void flushWhileCommitting() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        final LogFile log = Database.getLogFile();
+        Database.getBufferPool().setEarlyLockRelease(false);
+        log.setGroupCommitDelay(500);
+        final Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i }));
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    t.commit();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        committer.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (log.isActive(t.getId())) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), BTreeRootPtrPage.getId(bf.getId())));
+
+        Database.getBufferPool().flushAllPages();
+        assertFalse(log.isActive(t.getId()));
+        committer.join();
+        assertFalse(log.isActive(t.getId()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private PageId p0;
+    private HeapFile other;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("other", ".dat");
+        f.deleteOnExit();
+        other = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(empty.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, empty, 0, 5);
+        t.commit();
+    }
+
+    private void insert(Transaction t, HeapFile f, int first, int n) throws Exception {
+        for (int i = first; i < first + n; i++)
+            bp.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    private int count(Transaction t, HeapFile f) throws Exception {
+        DbFileIterator it = f.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** @return the number of tuples of f whose first field is greater than value */
+    private int countGreater(Transaction t, HeapFile f, int value) throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(value));
+        SeqScan ss = new SeqScan(t.getId(), f.getId());
+        ss.addPageFilter(p);
+        DbIterator it = new Filter(p, ss);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * An optimistic transaction that wrote something fails validation if
+     * a page it read was committed by someone else since it began, and its
+     * writes are rolled back
+     */
+    @Test public void staleReadAborts() throws Exception {
+        Transaction t = optimistic();
+        assertEquals(5, count(t, empty));
+        assertFalse(bp.holdsLock(t.getId(), p0));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, empty, 5, 1);
+        writer.commit();
+
+        insert(t, other, 0, 1);
+        try {
+            t.commit();
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        Transaction check = new Transaction();
+        check.start();
+        assertEquals(6, count(check, empty));
+        assertEquals(0, count(check, other));
+        check.commit();
+    }
+
+    /**
+     * Commits of pages an optimistic transaction did not read do not make
+     * it fail validation
+     */
+    @Test public void unrelatedCommitValidates() throws Exception {
+        Transaction t = optimistic();
+        assertEquals(5, count(t, empty));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, other, 0, 1);
+        writer.commit();
+
+        insert(t, empty, 5, 1);
+        t.commit();
+
+        Transaction check = new Transaction();
+        check.start();
+        assertEquals(6, count(check, empty));
+        assertEquals(1, count(check, other));
+        check.commit();
+    }
+
+    /**
+     * A read-only optimistic transaction reads a consistent snapshot, so
+     * it commits even when what it read has changed since
+     */
+    @Test public void readOnlyCommits() throws Exception {
+        Transaction t = optimistic();
+        assertEquals(5, count(t, empty));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, empty, 5, 1);
+        writer.commit();
+
+        assertEquals(5, count(t, empty));
+        t.commit();
+        assertFalse(bp.isOptimistic(t.getId()));
+    }
+
+    /**
+     * Pages a filtered scan reads are validated even when their zone map
+     * entries, which a concurrent commit narrowed, rule out the filter
+     */
+    @Test public void filteredScanValidated() throws Exception {
+        Transaction t = optimistic();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        DbFileIterator it = empty.iterator(writer.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == 4)
+                bp.deleteTuple(writer.getId(), tup);
+        }
+        it.close();
+        writer.commit();
+        bp.flushAllPages();
+        bp.discardPage(p0);
+
+        assertEquals(1, countGreater(t, empty, 3));
+        insert(t, other, 0, 1);
+        try {
+            t.commit();
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
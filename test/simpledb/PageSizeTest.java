@@ -0,0 +1,144 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageSizeTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private File emptyFile() throws Exception {
+        File f = File.createTempFile("pagesize", ".dat");
+        f.deleteOnExit();
+        ZoneMap.getMapFile(f).deleteOnExit();
+        return f;
+    }
+
+    private HeapFile createHeapFile(int pageSize, int rows, ArrayList<ArrayList<Integer>> tuples)
+        throws Exception {
+        HeapFile hf = new HeapFile(emptyFile(), Utility.getTupleDesc(2), pageSize);
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        for (int i = 0; i < rows; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, -i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        tid = new TransactionId();
+        return hf;
+    }
+
+    /**
+     * A heap file with its own page size lays out and reads pages of that size
+     */
+    @Test
+    public void heapFilePageSize() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = createHeapFile(1024, 600, tuples);
+        assertEquals(1024, hf.getPageSize());
+        assertEquals(1024, BufferPool.getPageSize(hf.getId()));
+
+        int perPage = (1024 * 8) / (hf.getTupleDesc().getSize() * 8 + 1);
+        assertEquals((600 + perPage - 1) / perPage, hf.numPages());
+        assertEquals(0, hf.getFile().length() % 1024);
+        assertEquals(1024, hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData().length);
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+
+        HeapFile deflt = new HeapFile(emptyFile(), Utility.getTupleDesc(2));
+        assertEquals(BufferPool.getPageSize(), deflt.getPageSize());
+    }
+
+    /**
+     * The buffer pool budgets bytes, so it holds fewer large pages and more
+     * small ones
+     */
+    @Test
+    public void mixedFrames() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile large = createHeapFile(2 * BufferPool.getPageSize(), 6000, tuples);
+        HeapFile small = createHeapFile(BufferPool.getPageSize() / 4, 3000, tuples);
+        assertTrue(large.numPages() > 4);
+        assertTrue(small.numPages() > 16);
+
+        Database.resetBufferPool(4);
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < large.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(large.getId(), i), Permissions.READ_ONLY);
+        int cached = 0;
+        for (int i = 0; i < large.numPages(); i++)
+            if (bp.isCached(new HeapPageId(large.getId(), i))) cached++;
+        assertEquals(2, cached);
+
+        // eviction is random, so only the byte budget is certain
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        int cachedLarge = 0, cachedSmall = 0;
+        for (int i = 0; i < large.numPages(); i++)
+            if (bp.isCached(new HeapPageId(large.getId(), i))) cachedLarge++;
+        for (int i = 0; i < small.numPages(); i++)
+            if (bp.isCached(new HeapPageId(small.getId(), i))) cachedSmall++;
+        assertTrue(cachedLarge * 8 + cachedSmall <= 16);
+        assertTrue(cachedLarge + cachedSmall > 4);
+    }
+
+    /**
+     * Larger B+ tree pages give leaves and internal nodes more fan-out
+     */
+    @Test
+    public void btreePageSize() throws Exception {
+        int pageSize = 4 * BufferPool.getPageSize();
+        TupleDesc td = Utility.getTupleDesc(2);
+        BTreeFile bf = new BTreeFile(emptyFile(), 0, td, pageSize);
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random(6830);
+        for (int i = 0; i < 6000; i++) {
+            int key = r.nextInt(100000);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { key, i }));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(key, i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId rootId = rootPtr.getRootId();
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, rootId, Permissions.READ_ONLY);
+        BTreePageId leafId = root.iterator().next().getLeftChild();
+        assertEquals(BTreePageId.LEAF, leafId.pgcateg());
+        BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+                tid, leafId, Permissions.READ_ONLY);
+        assertEquals(pageSize, leaf.getPageData().length);
+        assertTrue(leaf.getMaxTuples() > 4 * BTreeUtility.getNumTuplesPerPage(2) - 4);
+        assertTrue(root.getMaxEntries() > 4 * BTreeUtility.getNumEntriesPerPage() - 4);
+        SystemTestUtil.matchTuples(bf, tid, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageSizeTest.class);
+    }
+}
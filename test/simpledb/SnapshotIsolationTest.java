@@ -0,0 +1,169 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotIsolationTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private PageId p0;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(empty.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 5);
+        t.commit();
+    }
+
+    private void insert(Transaction t, int first, int n) throws Exception {
+        for (int i = first; i < first + n; i++)
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    private int count(Transaction t) throws Exception {
+        DbFileIterator it = empty.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** @return the number of tuples whose first field is greater than value */
+    private int countGreater(Transaction t, int value) throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(value));
+        SeqScan ss = new SeqScan(t.getId(), empty.getId());
+        ss.addPageFilter(p);
+        DbIterator it = new Filter(p, ss);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private Transaction snapshot() {
+        Transaction t = new Transaction();
+        t.setSnapshot(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * A snapshot takes no locks, sees neither uncommitted changes nor
+     * changes committed after it began, and its old versions are dropped
+     * once it completes
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = snapshot();
+        assertEquals(5, count(reader));
+        assertFalse(bp.holdsLock(reader.getId(), p0));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 5, 3);
+        assertEquals(5, count(reader));
+        writer.commit();
+        assertEquals(5, count(reader));
+        assertEquals(1, bp.numPageVersions());
+
+        Transaction later = snapshot();
+        assertEquals(8, count(later));
+        reader.commit();
+        assertEquals(0, bp.numPageVersions());
+        assertEquals(8, count(later));
+        later.commit();
+    }
+
+    /**
+     * A snapshot may not write a page committed by someone else since it
+     * began
+     */
+    @Test public void firstCommitterWins() throws Exception {
+        Transaction reader = snapshot();
+        assertEquals(5, count(reader));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 5, 1);
+        writer.commit();
+
+        try {
+            insert(reader, 6, 1);
+            fail("expected the snapshot to be aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        reader.abort();
+
+        Transaction t = snapshot();
+        assertEquals(6, count(t));
+        insert(t, 6, 1);
+        assertEquals(7, count(t));
+        t.commit();
+    }
+
+    /**
+     * Uncommitted changes stolen to disk and read back are not seen by
+     * snapshots
+     */
+    @Test public void stolenPagesKeepCommittedVersion() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 5, 3);
+        bp.flushAllPages();
+        bp.discardPage(p0);
+
+        Transaction reader = snapshot();
+        assertEquals(5, count(reader));
+        writer.commit();
+        assertEquals(5, count(reader));
+        Transaction later = snapshot();
+        assertEquals(8, count(later));
+        later.commit();
+        reader.commit();
+    }
+
+    /**
+     * A filtered scan of a snapshot does not skip pages by their zone map
+     * entries, which describe the pages as committed since
+     */
+    @Test public void filteredScanIgnoresZoneMap() throws Exception {
+        Transaction reader = snapshot();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        DbFileIterator it = empty.iterator(writer.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() == 4)
+                bp.deleteTuple(writer.getId(), t);
+        }
+        it.close();
+        writer.commit();
+        bp.flushAllPages();
+        bp.discardPage(p0);
+
+        assertEquals(1, countGreater(reader, 3));
+        assertEquals(5, count(reader));
+        reader.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
@@ -228,6 +228,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public int getPageSize() {
+            return BufferPool.getPageSize();
+        }
+
         public int getId() {
             return tableid;
         }
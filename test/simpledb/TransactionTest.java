@@ -77,6 +77,8 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     bp.transactionComplete(tid1, commit);
 
     // now, flush the buffer pool and access the page again from disk.
+    // commit doesn't force pages, so write them out before dropping them
+    bp.flushAllPages();
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
     p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
     Iterator<Tuple> it = p.iterator();
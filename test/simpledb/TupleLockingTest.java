@@ -0,0 +1,121 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+public class TupleLockingTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private ArrayList<Tuple> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 4; i++)
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        t.commit();
+        t = new Transaction();
+        t.start();
+        tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 4; i++)
+            tuples.add(find(t, i));
+        t.commit();
+    }
+
+    private List<Integer> values(Transaction t) throws Exception {
+        DbFileIterator it = empty.iterator(t.getId());
+        it.open();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    private Tuple find(Transaction t, int value) throws Exception {
+        DbFileIterator it = empty.iterator(t.getId());
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple tup = it.next();
+                if (((IntField) tup.getField(0)).getValue() == value)
+                    return tup;
+            }
+            return null;
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Two transactions change different tuples of the same page without
+     * waiting for each other, and an abort undoes only its own changes
+     */
+    @Test public void writersShareAPage() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+
+        bp.deleteTuple(t1.getId(), tuples.get(0));
+        bp.insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(10, 2));
+        bp.deleteTuple(t2.getId(), tuples.get(1));
+        bp.insertTuple(t2.getId(), empty.getId(), Utility.getHeapTuple(20, 2));
+        assertFalse(bp.holdsLock(t1.getId(), tuples.get(1).getRecordId()));
+        assertEquals(1, empty.numPages());
+        t1.commit();
+        t2.commit();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        Transaction t4 = new Transaction();
+        t4.start();
+        bp.deleteTuple(t3.getId(), tuples.get(2));
+        bp.insertTuple(t3.getId(), empty.getId(), Utility.getHeapTuple(30, 2));
+        bp.insertTuple(t4.getId(), empty.getId(), Utility.getHeapTuple(40, 2));
+        t3.abort();
+        t4.commit();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(Arrays.asList(2, 3, 10, 20, 40), values(t));
+        t.commit();
+    }
+
+    /**
+     * The slot of a tuple deleted by an uncommitted transaction is not
+     * reused, so an abort can put the tuple back
+     */
+    @Test public void deletedSlotNotReused() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Tuple victim = tuples.get(0);
+        bp.deleteTuple(t1.getId(), victim);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Tuple tup = Utility.getHeapTuple(50, 2);
+        bp.insertTuple(t2.getId(), empty.getId(), tup);
+        assertFalse(tup.getRecordId().equals(victim.getRecordId()));
+        t2.commit();
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 50), values(t));
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleLockingTest.class);
+    }
+}
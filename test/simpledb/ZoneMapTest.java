@@ -0,0 +1,188 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private File f;
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    /**
+     * Set up a heap file whose first column increases with the page number,
+     * so every page covers a disjoint range of values.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, ROWS - i)));
+        f = File.createTempFile("zones", ".dat");
+        f.deleteOnExit();
+        ZoneMap.getMapFile(f).deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, f);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int scan(Predicate p) throws Exception {
+        SeqScan ss = new SeqScan(tid, hf.getId(), "z");
+        ss.addPageFilter(p);
+        Filter filter = new Filter(p, ss);
+        filter.open();
+        int n = 0;
+        while (filter.hasNext()) {
+            filter.next();
+            n++;
+        }
+        filter.close();
+        return n;
+    }
+
+    /**
+     * Unit test for ZoneMap.mayMatch() on entries built as pages are read
+     */
+    @Test
+    public void mayMatch() throws Exception {
+        ZoneMap zm = hf.getZoneMap();
+        assertFalse(zm.isKnown(0));
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertTrue(zm.isKnown(1));
+        int per = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            it.next();
+            per++;
+        }
+        int lo = per, hi = 2 * per - 1;
+
+        IntField loField = new IntField(lo), hiField = new IntField(hi);
+        assertTrue(zm.mayMatch(1, new Predicate(0, Predicate.Op.EQUALS, loField)));
+        assertFalse(zm.mayMatch(1, new Predicate(0, Predicate.Op.EQUALS, new IntField(hi + 1))));
+        assertFalse(zm.mayMatch(1, new Predicate(0, Predicate.Op.GREATER_THAN, hiField)));
+        assertTrue(zm.mayMatch(1, new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, hiField)));
+        assertFalse(zm.mayMatch(1, new Predicate(0, Predicate.Op.LESS_THAN, loField)));
+        assertTrue(zm.mayMatch(1, new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, loField)));
+        assertTrue(zm.mayMatch(1, new Predicate(0, Predicate.Op.NOT_EQUALS, loField)));
+        // unknown pages can't be ruled out
+        assertTrue(zm.mayMatch(0, new Predicate(0, Predicate.Op.EQUALS, new IntField(-1))));
+    }
+
+    /**
+     * A filtered scan skips pages whose entries rule the predicate out, once
+     * the entries are known and the pages are no longer cached.
+     */
+    @Test
+    public void skipPages() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10));
+        assertEquals(10, scan(p)); // reads every page, learning the zones
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+
+        assertEquals(10, scan(p));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+        for (int i = 1; i < hf.numPages(); i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+
+        // the second column decreases, so only the last page matches
+        p = new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(1));
+        assertEquals(1, scan(p));
+    }
+
+    /** @return the number of tuples a planned scan of t filtered by field0 < 10 returns */
+    private int planAndScan(HeapFile t) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(t.getId(), "z");
+        lp.addFilter("z.field0", Predicate.Op.LESS_THAN, "10");
+        lp.addProjectField("z.field0", null);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(t.getId()), new TableStats(t.getId(), 1000));
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    /**
+     * The planner passes the filters of a query to the scan below them,
+     * so a planned query skips pages too.
+     */
+    @Test
+    public void plannerPushesFilters() throws Exception {
+        HeapFile named = Utility.openHeapFile(2, "field", f);
+        assertEquals(10, planAndScan(named)); // reads every page, learning the zones
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+
+        assertEquals(10, planAndScan(named));
+        for (int i = 1; i < named.numPages(); i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(named.getId(), i)));
+    }
+
+    /**
+     * Inserts and page writes keep the entries conservative, and written
+     * entries survive reopening the file.
+     */
+    @Test
+    public void insertAndPersist() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(ROWS * 2));
+        assertEquals(0, scan(p));
+
+        // make room on page 0 and insert a large value there
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        hf.deleteTuple(tid, page.iterator().next());
+        Tuple t = Utility.getHeapTuple(new int[] { ROWS * 3, 0 });
+        hf.insertTuple(tid, t);
+        assertEquals(pid, t.getRecordId().getPageId());
+        assertTrue(hf.getZoneMap().mayMatch(0, p));
+        assertEquals(1, scan(p));
+
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+
+        HeapFile reopened = Utility.openHeapFile(2, f);
+        ZoneMap zm = reopened.getZoneMap();
+        assertTrue(zm.isKnown(0));
+        assertTrue(zm.mayMatch(0, p));
+        assertFalse(zm.mayMatch(1, p));
+
+        tuples.remove(0);
+        tuples.add(new ArrayList<Integer>(Arrays.asList(ROWS * 3, 0)));
+        SystemTestUtil.matchTuples(reopened, tid, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
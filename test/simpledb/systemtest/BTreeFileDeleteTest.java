@@ -45,12 +45,12 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		DbFileIterator it = twoLeafPageFile.iterator(tid);
 		it.open();
 		int count = 0;
-		while(it.hasNext() && count < 49) {
+		while(it.hasNext() && count < 50) {
 			Tuple t = it.next();
 			BTreePageId pid = (BTreePageId) t.getRecordId().getPageId();
 			BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(
 					tid, pid, Permissions.READ_ONLY);
-			assertEquals(202 + count, p.getNumEmptySlots());
+			assertEquals(201 + count, p.getNumEmptySlots());
 			twoLeafPageFile.deleteTuple(tid, t);
 			count++;
 		}
@@ -70,13 +70,13 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		BTreePageId rightSiblingId = p.getRightSiblingId();
 		BTreeLeafPage rightSibling = (BTreeLeafPage) Database.getBufferPool().getPage(
 				tid, rightSiblingId, Permissions.READ_ONLY);
-		assertTrue(rightSibling.getNumEmptySlots() > 202);
+		assertTrue(rightSibling.getNumEmptySlots() > 201);
 	} 
 
 	@Test
 	public void testMergeLeafPages() throws Exception {
 		// This should create a B+ tree with one full page and two half-full leaf pages
-		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1005,
+		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1003,
 				null, null, 0);
 
 		BTreeChecker.checkRep(threeLeafPageFile,
@@ -84,16 +84,19 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		// there should be one internal node and 3 leaf nodes
 		assertEquals(4, threeLeafPageFile.numPages());
 
-		// delete the last two tuples
+		// delete the last three tuples
 		DbFileIterator it = threeLeafPageFile.iterator(tid);
 		it.open();
+		Tuple thirdToLast = null;
 		Tuple secondToLast = null;
 		Tuple last = null;
 		while(it.hasNext()) {
+			thirdToLast = secondToLast;
 			secondToLast = last;
 			last = it.next();
 		}
 		it.close();
+		threeLeafPageFile.deleteTuple(tid, thirdToLast);
 		threeLeafPageFile.deleteTuple(tid, secondToLast);
 		threeLeafPageFile.deleteTuple(tid, last);
 		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<PageId, Page>(), true);
@@ -104,14 +107,14 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, rootPtrId, Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(501, root.getNumEmptySlots());
 		BTreeEntry e = root.iterator().next();
 		BTreeLeafPage leftChild = (BTreeLeafPage) Database.getBufferPool().getPage(
 				tid, e.getLeftChild(), Permissions.READ_ONLY);
 		BTreeLeafPage rightChild = (BTreeLeafPage) Database.getBufferPool().getPage(
 				tid, e.getRightChild(), Permissions.READ_ONLY);
 		assertEquals(0, leftChild.getNumEmptySlots());
-		assertEquals(1, rightChild.getNumEmptySlots());
+		assertEquals(2, rightChild.getNumEmptySlots());
 		assertTrue(e.getKey().equals(rightChild.iterator().next().getField(0)));
 
 	}
@@ -119,23 +122,26 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testDeleteRootPage() throws Exception {
 		// This should create a B+ tree with two half-full leaf pages
-		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 503,
+		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 502,
 				null, null, 0);
 		// there should be one internal node and 2 leaf nodes
 		assertEquals(3, twoLeafPageFile.numPages());
 		BTreeChecker.checkRep(twoLeafPageFile,
 				tid, new HashMap<PageId, Page>(), true);
 
-		// delete the first two tuples
+		// delete the first three tuples
 		DbFileIterator it = twoLeafPageFile.iterator(tid);
 		it.open();
 		Tuple first = it.next();
 		Tuple second = it.next();
+		Tuple third = it.next();
 		it.close();
 		twoLeafPageFile.deleteTuple(tid, first);
 		BTreeChecker.checkRep(twoLeafPageFile, tid, new HashMap<PageId, Page>(), false);
 		twoLeafPageFile.deleteTuple(tid, second);
 		BTreeChecker.checkRep(twoLeafPageFile,tid, new HashMap<PageId, Page>(), false);
+		twoLeafPageFile.deleteTuple(tid, third);
+		BTreeChecker.checkRep(twoLeafPageFile,tid, new HashMap<PageId, Page>(), false);
 
 		// confirm that the last two pages have merged successfully and replaced the root
 		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
@@ -144,14 +150,14 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(rootPtr.getRootId().pgcateg() == BTreePageId.LEAF);
 		BTreeLeafPage root = (BTreeLeafPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(1, root.getNumEmptySlots());
+		assertEquals(2, root.getNumEmptySlots());
 		assertTrue(root.getParentId().equals(rootPtrId));
 	}
 
 	@Test
 	public void testReuseDeletedPages() throws Exception {
 		// this should create a B+ tree with 3 leaf nodes
-		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1005,
+		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1003,
 				null, null, 0);
 		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<PageId, Page>(), true);
 
@@ -161,7 +167,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		// delete enough tuples to ensure one page gets deleted
 		DbFileIterator it = threeLeafPageFile.iterator(tid);
 		it.open();
-		for(int i = 0; i < 502; ++i) {
+		for(int i = 0; i < 501; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
@@ -171,7 +177,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertEquals(5, threeLeafPageFile.numPages());
 
 		// insert enough tuples to ensure one of the leaf pages splits
-		for(int i = 0; i < 502; ++i) {
+		for(int i = 0; i < 501; ++i) {
 			Database.getBufferPool().insertTuple(tid, threeLeafPageFile.getId(),
 					BTreeUtility.getBTreeTuple(i, 2));
 		}
@@ -185,7 +191,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	public void testRedistributeInternalPages() throws Exception {
 		// This should create a B+ tree with two nodes in the second tier
 		// and 602 nodes in the third tier
-		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 302204,
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 301602,
 				null, null, 0);
 		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
 
@@ -195,7 +201,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(501, root.getNumEmptySlots());
 
 		BTreeEntry rootEntry = root.iterator().next();
 		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
@@ -207,7 +213,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		Iterator<BTreeEntry> it = rightChild.iterator();
 		int count = 0;
 		// bring the right internal page to minimum occupancy
-		while(it.hasNext() && count < 49 * 502 + 1) {
+		while(it.hasNext() && count < 49 * 501 + 2) {
 			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, 
 					it.next().getLeftChild(), Permissions.READ_ONLY);
 			Tuple t = leaf.iterator().next();
@@ -218,9 +224,9 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 		// deleting a page of tuples should bring the internal page below minimum 
 		// occupancy and cause the entries to be redistributed
-		assertEquals(252, rightChild.getNumEmptySlots());
+		assertEquals(251, rightChild.getNumEmptySlots());
 		count = 0;
-		while(it.hasNext() && count < 502) {
+		while(it.hasNext() && count < 501) {
 			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, 
 					it.next().getLeftChild(), Permissions.READ_ONLY);
 			Tuple t = leaf.iterator().next();
@@ -228,8 +234,8 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 			it = rightChild.iterator();
 			count++;
 		}
-		assertTrue(leftChild.getNumEmptySlots() > 203);
-		assertTrue(rightChild.getNumEmptySlots() <= 252);
+		assertTrue(leftChild.getNumEmptySlots() > 202);
+		assertTrue(rightChild.getNumEmptySlots() <= 251);
 		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
 
 		// sanity check that the entries make sense
@@ -250,10 +256,10 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
     	BufferPool.setPageSize(1024);
 		
 		// This should create a B+ tree with three nodes in the second tier
-		// and 252 nodes in the third tier
-    	// (124 entries per internal/leaf page, 125 children per internal page ->
-    	// 251*124 + 1 = 31125)
-		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31125,
+		// and 249 nodes in the third tier
+    	// (123 entries per internal/leaf page, 124 children per internal page ->
+    	// 248*123 + 1 = 30505)
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 30505,
 				null, null, 0);
 
 		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
@@ -264,7 +270,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(122, root.getNumEmptySlots());
+		assertEquals(121, root.getNumEmptySlots());
 
 		BTreeEntry e = root.iterator().next();
 		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
@@ -277,11 +283,13 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		DbFileIterator it = bigFile.iterator(tid);
 		it.open();
 		int count = 0;
-		Database.getBufferPool().deleteTuple(tid, it.next());
-		it.rewind();
+		for(int i = 0; i < 2; ++i) {
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.rewind();
+		}
 		while(count < 62) {
 			assertEquals(count, leftChild.getNumEmptySlots());
-			for(int i = 0; i < 124; ++i) {
+			for(int i = 0; i < 123; ++i) {
 				Database.getBufferPool().deleteTuple(tid, it.next());
 				it.rewind();
 			}
@@ -293,7 +301,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		// deleting a page of tuples should bring the internal page below minimum 
 		// occupancy and cause the entries to be redistributed
 		assertEquals(62, leftChild.getNumEmptySlots());
-		for(int i = 0; i < 124; ++i) {
+		for(int i = 0; i < 123; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
@@ -305,27 +313,27 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 		// deleting another page of tuples should bring the page below minimum occupancy 
 		// again but this time cause it to merge with its right sibling 
-		for(int i = 0; i < 124; ++i) {
+		for(int i = 0; i < 123; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
 
 		// confirm that the pages have merged
-		assertEquals(123, root.getNumEmptySlots());
+		assertEquals(122, root.getNumEmptySlots());
 		e = root.iterator().next();
 		leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, e.getLeftChild(), Permissions.READ_ONLY);
 		rightChild = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, e.getRightChild(), Permissions.READ_ONLY);
-		assertEquals(0, leftChild.getNumEmptySlots());
+		assertEquals(1, leftChild.getNumEmptySlots());
 		assertTrue(e.getKey().compare(Op.LESS_THAN_OR_EQ, rightChild.iterator().next().getKey()));
 
 		// Delete tuples causing leaf pages to merge until the first internal page 
 		// gets below minimum occupancy and causes the entries to be redistributed
-		count = 0;
+		count = 1;
 		while(count < 62) {
 			assertEquals(count, leftChild.getNumEmptySlots());
-			for(int i = 0; i < 124; ++i) {
+			for(int i = 0; i < 123; ++i) {
 				Database.getBufferPool().deleteTuple(tid, it.next());
 				it.rewind();
 			}
@@ -334,7 +342,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 		// deleting another page of tuples should bring the page below minimum occupancy 
 		// and cause it to merge with the right sibling to replace the root
-		for(int i = 0; i < 124; ++i) {
+		for(int i = 0; i < 123; ++i) {
 			Database.getBufferPool().deleteTuple(tid, it.next());
 			it.rewind();
 		}
@@ -347,7 +355,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(rootPtr.getRootId().pgcateg() == BTreePageId.INTERNAL);
 		root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(0, root.getNumEmptySlots());
+		assertEquals(1, root.getNumEmptySlots());
 		assertTrue(root.getParentId().equals(rootPtrId));
 
 		it.close();
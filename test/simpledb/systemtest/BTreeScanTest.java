@@ -212,7 +212,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
     	
     	ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
         int keyField = 0;
-        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*501, null, tuples, keyField);
         Collections.sort(tuples, new TupleComparator(keyField));
         TupleDesc td = Utility.getTupleDesc(2);
         InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
@@ -221,7 +221,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
         // EQUALS
         TransactionId tid = new TransactionId();
         ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
-        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(r.nextInt(LEAF_PAGES*502)));
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(r.nextInt(LEAF_PAGES*501)));
         Iterator<ArrayList<Integer>> it = tuples.iterator();
         while(it.hasNext()) {
         	ArrayList<Integer> tup = it.next();
@@ -239,7 +239,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
         
         // LESS_THAN
         tuplesFiltered.clear();
-        ipred = new IndexPredicate(Op.LESS_THAN, new IntField(r.nextInt(LEAF_PAGES*502)));
+        ipred = new IndexPredicate(Op.LESS_THAN, new IntField(r.nextInt(LEAF_PAGES*501)));
         it = tuples.iterator();
         while(it.hasNext()) {
         	ArrayList<Integer> tup = it.next();
@@ -260,7 +260,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
         
         // GREATER_THAN
         tuplesFiltered.clear();
-        ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(r.nextInt(LEAF_PAGES*502)));
+        ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(r.nextInt(LEAF_PAGES*501)));
         it = tuples.iterator();
         while(it.hasNext()) {
         	ArrayList<Integer> tup = it.next();